@@ -0,0 +1,90 @@
+package bencode;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the bencoding of a torrent of nbPieces pieces and of a tracker response
+ * <p>
+ * decodeTorrent parses the metainfo file, encodeInfo encodes its decoded info dictionary again
+ * as Torrent does to compute the info hash, decodeTrackerResponse parses an answer listing 50
+ * peers as dictionaries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BencodeBenchmark {
+    private static final int PEERS = 50;
+
+    @Param({"1000", "100000"})
+    public int nbPieces;
+
+    private byte[] torrent;
+    private byte[] trackerResponse;
+    private Map<String, BEncodedValue> info;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() throws IOException {
+        Map<String, Object> infoMap = new TreeMap<>();
+        infoMap.put("length", (long) nbPieces * 262144);
+        infoMap.put("name", "bench.bin");
+        infoMap.put("piece length", 262144);
+        infoMap.put("pieces", new byte[nbPieces * 20]);
+        Map<String, Object> metainfo = new TreeMap<>();
+        metainfo.put("announce", "http://127.0.0.1:6969/announce");
+        metainfo.put("info", infoMap);
+        torrent = encode(metainfo);
+        info = BDecoder.bdecode(ByteBuffer.wrap(torrent)).getMap().get("info").getMap();
+
+        List<BEncodedValue> peers = new ArrayList<>();
+        for (int i = 0; i < PEERS; i++) {
+            Map<String, BEncodedValue> peer = new TreeMap<>();
+            peer.put("ip", new BEncodedValue("10.0." + (i / 256) + "." + (i % 256)));
+            peer.put("peer id", new BEncodedValue(String.format("-BT0001-%012d", i)));
+            peer.put("port", new BEncodedValue(6881 + i));
+            peers.add(new BEncodedValue(peer));
+        }
+        Map<String, Object> response = new TreeMap<>();
+        response.put("complete", 10);
+        response.put("incomplete", 40);
+        response.put("interval", 1800);
+        response.put("peers", peers);
+        trackerResponse = encode(response);
+        out = new ByteArrayOutputStream(torrent.length);
+    }
+
+    @Benchmark
+    public BEncodedValue decodeTorrent() throws IOException {
+        return BDecoder.bdecode(ByteBuffer.wrap(torrent));
+    }
+
+    @Benchmark
+    public int encodeInfo() throws IOException {
+        out.reset();
+        BEncoder.encode(info, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public BEncodedValue decodeTrackerResponse() throws IOException {
+        return BDecoder.bdecode(ByteBuffer.wrap(trackerResponse));
+    }
+
+    private static byte[] encode(Map<String, Object> map) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BEncoder.encode(map, bytes);
+        return bytes.toByteArray();
+    }
+}
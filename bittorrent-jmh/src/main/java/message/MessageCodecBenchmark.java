@@ -0,0 +1,81 @@
+package message;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Cost of createByteArray and getMessageFromByteBuffer for each type of message
+ * <p>
+ * encode builds the message and its wire buffer as it is done before every send, decode reads
+ * it back from the wire bytes into a new message as Message.parserMessages does. The piece
+ * message carries a 16 KiB block, the bitfield one the bitfield of 10000 pieces.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageCodecBenchmark {
+    private static final int BLOCK_SIZE = 16384;
+
+    @Param({"HANDSHAKE", "INTERESTED", "HAVE", "BITFIELD", "REQUEST", "PIECE", "CANCEL"})
+    public TypeMessage type;
+
+    private Supplier<Message> encoder;    // message to send
+    private Supplier<Message> decoder;    // empty message to read into
+    private ByteBuffer wire;
+
+    @Setup
+    public void setup() {
+        byte[] infoHash = new byte[20];
+        byte[] bitfield = new byte[10000 / 8];
+        byte[] block = new byte[BLOCK_SIZE];
+        switch (type) {
+            case HANDSHAKE:
+                encoder = () -> new HandshakeMessage(infoHash, "-BT0001-000000000000");
+                decoder = HandshakeMessage::new;
+                break;
+            case INTERESTED:
+                encoder = InterestedMessage::new;
+                decoder = InterestedMessage::new;
+                break;
+            case HAVE:
+                encoder = () -> new HaveMessage(1234);
+                decoder = HaveMessage::new;
+                break;
+            case BITFIELD:
+                encoder = () -> new BitfieldMessage(bitfield);
+                decoder = BitfieldMessage::new;
+                break;
+            case REQUEST:
+                encoder = () -> new RequestMessage(1234, 3 * BLOCK_SIZE, BLOCK_SIZE);
+                decoder = RequestMessage::new;
+                break;
+            case PIECE:
+                encoder = () -> new PieceMessage(1234, 3 * BLOCK_SIZE, block);
+                decoder = PieceMessage::new;
+                break;
+            case CANCEL:
+                encoder = () -> new CancelMessage(1234, 3 * BLOCK_SIZE, BLOCK_SIZE);
+                decoder = CancelMessage::new;
+                break;
+            default:
+                throw new IllegalArgumentException(type.toString());
+        }
+        wire = encoder.get().createByteArray();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return encoder.get().createByteArray();
+    }
+
+    @Benchmark
+    public Message decode() {
+        return decoder.get().getMessageFromByteBuffer(wire.duplicate());
+    }
+}
@@ -0,0 +1,99 @@
+package message;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare Message.parserMessages with the streaming MessageDecoder
+ * <p>
+ * One operation decodes a stream of 64 frames (piece messages of 16 KiB mixed with have and
+ * request messages) fed in chunks of readSize bytes, as a socket read would, the decoder
+ * getting at most the room left in its buffer. The "bytes" counter gives the decoding rate in
+ * bytes/s, run with -prof gc to get the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageParserBenchmark {
+    private static final int FRAMES = 64;
+    private static final int BLOCK_SIZE = 16384;
+
+    @Param({"1460", "65536"})
+    public int readSize;
+
+    private ByteBuffer stream;
+    private ByteBuffer legacyBuffer;
+    private MessageDecoder decoder;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup
+    public void setup() {
+        ByteBuffer wire = ByteBuffer.allocate(FRAMES * (BLOCK_SIZE + 13));
+        byte[] block = new byte[BLOCK_SIZE];
+        for (int i = 0; i < FRAMES; i++) {
+            if (i % 8 == 0) {
+                wire.put(new HaveMessage(i).createByteArray());
+                wire.put(new RequestMessage(i, 0, BLOCK_SIZE).createByteArray());
+            } else {
+                wire.put(new PieceMessage(i, (i % 4) * BLOCK_SIZE, block).createByteArray());
+            }
+        }
+        wire.flip();
+        stream = wire;
+        legacyBuffer = ByteBuffer.allocate(1000000);
+        decoder = new MessageDecoder(65536);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public void legacyParser(Bytes counter, Blackhole bh) {
+        ByteBuffer in = stream.duplicate();
+        while (in.hasRemaining()) {
+            legacyBuffer.put(nextChunk(in, readSize));
+            for (Message m : Message.parserMessages(legacyBuffer)) {
+                bh.consume(m);
+                if (m instanceof PieceMessage) {
+                    bh.consume(((PieceMessage) m).getBlock());
+                }
+            }
+        }
+        legacyBuffer.clear();
+        counter.bytes += stream.remaining();
+    }
+
+    @Benchmark
+    public void streamingDecoder(Bytes counter, Blackhole bh) throws IOException {
+        ByteBuffer in = stream.duplicate();
+        while (in.hasRemaining()) {
+            // a socket read fills at most the room left after the pending partial frame
+            ByteBuffer readBuffer = decoder.getReadBuffer();
+            readBuffer.put(nextChunk(in, Math.min(readSize, readBuffer.remaining())));
+            for (Message m : decoder.decode()) {
+                bh.consume(m);
+                if (m instanceof PieceMessage) {
+                    bh.consume(((PieceMessage) m).getBlockBuffer());
+                }
+            }
+        }
+        counter.bytes += stream.remaining();
+    }
+
+    private static ByteBuffer nextChunk(ByteBuffer in, int size) {
+        ByteBuffer chunk = in.slice();
+        chunk.limit(Math.min(size, chunk.remaining()));
+        in.position(in.position() + chunk.remaining());
+        return chunk;
+    }
+}
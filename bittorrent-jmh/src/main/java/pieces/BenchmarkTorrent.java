@@ -0,0 +1,42 @@
+package pieces;
+
+import bencode.BEncoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * single file torrents written to a temporary file, to build the Torrent and PieceManager
+ * objects of the benchmarks
+ */
+final class BenchmarkTorrent {
+    private BenchmarkTorrent() {
+    }
+
+    /**
+     * @param nbPieces    number of pieces
+     * @param pieceLength piece length, the last piece is full too
+     * @return torrent file, deleted on exit, with zero piece hashes
+     * @throws IOException exception
+     */
+    static File write(int nbPieces, int pieceLength) throws IOException {
+        Map<String, Object> info = new TreeMap<>();
+        info.put("length", (long) nbPieces * pieceLength);
+        info.put("name", "bench.bin");
+        info.put("piece length", pieceLength);
+        info.put("pieces", new byte[nbPieces * 20]);
+        Map<String, Object> torrent = new TreeMap<>();
+        torrent.put("announce", "http://127.0.0.1:6969/announce");
+        torrent.put("info", info);
+        File file = File.createTempFile("bench", ".torrent");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            BEncoder.encode(torrent, out);
+        }
+        return file;
+    }
+}
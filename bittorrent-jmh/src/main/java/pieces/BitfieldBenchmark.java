@@ -0,0 +1,65 @@
+package pieces;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Cost of the bitfield queries of a PieceManager half downloaded
+ * <p>
+ * The pieces of an even index are complete, the others have their first block received.
+ * updateBitfield rebuilds the bitfield by checking every block of every piece, bitfieldMessage
+ * is the payload of the BitfieldMessage sent to each new peer and percentage the completion
+ * shown every second, both read from the bitfield kept up to date as pieces complete.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BitfieldBenchmark {
+    private static final int PIECE_LENGTH = 4 * Piece.BLOCK_SIZE;
+
+    @Param({"10000", "100000"})
+    public int nbPieces;
+
+    private PieceManager pieceManager;
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        Torrent torrent = new Torrent(BenchmarkTorrent.write(nbPieces, PIECE_LENGTH), new File("."), Level.OFF);
+        pieceManager = new PieceManager(torrent, Level.OFF, new LinkedBlockingQueue<>());
+        List<Piece> pieces = pieceManager.getPieces();
+        for (Piece piece : pieces) {
+            if (piece.getIndex() % 2 == 0) {
+                piece.setVerified();
+            } else {
+                piece.getBlocks().get(0).setBlockState(BlockState.FULL);
+            }
+        }
+        pieceManager.updateBitfield();
+    }
+
+    @Benchmark
+    public Bitfield updateBitfield() {
+        pieceManager.updateBitfield();
+        return pieceManager.getPiecesBitfield();
+    }
+
+    @Benchmark
+    public byte[] bitfieldMessage() {
+        return pieceManager.getBitfield();
+    }
+
+    @Benchmark
+    public int percentage() {
+        return pieceManager.getPercentageDownloaded();
+    }
+}
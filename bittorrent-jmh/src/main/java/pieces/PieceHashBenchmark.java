@@ -0,0 +1,79 @@
+package pieces;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of receiving and checking a piece
+ * <p>
+ * One operation adds every block of a piece and calls verifyIntegrity, the piece buffer going
+ * back to the pool afterwards. inOrder receives the blocks in order, each one being hashed as
+ * it arrives, reversed receives them last block first so the whole piece is hashed on the last
+ * one. sha1 is the digest of the same bytes in one call, the lower bound of both.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PieceHashBenchmark {
+    @Param({"262144", "1048576", "4194304"})
+    public int pieceLength;
+
+    private byte[] content;
+    private ByteBuffer[] blocks;
+    private byte[] hash;
+    private BufferPool pool;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        content = new byte[pieceLength];
+        new Random(1).nextBytes(content);
+        hash = MessageDigest.getInstance("SHA1").digest(content);
+        blocks = new ByteBuffer[pieceLength / Piece.BLOCK_SIZE];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = ByteBuffer.wrap(content, i * Piece.BLOCK_SIZE, Piece.BLOCK_SIZE).slice();
+        }
+        pool = new BufferPool(pieceLength, 2);
+    }
+
+    @Benchmark
+    public boolean inOrder() {
+        Piece piece = new Piece(0, pieceLength, hash, pool);
+        for (int i = 0; i < blocks.length; i++) {
+            piece.addBlockToPiece(i * Piece.BLOCK_SIZE, blocks[i].duplicate());
+        }
+        return verify(piece);
+    }
+
+    @Benchmark
+    public boolean reversed() {
+        Piece piece = new Piece(0, pieceLength, hash, pool);
+        for (int i = blocks.length - 1; i >= 0; i--) {
+            piece.addBlockToPiece(i * Piece.BLOCK_SIZE, blocks[i].duplicate());
+        }
+        return verify(piece);
+    }
+
+    @Benchmark
+    public byte[] sha1() {
+        MessageDigest digest = Piece.newDigest();
+        digest.update(content);
+        return digest.digest();
+    }
+
+    private static boolean verify(Piece piece) {
+        boolean valid = piece.verifyIntegrity();
+        if (!valid) {
+            throw new IllegalStateException("piece rejected");
+        }
+        piece.release();
+        return valid;
+    }
+}
@@ -0,0 +1,123 @@
+package pieces;
+
+import org.openjdk.jmh.annotations.*;
+import peers.PeerClient;
+import peers.PeerManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Cost of the piece selection with 200 peers each having a random half of the pieces
+ * <p>
+ * selectionRound is the 10 s round of the rarest-first picker, weightRound the same round with
+ * SelectionWeight which assigns every piece in advance (the previous rarest-first sorting on top
+ * of it does not finish a round at 100k pieces), sequentialRound the same with SelectionSequential
+ * which hands the pieces out in index order. nextPieceToAsk is the per-request cost, the
+ * buckets being refilled by a round when they are exhausted, haveMessage and peerReconnect the
+ * cost of the availability updates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PieceSelectionBenchmark {
+    private static final int PEERS = 200;
+
+    @Param({"10000", "100000"})
+    public int nbPieces;
+
+    private PeerClient[] peers;       // never connected, only keys of the selections
+    private Bitfield[] bitfields;
+    private SelectionRarestFirst rarestFirst;
+    private SelectionWeight weight;
+    private SelectionSequential sequential;
+    private Map<Piece, List<Block>> leftPieces;
+    private PeerClient newcomer;
+    private int cursor = 0;
+    private int haveIndex = 0;
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        Torrent torrent = new Torrent(BenchmarkTorrent.write(nbPieces, Piece.BLOCK_SIZE), new File("."), Level.OFF);
+        PieceManager pieceManager = new PieceManager(torrent, Level.OFF, new LinkedBlockingQueue<>());
+        PeerManager peerManager = new PeerManager(Level.OFF);
+        Random random = new Random(1);
+        rarestFirst = new SelectionRarestFirst(nbPieces);
+        weight = new SelectionWeight(nbPieces);
+        sequential = new SelectionSequential(nbPieces);
+        peers = new PeerClient[PEERS];
+        bitfields = new Bitfield[PEERS];
+        for (int p = 0; p < PEERS; p++) {
+            peers[p] = new PeerClient("127.0.0.1", 6881 + p, peerManager, pieceManager, torrent, Level.OFF);
+            bitfields[p] = new Bitfield(nbPieces);
+            for (int i = 0; i < nbPieces; i++) {
+                if (random.nextBoolean()) {
+                    bitfields[p].set(i);
+                }
+            }
+            rarestFirst.initBitfieldForPeer(peers[p]);
+            rarestFirst.setBitfield(bitfields[p], peers[p]);
+            weight.initBitfieldForPeer(peers[p]);
+            weight.setBitfield(bitfields[p], peers[p]);
+            sequential.initBitfieldForPeer(peers[p]);
+            sequential.setBitfield(bitfields[p], peers[p]);
+        }
+        newcomer = new PeerClient("127.0.0.1", 6881 + PEERS, peerManager, pieceManager, torrent, Level.OFF);
+        rarestFirst.initBitfieldForPeer(newcomer);
+        leftPieces = pieceManager.getLeftPieces();
+        rarestFirst.selectPiecesToAsk(leftPieces);
+    }
+
+    @Benchmark
+    public void selectionRound() {
+        rarestFirst.selectPiecesToAsk(leftPieces);
+    }
+
+    @Benchmark
+    public void weightRound() {
+        weight.selectPiecesToAsk(new Hashtable<>(leftPieces));
+    }
+
+    @Benchmark
+    public void sequentialRound() {
+        sequential.selectPiecesToAsk(new Hashtable<>(leftPieces));
+    }
+
+    @Benchmark
+    public Piece nextPieceToAsk() {
+        PeerClient peer = peers[cursor];
+        cursor = (cursor + 1) % PEERS;
+        Piece piece = rarestFirst.nextPieceToAsk(peer);
+        if (piece == null) {
+            rarestFirst.selectPiecesToAsk(leftPieces);
+        }
+        return piece;
+    }
+
+    @Benchmark
+    public void haveMessage() {
+        if (haveIndex == nbPieces) {
+            rarestFirst.removePeer(newcomer);
+            rarestFirst.initBitfieldForPeer(newcomer);
+            haveIndex = 0;
+        }
+        rarestFirst.setHave(haveIndex++, newcomer);
+    }
+
+    @Benchmark
+    public void peerReconnect() {
+        PeerClient peer = peers[cursor];
+        rarestFirst.removePeer(peer);
+        rarestFirst.initBitfieldForPeer(peer);
+        rarestFirst.setBitfield(bitfields[cursor], peer);
+        cursor = (cursor + 1) % PEERS;
+    }
+}
@@ -1,21 +1,32 @@
+import metrics.Histogram;
+import metrics.Metrics;
+import metrics.MetricsReporter;
+import peers.OutboundQueue;
 import peers.PeerClient;
 import peers.PeerManager;
+import peers.RateLimiter;
 import peers.Server;
+import peers.Session;
 import pieces.*;
-import tracker.HttpRequestType;
+import tracker.AnnounceScheduler;
+import tracker.ScrapeCache;
 import tracker.Tracker;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,138 +34,327 @@ import java.util.logging.Logger;
 /**
  * BitTorrentClient class
  * Application Class
+ * <p>
+ * Every torrent given on the command line is downloaded and seeded in the same Session : a single
+ * listening port, the same reactors, disk threads and piece buffers, one launch thread per torrent.
  */
 public class BitTorrentClient {
-    private static File torrent = null;
+    private static List<File> torrents = new ArrayList<>();
     private static File directory = null;
     private static Logger globalLogger = Logger.getLogger("global");
     private static boolean displayMode = false;
-    private static BlockingQueue<Boolean> isFileDownloaded = new SynchronousQueue<>();
     private static String interfaceIP = "lo0";
+    private static final int PORT = 6883;
+    private static final int NB_REACTORS = 1;
+    private static final int DISK_THREADS = 2;
+    private static final int ANNOUNCE_THREADS = 2;     // announces sent at the same time
+    private static final long ROUND = 10;       // s between two selection rounds
+    private static final long CHECK = 100;      // ms between two checks for new peers
+    private static final long BITFIELD_WAIT = 2000;     // ms, the selection waits at most for the bitfields
+    private static final int MIN_PEERS = 10;    // fewer peers and the tracker is asked for more
+    private static final int CONNECTION_BUDGET = 200;  // peers asked for from the trackers, shared by the torrents
+    private static final int MIN_NUMWANT = 10;
+    private static final double BANDWIDTH_SLACK = 2;   // a torrent may use up to this times its share of the rate limits
+    private static final long SCRAPE_PERIOD = 15;      // min between two scrapes of the torrents
+    private static AnnounceScheduler announces;
+    private static ScrapeCache scrapes;
+    private static int endgameThreshold = Selection.DEFAULT_ENDGAME_THRESHOLD;
+    private static int uploadSlots = 4;
+    private static long peerMaxUpload = 0;
+    private static long peerMaxDownload = 0;
+    private static Path metricsFile = null;
+    private static int metricsPort = 0;
+    private static final long METRICS_PERIOD = 10;     // s between two snapshots written to the metrics file
+
+    /**
+     * Download class
+     * state of a torrent of the session
+     */
+    private static class Download {
+        private final Torrent torrent;
+        private final PieceManager pieceManager;
+        private final PeerManager peerManager;
+        private final Server myself;
+        private final Tracker httpClient;
+        private final RateLimiter limiter;
+        private final BlockingQueue<Boolean> isFileDownloaded;
+        private volatile int numwant = Tracker.NUMWANT;
+        private volatile AnnounceScheduler.Announcer announcer;
+
+        Download(Torrent torrent, PieceManager pieceManager, PeerManager peerManager, Server myself, Tracker httpClient,
+                 RateLimiter limiter, BlockingQueue<Boolean> isFileDownloaded) {
+            this.torrent = torrent;
+            this.pieceManager = pieceManager;
+            this.peerManager = peerManager;
+            this.myself = myself;
+            this.httpClient = httpClient;
+            this.limiter = limiter;
+            this.isFileDownloaded = isFileDownloaded;
+        }
+    }
 
     public static void main(String[] args) throws Exception {
         globalLogger.setLevel(Level.SEVERE);
         // get and process arguments from command line
-        Torrent torrentObject = parseArguments(args);
-        PieceManager pieceManager = new PieceManager(torrentObject, globalLogger.getLevel(), isFileDownloaded);
-        PeerManager peerManagerLeecher = new PeerManager(globalLogger.getLevel());
-        Server myself = new Server(getMyAddress(interfaceIP), 6883, new PeerManager(globalLogger.getLevel()), pieceManager, torrentObject, globalLogger.getLevel());
-        Tracker httpClient = new Tracker(torrentObject.getAnnounce(), globalLogger.getLevel());
-        FileWriter fw = new FileWriter(pieceManager, globalLogger.getLevel());
+        List<Torrent> torrentObjects = parseArguments(args);
+        announces = new AnnounceScheduler(ANNOUNCE_THREADS, globalLogger.getLevel());
+        Runtime.getRuntime().addShutdownHook(new Thread(announces::shutdown));
+        Session session = new Session(getMyAddress(interfaceIP), PORT, NB_REACTORS, DISK_THREADS, globalLogger.getLevel());
+        List<Download> downloads = new ArrayList<>();
+        for (Torrent torrentObject : torrentObjects) {
+            downloads.add(newDownload(session, torrentObject));
+        }
+        scrapes = new ScrapeCache(globalLogger.getLevel());
+        // equal shares until the first scrape, made in the background so a dead tracker does not delay the start
+        applyShares(downloads);
+        shareBudgetsThread(downloads);
+        startMetrics();
         if (displayMode) {
-            displayInfosThread(pieceManager, peerManagerLeecher, myself);
+            displayInfosThread(downloads);
+        }
+        session.start();
+        List<Thread> launchers = new ArrayList<>();
+        for (Download download : downloads) {
+            Thread launcher = new Thread(() -> {
+                try {
+                    launch(download);
+                } catch (IOException | InterruptedException e) {
+                    globalLogger.severe(download.torrent.getFileName() + " : " + e.getMessage());
+                }
+            }, "torrent-" + download.torrent.getFileName());
+            launcher.start();
+            launchers.add(launcher);
         }
+        for (Thread launcher : launchers) {
+            launcher.join();
+        }
+    }
+
+    /**
+     * add a torrent to the session, its pieces already in the download folder checked
+     *
+     * @param session       Session
+     * @param torrentObject Torrent
+     * @return download state
+     * @throws IOException              exception
+     * @throws NoSuchAlgorithmException exception
+     */
+    private static Download newDownload(Session session, Torrent torrentObject) throws IOException, NoSuchAlgorithmException {
+        BlockingQueue<Boolean> isFileDownloaded = new LinkedBlockingQueue<>();
+        PieceManager pieceManager = session.newPieceManager(torrentObject, isFileDownloaded);
+        pieceManager.getSelectionPieces().setEndgameThreshold(endgameThreshold);
+        RateLimiter torrentLimiter = new RateLimiter(RateLimiter.global());
+        torrentLimiter.setPeerRate(RateLimiter.Direction.UPLOAD, peerMaxUpload);
+        torrentLimiter.setPeerRate(RateLimiter.Direction.DOWNLOAD, peerMaxDownload);
+        PeerManager peerManagerLeecher = session.newPeerManager();
+        peerManagerLeecher.setRateLimiter(torrentLimiter);
+        Server myself = session.host(torrentObject, pieceManager);
+        myself.setUploadSlots(uploadSlots);
+        myself.setRateLimiter(torrentLimiter);
+        myself.setDownloadPeers(peerManagerLeecher);
+        Tracker httpClient = Tracker.forTorrent(torrentObject, globalLogger.getLevel());
         if (torrentObject.checkAlreadyDownloaded()) {
             pieceManager.retrieveAllPieces();
             pieceManager.getPercentageDownloaded();
         }
-        globalLogger.info("Downloaded : " + pieceManager.getPercentageDownloaded() + " %");
-        launch(torrentObject, pieceManager, peerManagerLeecher, myself, httpClient, fw);
+        globalLogger.info(torrentObject.getFileName() + " downloaded : " + pieceManager.getPercentageDownloaded() + " %");
+        return new Download(torrentObject, pieceManager, peerManagerLeecher, myself, httpClient, torrentLimiter, isFileDownloaded);
+    }
+
+    /**
+     * export the metrics to the file and / or HTTP port given on the command line
+     *
+     * @throws IOException exception
+     */
+    private static void startMetrics() throws IOException {
+        MetricsReporter reporter = new MetricsReporter();
+        if (metricsFile != null) {
+            reporter.startFile(metricsFile, METRICS_PERIOD);
+        }
+        if (metricsPort > 0) {
+            reporter.startHttp(metricsPort);
+        }
     }
 
     /**
      * general launch method
      *
-     * @param torrentObject Torrent
-     * @param pieceManager  PieceManager
-     * @param peerManager   PeerManager
-     * @param myself        Server
-     * @param httpClient    Tracker
-     * @param fw            FileWriter
-     * @throws UnsupportedEncodingException exception
-     * @throws MalformedURLException        exception
-     * @throws InterruptedException         exception
+     * @param download torrent of the session
+     * @throws InterruptedException exception
+     * @throws IOException          exception
      */
-    private static void launch(Torrent torrentObject, PieceManager pieceManager, PeerManager peerManager, Server myself, Tracker httpClient, FileWriter fw) throws UnsupportedEncodingException, MalformedURLException, InterruptedException {
-        if (pieceManager.getPercentageDownloaded() != 100) { // leecher and seeder
-            launchLeecherAndSeeder(torrentObject, pieceManager, peerManager, myself, httpClient, fw);
-        } else if (pieceManager.getPercentageDownloaded() == 100) // seeder mode
+    private static void launch(Download download) throws IOException, InterruptedException {
+        if (download.pieceManager.getPercentageDownloaded() != 100) { // leecher and seeder
+            launchLeecherAndSeeder(download);
+        } else if (download.pieceManager.getPercentageDownloaded() == 100) // seeder mode
         {
-            launchSeeder(torrentObject, pieceManager, peerManager, myself, httpClient);
+            launchSeeder(download);
         }
     }
 
     /**
-     * launch Seeder only method when the file is already downloaded
+     * launch Seeder only method when the file is already downloaded, the session answers the peers
      *
-     * @param torrentObject Torrent
-     * @param pieceManager  PieceManager
-     * @param peerManager   PeerManager
-     * @param myself        Server
-     * @param httpClient    Tracker
-     * @throws UnsupportedEncodingException exception
-     * @throws MalformedURLException        exception
+     * @param download torrent of the session
      */
-    private static void launchSeeder(Torrent torrentObject, PieceManager pieceManager, PeerManager peerManager, Server myself, Tracker httpClient) throws UnsupportedEncodingException, MalformedURLException {
-        httpClient.sendGet(HttpRequestType.COMPLETED, myself, torrentObject, peerManager, pieceManager);
-        myself.start();
+    private static void launchSeeder(Download download) {
+        download.announcer = announces.add(download.httpClient, download.myself, download.torrent, download.peerManager,
+                download.pieceManager, download.numwant);
     }
 
     /**
      * launch Leecher and Seeder method when the file is not already completely downloaded
+     * the pieces are written by the disk threads of the session, the download is over once the last one is
+     * <p>
+     * The tracker is announced to in the background : a selection round runs every ROUND seconds,
+     * or as soon as a new peer sent its bitfield.
      *
-     * @param torrentObject Torrent
-     * @param pieceManager  PieceManager
-     * @param peerManager   PeerManager
-     * @param myself        Server
-     * @param httpClient    Tracker
-     * @param fw            FileWriter
-     * @throws UnsupportedEncodingException exception
-     * @throws MalformedURLException exception
+     * @param download torrent of the session
      * @throws InterruptedException exception
+     * @throws IOException exception
      */
-    private static void launchLeecherAndSeeder(Torrent torrentObject, PieceManager pieceManager, PeerManager peerManager, Server myself, Tracker httpClient, FileWriter fw) throws UnsupportedEncodingException, MalformedURLException, InterruptedException {
-        // init
-        httpClient.sendGet(HttpRequestType.STARTED, myself, torrentObject, peerManager, pieceManager);
-        fw.start();
-        myself.start();
-        launchSelection(torrentObject, pieceManager, peerManager, myself, httpClient);
-
+    private static void launchLeecherAndSeeder(Download download) throws IOException, InterruptedException {
+        PieceManager pieceManager = download.pieceManager;
+        PeerManager peerManager = download.peerManager;
+        AnnounceScheduler.Announcer announcer = announces.add(download.httpClient, download.myself, download.torrent, peerManager,
+                pieceManager, download.numwant);
+        download.announcer = announcer;
+        int nbPeers = -1;
+        long nextRound = 0;
         while (true) {
-            Object output = isFileDownloaded.poll(10, TimeUnit.SECONDS);
+            long now = System.currentTimeMillis();
+            // the first round waits for the peers of the "started" announce
+            if (announcer.getLastResponse() != null
+                    && (now >= nextRound || pieceManager.getSelectionPieces().getPeersWithBitfield() != nbPeers)) {
+                if (peerManager.getPeers().size() < MIN_PEERS) {
+                    announcer.requestPeers();
+                }
+                nbPeers = pieceManager.getSelectionPieces().getPeersWithBitfield();
+                launchSelection(pieceManager);
+                nextRound = now + ROUND * 1000;
+            }
+            Object output = download.isFileDownloaded.poll(CHECK, TimeUnit.MILLISECONDS);
             if (output != null) {
                 break;
             }
-            launchSelection(torrentObject, pieceManager, peerManager, myself, httpClient);
         }
-        fw.interrupt();
+        pieceManager.saveResume();
         pieceManager.getSelectionPieces().setCompleted();
-        httpClient.sendGet(HttpRequestType.COMPLETED, myself, torrentObject, peerManager, pieceManager);
+        globalLogger.info("Endgame : " + pieceManager.getDuplicateBytes() + " duplicate bytes received, "
+                + pieceManager.getSelectionPieces().getCancelsSent() + " cancel messages sent");
+        globalLogger.info("Writes : " + OutboundQueue.getEntriesWritten() + " messages in " + OutboundQueue.getWriteCalls()
+                + " write calls, " + OutboundQueue.getWriteCallsSaved() + " calls saved by gathering writes");
+        announcer.completed();
     }
 
     /**
-     * launch pieces selection and contact tracker
+     * launch pieces selection, the bitfields of the peers being awaited BITFIELD_WAIT ms at most
      *
-     * @param torrentObject Torrent
-     * @param pieceManager  PieceManager
-     * @param peerManager   PeerManager
-     * @param myself        Server
-     * @param httpClient    Tracker
-     * @throws UnsupportedEncodingException exception
-     * @throws MalformedURLException        exception
+     * @param pieceManager PieceManager
+     * @throws InterruptedException exception
      */
-    private static void launchSelection(Torrent torrentObject, PieceManager pieceManager, PeerManager peerManager, Server myself, Tracker httpClient) throws UnsupportedEncodingException, MalformedURLException {
+    private static void launchSelection(PieceManager pieceManager) throws InterruptedException {
         pieceManager.getSelectionPieces().setUnDone();
-        httpClient.sendGet(HttpRequestType.OTHER, myself, torrentObject, peerManager, pieceManager);
-        while (!pieceManager.getSelectionPieces().allPeersAskedForTheirBitfield()) {
+        long deadline = System.currentTimeMillis() + BITFIELD_WAIT;
+        while (!pieceManager.getSelectionPieces().allPeersAskedForTheirBitfield() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
         }
         pieceManager.getSelectionPieces().selectPiecesToAsk(pieceManager.getLeftPieces());
         pieceManager.getSelectionPieces().setDone();
-        pieceManager.getSelectionPieces().setMaj(true);
+    }
+
+    /**
+     * scrape the torrents, those of a tracker in a single request, and share the budgets between them
+     * by the weights of their swarms : the peers asked for from the trackers, and the rate limits
+     * if some are set, a torrent being limited to BANDWIDTH_SLACK times its share so the others
+     * can use what it leaves
+     *
+     * @param downloads torrents of the session
+     */
+    private static void shareBudgets(List<Download> downloads) {
+        scrape(downloads);
+        applyShares(downloads);
+    }
+
+    /**
+     * scrape the torrents of the session, those of a tracker in a single request
+     *
+     * @param downloads torrents of the session
+     */
+    private static void scrape(List<Download> downloads) {
+        Map<String, List<Download>> byTracker = new LinkedHashMap<>();
+        for (Download download : downloads) {
+            byTracker.computeIfAbsent(download.httpClient.getAnnounceURL(), url -> new ArrayList<>()).add(download);
+        }
+        // a single torrent has the whole budgets, whatever its swarm
+        if (downloads.size() > 1) {
+            for (List<Download> sameTracker : byTracker.values()) {
+                List<byte[]> infoHashes = new ArrayList<>();
+                for (Download download : sameTracker) {
+                    infoHashes.add(download.torrent.getInfoHash());
+                }
+                scrapes.refresh(sameTracker.get(0).httpClient, infoHashes);
+            }
+        }
+    }
+
+    /**
+     * share the budgets between the torrents by the weights of their swarms last scraped, equal
+     * shares for the torrents not scraped yet
+     *
+     * @param downloads torrents of the session
+     */
+    private static void applyShares(List<Download> downloads) {
+        double[] weights = new double[downloads.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            Download download = downloads.get(i);
+            weights[i] = scrapes.weight(download.torrent.getInfoHash(), download.pieceManager.getPercentageDownloaded() == 100);
+            total += weights[i];
+        }
+        for (int i = 0; i < weights.length; i++) {
+            Download download = downloads.get(i);
+            double share = weights[i] / total;
+            download.numwant = (int) Math.max(MIN_NUMWANT, Math.round(CONNECTION_BUDGET * share));
+            if (download.announcer != null) {
+                download.announcer.setNumwant(download.numwant);
+            }
+            for (RateLimiter.Direction direction : RateLimiter.Direction.values()) {
+                long rate = RateLimiter.global().getRate(direction);
+                if (rate > 0) {
+                    download.limiter.setRate(direction, (long) Math.min(rate, rate * BANDWIDTH_SLACK * share));
+                }
+            }
+            globalLogger.info(download.torrent.getFileName() + " : " + scrapes.get(download.torrent.getInfoHash())
+                    + ", " + Math.round(share * 100) + " % of the budgets, " + download.numwant + " peers asked for");
+        }
+    }
+
+    private static void shareBudgetsThread(List<Download> downloads) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    shareBudgets(downloads);
+                    Thread.sleep(SCRAPE_PERIOD * 60 * 1000);
+                }
+            } catch (InterruptedException e) {
+                globalLogger.severe(e.getMessage());
+            }
+        }, "scrape");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
      * thread where global information are displayed
      *
-     * @param pieceManager       PieceManager
-     * @param peerManagerLeecher PeerManager
-     * @param myself             Server
+     * @param downloads torrents of the session
      */
-    private static void displayInfosThread(PieceManager pieceManager, PeerManager peerManagerLeecher, Server myself) {
+    private static void displayInfosThread(List<Download> downloads) {
         Thread thread = new Thread(() -> {
             try {
                 while (true) {
-                    displayInfos(pieceManager, peerManagerLeecher, myself);
+                    displayInfos(downloads);
                     Thread.sleep(1000L);
                 }
             } catch (InterruptedException e) {
@@ -167,24 +367,26 @@ public class BitTorrentClient {
     /**
      * method that displays information about current peers connected, percentage downloaded
      *
-     * @param pieceManager       PieceManager
-     * @param peerManagerLeecher PeerManager
-     * @param myself             Server
+     * @param downloads torrents of the session
      */
-    private static void displayInfos(PieceManager pieceManager, PeerManager peerManagerLeecher, Server myself) {
-        System.out.println("Liste des pairs connectés :");
-        for (PeerClient p : peerManagerLeecher.getPeers()) {
-            System.out.println(p.getIp() + " : " + p.getPort());
-        }
-        for (PeerClient p : myself.getPeerManager().getPeers()) {
-            System.out.println(p.getIp() + " : " + p.getPort());
-        }
-        System.out.println("Pieces téléchargées à " + pieceManager.getPercentageDownloaded() + "%");
-        for (Piece piece : pieceManager.getPieces()) {
-            for (Block b : piece.getBlocks()) {
-                System.out.println("Piece " + piece.getIndex() + " Bloc " + b.getId() + " : " + b.getBlockState().toString());
+    private static void displayInfos(List<Download> downloads) {
+        for (Download download : downloads) {
+            System.out.println(download.torrent.getFileName() + " - liste des pairs connectés :");
+            for (PeerClient p : download.peerManager.getPeers()) {
+                System.out.println(p.getIp() + " : " + p.getPort());
             }
+            for (PeerClient p : download.myself.getPeerManager().getPeers()) {
+                System.out.println(p.getIp() + " : " + p.getPort());
+            }
+            System.out.println("Pieces téléchargées à " + download.pieceManager.getPercentageDownloaded() + "%");
         }
+        System.out.println("Reçus " + Metrics.counter("net.bytes_in").get() / 1024 + " kB, envoyés "
+                + Metrics.counter("net.bytes_out").get() / 1024 + " kB");
+        Histogram latency = Metrics.histogram("request.latency");
+        System.out.println("Latence des requêtes : p50 " + latency.getPercentile(0.5) / 1000000 + " ms, p99 "
+                + latency.getPercentile(0.99) / 1000000 + " ms");
+        System.out.println("Débit : " + (long) RateLimiter.global().getCurrentRate(RateLimiter.Direction.DOWNLOAD) / 1024 + " kB/s reçus, "
+                + (long) RateLimiter.global().getCurrentRate(RateLimiter.Direction.UPLOAD) / 1024 + " kB/s envoyés");
     }
 
     /**
@@ -218,12 +420,12 @@ public class BitTorrentClient {
      * method that parses arguments on command line
      *
      * @param args string arguments
-     * @return Torrent
+     * @return torrents, in the order of the command line
      * @throws IOException exception
      * @throws NoSuchAlgorithmException exception
      */
-    private static Torrent parseArguments(String[] args) throws IOException, NoSuchAlgorithmException {
-        Torrent t = null;
+    private static List<Torrent> parseArguments(String[] args) throws IOException, NoSuchAlgorithmException {
+        List<Torrent> t = new ArrayList<>();
         for (String argument : args) {
             if (argument.equals("--debug")) {
                 globalLogger.setLevel(Level.INFO);
@@ -231,12 +433,28 @@ public class BitTorrentClient {
                 displayMode = true;
             } else if (argument.contains("-ip=")) {
                 interfaceIP = argument.split("-ip=")[1];
+            } else if (argument.startsWith("--endgame=")) {
+                endgameThreshold = Integer.parseInt(argument.split("--endgame=")[1]);
+            } else if (argument.startsWith("--upload-slots=")) {
+                uploadSlots = Integer.parseInt(argument.split("--upload-slots=")[1]);
+            } else if (argument.startsWith("--metrics=")) {
+                metricsFile = Paths.get(argument.split("--metrics=")[1]);
+            } else if (argument.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(argument.split("--metrics-port=")[1]);
+            } else if (argument.startsWith("--max-upload=")) {
+                RateLimiter.global().setRate(RateLimiter.Direction.UPLOAD, kiloBytes(argument, "--max-upload="));
+            } else if (argument.startsWith("--max-download=")) {
+                RateLimiter.global().setRate(RateLimiter.Direction.DOWNLOAD, kiloBytes(argument, "--max-download="));
+            } else if (argument.startsWith("--peer-max-upload=")) {
+                peerMaxUpload = kiloBytes(argument, "--peer-max-upload=");
+            } else if (argument.startsWith("--peer-max-download=")) {
+                peerMaxDownload = kiloBytes(argument, "--peer-max-download=");
             } else {
                 File torrentFile = new File(argument);
                 if (argument.contains(".torrent")) {
                     if (torrentFile.isFile()) {
                         // torrent file
-                        torrent = torrentFile;
+                        torrents.add(torrentFile);
                     } else {
                         globalLogger.severe("Not a valid torrent file");
                         help();
@@ -250,8 +468,15 @@ public class BitTorrentClient {
                 }
             }
         }
+        if (torrents.isEmpty()) {
+            globalLogger.severe("No torrent file");
+            help();
+            System.exit(1);
+        }
         if (directory != null) {
-            t = new Torrent(torrent, directory, globalLogger.getLevel());
+            for (File torrent : torrents) {
+                t.add(new Torrent(torrent, directory, globalLogger.getLevel()));
+            }
         } else {
             globalLogger.severe("Not a valid download directory");
             help();
@@ -260,16 +485,35 @@ public class BitTorrentClient {
         return t;
     }
 
+    /**
+     * rate given in kB/s on the command line
+     *
+     * @param argument argument
+     * @param option   option name with its '='
+     * @return bytes/s
+     */
+    private static long kiloBytes(String argument, String option) {
+        return Long.parseLong(argument.split(option)[1]) * 1024;
+    }
+
     /**
      * help method displaying help for user
      */
     public static void help() {
-        String help = "java -jar mybittorrent.jar <file.torrent> <download_folder> [--debug] [--info] <-ip=IP_interface>\n";
+        String help = "java -jar mybittorrent.jar <file.torrent>... <download_folder> [--debug] [--info] [--endgame=N] [--upload-slots=N] [--max-upload=N] [--max-download=N] [--peer-max-upload=N] [--peer-max-download=N] [--metrics=FILE] [--metrics-port=N] <-ip=IP_interface>\n";
         help += "\n";
-        help += "<file.torrent>         torrent file you would like to download\n";
+        help += "<file.torrent>...      torrent files you would like to download, all of them on port 6883\n";
         help += "<download_folder>      download folder\n";
         help += "[--debug]              mode debug to see trace\n";
         help += "[--info]               mode info to see every second which peers are connected\n";
+        help += "[--endgame=N]          request the last N blocks from every peer having them (default 32)\n";
+        help += "[--upload-slots=N]     upload to the N peers we download the fastest from, plus one chosen at random (default 4)\n";
+        help += "[--max-upload=N]       limit the upload rate to N kB/s (default unlimited)\n";
+        help += "[--max-download=N]     limit the download rate to N kB/s (default unlimited)\n";
+        help += "[--peer-max-upload=N]  limit the upload rate of every peer to N kB/s (default unlimited)\n";
+        help += "[--peer-max-download=N] limit the download rate of every peer to N kB/s (default unlimited)\n";
+        help += "[--metrics=FILE]       write the metrics every 10 s, as CSV lines appended if FILE ends with .csv, else as JSON\n";
+        help += "[--metrics-port=N]     serve the metrics in JSON on http://127.0.0.1:N/metrics\n";
         help += "<-ip=IP_interface>     select your ip interface where your server will be available (ex : -ip=em1 or -ip=lo0, etc...)\n";
         help += "                       by default it will be lo0\n";
         System.out.println(help);
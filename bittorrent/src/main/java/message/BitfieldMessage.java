@@ -54,7 +54,7 @@ public class BitfieldMessage extends Message {
         return LENGTH_PREFIX_SIZE + FIXED_PAYLOAD_SIZE + bitfield.length;
     }
 
-    private void setBitfield(byte[] bitfield) {
+    void setBitfield(byte[] bitfield) {
         this.bitfield = bitfield;
     }
 
@@ -72,8 +72,8 @@ public class CancelMessage extends Message {
         return lengthPrefix;
     }
 
-    private byte[] createIndex(double index){
-        return ByteBuffer.allocate(4).putDouble(index).array();
+    private byte[] createIndex(int index){
+        return ByteBuffer.allocate(4).putInt(index).array();
     }
 
     private byte[] createBeginOffset(int offSetBegin){
@@ -84,15 +84,27 @@ public class CancelMessage extends Message {
         return ByteBuffer.allocate(4).putInt(pieceLength).array();
     }
 
-    private void setIndex(int index) {
+    void setIndex(int index) {
         this.index = index;
     }
 
-    private void setBegin(int begin) {
+    void setBegin(int begin) {
         this.begin = begin;
     }
 
-    public void setLength(int length) {
+    void setLength(int length) {
         this.length = length;
     }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getBegin() {
+        return begin;
+    }
+
+    public int getLength() {
+        return length;
+    }
 }
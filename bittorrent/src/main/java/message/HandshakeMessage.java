@@ -66,7 +66,7 @@ public class HandshakeMessage extends Message {
         return reserved;
     }
 
-    private void setInfoHash(byte[] infoHash) {
+    void setInfoHash(byte[] infoHash) {
         this.infoHash = infoHash;
     }
 
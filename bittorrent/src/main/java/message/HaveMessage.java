@@ -23,10 +23,7 @@ public class HaveMessage extends Message {
 
     }
 
-    HaveMessage(){
-        super(LENGTH_PREFIX_SIZE);
-        setTypeMessage(TypeMessage.HAVE);
-    }
+    HaveMessage(){setTypeMessage(TypeMessage.HAVE);}
 
     @Override
     public ByteBuffer createByteArray() {
@@ -67,7 +64,7 @@ public class HaveMessage extends Message {
         return ByteBuffer.allocate(4).putInt((int) index).array();
     }
 
-    private void setPieceIndex(int pieceIndex) {
+    void setPieceIndex(int pieceIndex) {
         this.pieceIndex = pieceIndex;
     }
 
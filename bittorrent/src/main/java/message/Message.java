@@ -22,7 +22,9 @@ public abstract class Message {
      *
      * @param messages bytebuffer
      * @return list of messages
+     * @deprecated copies every payload several times, use a MessageDecoder instead
      */
+    @Deprecated
     public static List<Message> parserMessages(ByteBuffer messages) {
         ArrayList<Message> receivedMessages = new ArrayList<>();
         //Parse
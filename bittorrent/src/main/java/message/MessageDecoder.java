@@ -0,0 +1,228 @@
+package message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming decoder for the peer wire protocol
+ * <p>
+ * Bytes are read from the socket straight into the decoder buffer (see getReadBuffer) and
+ * decode() returns every message whose frame is complete. A frame split across several reads
+ * stays in the buffer until the rest of it arrives.
+ * <p>
+ * No payload is copied while decoding : the block of a PieceMessage is a view on the decoder
+ * buffer, so it is only valid until the next call to getReadBuffer() on the same decoder.
+ */
+public class MessageDecoder {
+    private static final int LENGTH_PREFIX_SIZE = 4;
+    private static final int HANDSHAKE_SIZE = 68;
+    private static final int PIECE_HEADER_SIZE = 9;     // 1 (MessageID) + 4 + 4 (index, begin)
+    private static final int HAVE_SIZE = 5;             // 1 (MessageID) + 4 (index)
+    private static final int REQUEST_SIZE = 13;         // 1 (MessageID) + 4 + 4 + 4 (index, begin, length), CANCEL too
+    private static final int MAX_FRAME_SIZE = 1 << 21;  // largest bitfield or block we accept
+    // messages without payload carry no state, received ones can be shared
+    private static final Message CHOKE = new ChokeMessage();
+    private static final Message UNCHOKE = new UnchokeMessage();
+    private static final Message INTERESTED = new InterestedMessage();
+    private static final Message NOT_INTERESTED = new NotInterestedMessage();
+
+    private ByteBuffer buffer;
+    private boolean readMode = false;
+    private int requiredCapacity = 0;
+    private final List<Message> messages = new ArrayList<>();
+
+    public MessageDecoder(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * get the buffer to read bytes from the socket into
+     * bytes of the previous decode() call are discarded, which invalidates the block views handed out
+     *
+     * @return buffer ready for writing
+     */
+    public ByteBuffer getReadBuffer() {
+        if (readMode) {
+            buffer.compact();
+            readMode = false;
+        }
+        if (requiredCapacity > buffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(requiredCapacity);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        return buffer;
+    }
+
+    /**
+     * decode every complete frame present in the buffer
+     * the returned list is reused by the next call
+     *
+     * @return list of messages
+     * @throws IOException if a frame length is invalid, or too short for its message id
+     */
+    public List<Message> decode() throws IOException {
+        messages.clear();
+        flipForReading();
+        while (buffer.remaining() >= LENGTH_PREFIX_SIZE) {
+            int start = buffer.position();
+            int messageLength = buffer.getInt(start);
+            if (messageLength < 0 || messageLength > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid message length : " + messageLength);
+            }
+            if (buffer.remaining() < LENGTH_PREFIX_SIZE + messageLength) {
+                // partial frame, kept for the next read
+                requiredCapacity = LENGTH_PREFIX_SIZE + messageLength;
+                break;
+            }
+            // a zero length is a KeepAlive message, nothing to do
+            if (messageLength > 0) {
+                buffer.position(start + LENGTH_PREFIX_SIZE);
+                Message message = decodeFrame(messageLength);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+            buffer.position(start + LENGTH_PREFIX_SIZE + messageLength);
+        }
+        return messages;
+    }
+
+    /**
+     * decode the handshake at the beginning of the buffer
+     *
+     * @return handshake message or null if the 68 bytes are not received yet
+     */
+    public HandshakeMessage decodeHandshake() {
+        flipForReading();
+        if (buffer.remaining() < HANDSHAKE_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        byte[] infoHash = new byte[20];
+        buffer.position(start + 28);
+        buffer.get(infoHash);
+        buffer.position(start + HANDSHAKE_SIZE);
+        HandshakeMessage handshake = new HandshakeMessage();
+        handshake.setInfoHash(infoHash);
+        return handshake;
+    }
+
+    /**
+     * number of bytes received but not decoded yet
+     *
+     * @return pending bytes
+     */
+    public int getPendingBytes() {
+        return readMode ? buffer.remaining() : buffer.position();
+    }
+
+    private void flipForReading() {
+        if (!readMode) {
+            buffer.flip();
+            readMode = true;
+        }
+    }
+
+    /**
+     * decode a frame, the buffer is positioned on the message id
+     *
+     * @param messageLength length prefix of the frame
+     * @return message or null if the message id is unknown
+     * @throws IOException if the length does not match the message id
+     */
+    private Message decodeFrame(int messageLength) throws IOException {
+        byte id = buffer.get();
+        checkLength(id, messageLength);
+        switch (id) {
+            case 0:
+                return CHOKE;
+            case 1:
+                return UNCHOKE;
+            case 2:
+                return INTERESTED;
+            case 3:
+                return NOT_INTERESTED;
+            case 4:
+                HaveMessage haveMessage = new HaveMessage();
+                haveMessage.setPieceIndex(buffer.getInt());
+                return haveMessage;
+            case 5:
+                BitfieldMessage bitfieldMessage = new BitfieldMessage();
+                byte[] bitfield = new byte[messageLength - 1];
+                buffer.get(bitfield);
+                bitfieldMessage.setBitfield(bitfield);
+                return bitfieldMessage;
+            case 6:
+                RequestMessage requestMessage = new RequestMessage();
+                requestMessage.setIndex(buffer.getInt());
+                requestMessage.setBegin(buffer.getInt());
+                requestMessage.setLength(buffer.getInt());
+                return requestMessage;
+            case 7:
+                PieceMessage pieceMessage = new PieceMessage();
+                pieceMessage.setIndex(buffer.getInt());
+                pieceMessage.setBegin(buffer.getInt());
+                ByteBuffer view = buffer.slice().asReadOnlyBuffer();
+                view.limit(messageLength - PIECE_HEADER_SIZE);
+                pieceMessage.setBlockView(view);
+                return pieceMessage;
+            case 8:
+                CancelMessage cancelMessage = new CancelMessage();
+                cancelMessage.setIndex(buffer.getInt());
+                cancelMessage.setBegin(buffer.getInt());
+                cancelMessage.setLength(buffer.getInt());
+                return cancelMessage;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * check the length of a frame before reading its fields, so they never overlap the next frame
+     *
+     * @param id            message id
+     * @param messageLength length prefix of the frame
+     * @throws IOException if the length does not match the message id
+     */
+    private static void checkLength(byte id, int messageLength) throws IOException {
+        switch (id) {
+            case 0:
+                checkLength(messageLength == 1, "choke");
+                break;
+            case 1:
+                checkLength(messageLength == 1, "unchoke");
+                break;
+            case 2:
+                checkLength(messageLength == 1, "interested");
+                break;
+            case 3:
+                checkLength(messageLength == 1, "not interested");
+                break;
+            case 4:
+                checkLength(messageLength == HAVE_SIZE, "have");
+                break;
+            case 6:
+                checkLength(messageLength == REQUEST_SIZE, "request");
+                break;
+            case 7:
+                checkLength(messageLength >= PIECE_HEADER_SIZE, "piece");
+                break;
+            case 8:
+                checkLength(messageLength == REQUEST_SIZE, "cancel");
+                break;
+            default:
+                // a bitfield has at least its id, the unknown messages are skipped
+                break;
+        }
+    }
+
+    private static void checkLength(boolean valid, String type) throws IOException {
+        if (!valid) {
+            throw new IOException("Invalid " + type + " length");
+        }
+    }
+}
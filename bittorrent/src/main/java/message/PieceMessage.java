@@ -12,7 +12,7 @@ public class PieceMessage extends Message {
     private int index;
     private int begin;
     private byte[] block;
-
+    private ByteBuffer blockView;   // view on the decoder buffer, see MessageDecoder
 
     public PieceMessage(int index, int beginOffset, byte[] block) {
         super(LENGTH_PREFIX_SIZE + FIXED_PAYLOAD_SIZE + block.length);
@@ -29,6 +29,24 @@ public class PieceMessage extends Message {
 
     PieceMessage(){setTypeMessage(TypeMessage.PIECE);}
 
+    /**
+     * header of a piece message, for a block sent apart from it (read from the disk by the kernel)
+     *
+     * @param index       piece index
+     * @param beginOffset block offset
+     * @param blockLength block length
+     * @return buffer in read mode holding length prefix, id, index and begin
+     */
+    public static ByteBuffer createHeader(int index, int beginOffset, int blockLength) {
+        ByteBuffer header = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + FIXED_PAYLOAD_SIZE);
+        header.putInt(FIXED_PAYLOAD_SIZE + blockLength);
+        header.put((byte) MESSAGE_ID);
+        header.putInt(index);
+        header.putInt(beginOffset);
+        header.flip();
+        return header;
+    }
+
     @Override
     public ByteBuffer createByteArray() {
         getBuf().flip();        // prepare for writing message to network
@@ -65,7 +83,7 @@ public class PieceMessage extends Message {
 
     @Override
     public int getSize() {
-        return LENGTH_PREFIX_SIZE + FIXED_PAYLOAD_SIZE + block.length;
+        return LENGTH_PREFIX_SIZE + FIXED_PAYLOAD_SIZE + getBlockLength();
     }
 
     private byte[] createLengthPrefix(byte[] block) {
@@ -80,18 +98,22 @@ public class PieceMessage extends Message {
         return ByteBuffer.allocate(4).putInt(offSetBegin).array();
     }
 
-    private void setIndex(int index) {
+    void setIndex(int index) {
         this.index = index;
     }
 
-    private void setBegin(int begin) {
+    void setBegin(int begin) {
         this.begin = begin;
     }
 
-    private void setBlock(byte[] block) {
+    void setBlock(byte[] block) {
         this.block = block;
     }
 
+    void setBlockView(ByteBuffer blockView) {
+        this.blockView = blockView;
+    }
+
     public int getIndex() {
         return index;
     }
@@ -100,7 +122,35 @@ public class PieceMessage extends Message {
         return begin;
     }
 
+    /**
+     * get block data as a byte array, copied from the decoder buffer on first call
+     * if the message was received through a MessageDecoder
+     *
+     * @return block data
+     */
     public byte[] getBlock() {
+        if (block == null && blockView != null) {
+            block = new byte[blockView.remaining()];
+            blockView.duplicate().get(block);
+        }
         return block;
     }
+
+    /**
+     * get block data without copying it
+     * when the message comes from a MessageDecoder, the returned buffer is a view on the
+     * socket buffer which is only valid until the next read on that decoder
+     *
+     * @return read-only buffer positioned on the block data
+     */
+    public ByteBuffer getBlockBuffer() {
+        if (blockView != null) {
+            return blockView.duplicate();
+        }
+        return ByteBuffer.wrap(block).asReadOnlyBuffer();
+    }
+
+    public int getBlockLength() {
+        return blockView != null ? blockView.remaining() : block.length;
+    }
 }
@@ -59,15 +59,15 @@ public class RequestMessage extends Message {
         return SIZE;
     }
 
-    private void setIndex(int index) {
+    void setIndex(int index) {
         this.index = index;
     }
 
-    private void setBegin(int begin) {
+    void setBegin(int begin) {
         this.begin = begin;
     }
 
-    public void setLength(int length) {
+    void setLength(int length) {
         this.length = length;
     }
 
@@ -0,0 +1,114 @@
+package metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics class
+ * registry of the counters, histograms and gauges of the client, by name
+ * <p>
+ * Metrics are looked up once and kept in fields by the code updating them : recording a value
+ * is a lock-free update of the metric, the registry is only read by the snapshots.
+ * Durations are recorded in ns, names are dot separated, per connection metrics are prefixed
+ * by "peer.address:port." and removed with the connection.
+ */
+public final class Metrics {
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * counter of a name, created on first use
+     *
+     * @param name metric name
+     * @return counter
+     */
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * histogram of a name, created on first use
+     *
+     * @param name metric name
+     * @return histogram
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * register a value read when a snapshot is taken, replacing the previous one of the same name
+     *
+     * @param name  metric name
+     * @param value current value
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * remove every metric whose name starts with a prefix
+     *
+     * @param prefix name prefix
+     */
+    public static void remove(String prefix) {
+        counters.keySet().removeIf(name -> name.startsWith(prefix));
+        histograms.keySet().removeIf(name -> name.startsWith(prefix));
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * current values of every metric, histograms being summarized by their count, mean,
+     * 50th, 90th, 99th percentiles and max
+     *
+     * @return metric name -> value, sorted by name
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.get()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", (long) histogram.getMean());
+            values.put(name + ".p50", histogram.getPercentile(0.5));
+            values.put(name + ".p90", histogram.getPercentile(0.9));
+            values.put(name + ".p99", histogram.getPercentile(0.99));
+            values.put(name + ".max", histogram.getMax());
+        });
+        return values;
+    }
+
+    /**
+     * snapshot as a JSON object
+     *
+     * @param time snapshot time in ms
+     * @return JSON text
+     */
+    public static String toJson(long time) {
+        StringBuilder json = new StringBuilder("{\"time\":").append(time);
+        for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+            json.append(",\"").append(entry.getKey()).append("\":").append(entry.getValue());
+        }
+        return json.append("}\n").toString();
+    }
+
+    /**
+     * snapshot as CSV lines : time,name,value
+     *
+     * @param time snapshot time in ms
+     * @return CSV text
+     */
+    public static String toCsv(long time) {
+        StringBuilder csv = new StringBuilder();
+        for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+            csv.append(time).append(',').append(entry.getKey()).append(',').append(entry.getValue()).append('\n');
+        }
+        return csv.toString();
+    }
+}
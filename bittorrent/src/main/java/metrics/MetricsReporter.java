@@ -0,0 +1,99 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * MetricsReporter class
+ * export of the metrics snapshots, to a file every period and / or on a local HTTP endpoint
+ * <p>
+ * A ".csv" file gets the lines of every snapshot appended, so it holds the time series of the
+ * session, any other file is replaced by the last snapshot in JSON. The HTTP endpoint answers
+ * GET /metrics with the current snapshot in JSON and only listens on the loopback interface.
+ */
+public class MetricsReporter {
+    private static final Logger globalLogger = Logger.getLogger("global");
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics-reporter");
+        t.setDaemon(true);
+        return t;
+    });
+    private HttpServer httpServer;
+
+    /**
+     * write a snapshot to a file every period
+     *
+     * @param file   snapshot file, ".csv" for CSV lines appended, else JSON
+     * @param period period in s
+     */
+    public void startFile(Path file, long period) {
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                write(file);
+            } catch (IOException e) {
+                globalLogger.severe("Metrics : " + e.getMessage());
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * write a snapshot to a file now
+     *
+     * @param file snapshot file, ".csv" for CSV lines appended, else JSON
+     * @throws IOException exception
+     */
+    public static void write(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        if (file.getFileName().toString().endsWith(".csv")) {
+            Files.write(file, Metrics.toCsv(now).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } else {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, Metrics.toJson(now).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * serve the snapshots on http://127.0.0.1:port/metrics
+     *
+     * @param port TCP port
+     * @throws IOException exception
+     */
+    public void startHttp(int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.toJson(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpServer.setExecutor(scheduler);
+        httpServer.start();
+    }
+
+    /**
+     * stop the periodic exports and the HTTP endpoint
+     */
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        scheduler.shutdownNow();
+    }
+}
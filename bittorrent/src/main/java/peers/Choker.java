@@ -0,0 +1,150 @@
+package peers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Choker class
+ * tit-for-tat choice of the incoming connections we upload to
+ * <p>
+ * Every ROUND the interested peers are ranked and the best uploadSlots of them are unchoked :
+ * while downloading, the peers we download the fastest from (on our outgoing connections to
+ * the same address), once seeding the peers we upload the fastest to. One more peer, chosen at
+ * random among the choked ones, is unchoked optimistically and kept for OPTIMISTIC_ROUNDS
+ * rounds, so newcomers get a chance to show their rate and we find better partners.
+ */
+class Choker {
+    static final int DEFAULT_UPLOAD_SLOTS = 4;
+    static final long ROUND = 10000;        // ms between two choke rounds
+    static final int OPTIMISTIC_ROUNDS = 3; // optimistic unchoke rotated every 30 s
+    private int uploadSlots = DEFAULT_UPLOAD_SLOTS;
+    private PeerManager downloadPeers;
+    private ServerConnection optimistic;
+    private int round = 0;
+    private long lastRound = System.currentTimeMillis();
+    private final Random random = new Random();
+
+    /**
+     * check if a new interested peer can be unchoked without waiting for the next round
+     *
+     * @param connections open connections
+     * @return true if less peers than the upload slots plus the optimistic one are unchoked
+     */
+    boolean hasFreeSlot(Collection<ServerConnection> connections) {
+        int unchoked = 0;
+        for (ServerConnection connection : connections) {
+            if (connection.isOpen() && !connection.isChoked()) {
+                unchoked++;
+            }
+        }
+        return unchoked < uploadSlots + 1;
+    }
+
+    /**
+     * choose the peers to unchoke until the next round
+     *
+     * @param connections open connections
+     * @param seeding     true if we have every piece
+     * @param now         current time in ms
+     * @return connections to unchoke, every other one is choked
+     */
+    Set<ServerConnection> rechoke(Collection<ServerConnection> connections, boolean seeding, long now) {
+        long elapsed = Math.max(1, now - lastRound);
+        lastRound = now;
+        updateDownloadRates(elapsed);
+        List<ServerConnection> interested = new ArrayList<>();
+        for (ServerConnection connection : connections) {
+            connection.updateUploadRate(elapsed);
+            if (connection.isInterested()) {
+                interested.add(connection);
+            }
+        }
+        Comparator<ServerConnection> byRate = Comparator.comparingDouble(ServerConnection::getUploadRate);
+        if (!seeding) {
+            Map<ServerConnection, Double> downloadRates = new HashMap<>();
+            for (ServerConnection connection : interested) {
+                downloadRates.put(connection, downloadRate(connection));
+            }
+            byRate = Comparator.comparingDouble((ServerConnection c) -> downloadRates.get(c)).thenComparing(byRate);
+        }
+        interested.sort(byRate.reversed());
+        Set<ServerConnection> unchoke = new HashSet<>(interested.subList(0, Math.min(uploadSlots, interested.size())));
+
+        if (optimistic != null && (!optimistic.isOpen() || !optimistic.isInterested())) {
+            optimistic = null;
+        }
+        if (optimistic == null || round % OPTIMISTIC_ROUNDS == 0 || unchoke.contains(optimistic)) {
+            List<ServerConnection> candidates = new ArrayList<>();
+            for (ServerConnection connection : interested) {
+                if (!unchoke.contains(connection)) {
+                    candidates.add(connection);
+                }
+            }
+            optimistic = candidates.isEmpty() ? null : candidates.get(random.nextInt(candidates.size()));
+        }
+        if (optimistic != null) {
+            unchoke.add(optimistic);
+        }
+        round++;
+        return unchoke;
+    }
+
+    /**
+     * measure the rates of our outgoing connections over the round, as the upload rates are
+     *
+     * @param elapsed time since the previous round in ms
+     */
+    private void updateDownloadRates(long elapsed) {
+        if (downloadPeers == null) {
+            return;
+        }
+        List<PeerClient> peers = downloadPeers.getPeers();
+        synchronized (peers) {
+            for (PeerClient peer : peers) {
+                peer.updateDownloadRate(elapsed);
+            }
+        }
+    }
+
+    /**
+     * rate we download from the address of a connection during the last round, on our outgoing
+     * connections to it
+     *
+     * @param connection incoming connection
+     * @return bytes/s
+     */
+    private double downloadRate(ServerConnection connection) {
+        if (downloadPeers == null) {
+            return 0;
+        }
+        double rate = 0;
+        List<PeerClient> peers = downloadPeers.getPeers();
+        synchronized (peers) {
+            for (PeerClient peer : peers) {
+                if (peer.getIp().equals(connection.getRemoteIp())) {
+                    rate += peer.getDownloadRate();
+                }
+            }
+        }
+        return rate;
+    }
+
+    void setDownloadPeers(PeerManager downloadPeers) {
+        this.downloadPeers = downloadPeers;
+    }
+
+    void setUploadSlots(int uploadSlots) {
+        this.uploadSlots = uploadSlots;
+    }
+
+    int getUploadSlots() {
+        return uploadSlots;
+    }
+}
@@ -0,0 +1,198 @@
+package peers;
+
+import metrics.Histogram;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ClientReactor class and thread
+ * one selector driving every outgoing connection registered on it, each PeerClient
+ * being a connection state machine reacting to OP_CONNECT / OP_READ / OP_WRITE readiness
+ * <p>
+ * Messages are only queued while the events and timers are handled, the peers concerned are
+ * flushed at the end of the pass so a burst of requests leaves in a single gathering write.
+ */
+public class ClientReactor extends Thread {
+    static final long TICK = 100;      // ms between two timers checks
+    private Selector selector;
+    private final ConcurrentLinkedQueue<PeerClient> pendingPeers = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final List<PeerClient> toFlush = new ArrayList<>();
+    private static final Histogram LOOP_TIME = Metrics.histogram("reactor.loop_time");
+    private Logger globalLogger = Logger.getLogger("global");
+
+    public ClientReactor(String name, Level level) throws IOException {
+        super(name);
+        globalLogger.setLevel(level);
+        selector = Selector.open();
+    }
+
+    /**
+     * hand a new peer to the reactor, the connection is opened from the reactor thread
+     *
+     * @param peer peer client
+     */
+    public void register(PeerClient peer) {
+        pendingPeers.add(peer);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        running.set(true);
+        long nextTick = System.currentTimeMillis() + TICK;
+        while (running.get()) {
+            try {
+                selector.select(TICK);
+                long start = System.nanoTime();
+                openPendingPeers();
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey currentKey = keyIterator.next();
+                    keyIterator.remove();
+                    handle(currentKey);
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextTick) {
+                    tick(now);
+                    nextTick = now + TICK;
+                }
+                flushPeers();
+                LOOP_TIME.recordSince(start);
+            } catch (IOException e) {
+                globalLogger.severe(e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * open the connections of the peers registered since the last loop
+     */
+    private void openPendingPeers() {
+        PeerClient peer;
+        while ((peer = pendingPeers.poll()) != null) {
+            try {
+                peer.open(selector);
+                toFlush.add(peer);
+            } catch (IOException e) {
+                globalLogger.info("Connection refused");
+                peer.close();
+            }
+        }
+    }
+
+    /**
+     * dispatch readiness events to the peer attached to the key, an error only closes that peer
+     *
+     * @param key selection key
+     */
+    private void handle(SelectionKey key) {
+        PeerClient peer = (PeerClient) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                peer.onConnectable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                peer.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                peer.onWritable();
+            }
+            toFlush.add(peer);
+        } catch (IOException | InterruptedException | NoSuchAlgorithmException | CancelledKeyException e) {
+            globalLogger.info("Connection closed with " + peer.getIp() + ":" + peer.getPort() + " : " + e.getMessage());
+            peer.close();
+        } catch (RuntimeException e) {
+            globalLogger.log(Level.WARNING, "Connection closed with " + peer.getIp() + ":" + peer.getPort() + " after an unexpected error", e);
+            peer.close();
+        }
+    }
+
+    /**
+     * run timers of every connection : timeouts and new pieces to request
+     *
+     * @param now current time in ms
+     */
+    private void tick(long now) {
+        List<SelectionKey> keys = new ArrayList<>(selector.keys());
+        for (SelectionKey key : keys) {
+            PeerClient peer = (PeerClient) key.attachment();
+            if (!key.isValid()) {
+                continue;
+            }
+            try {
+                peer.onTick(now);
+                toFlush.add(peer);
+            } catch (IOException | CancelledKeyException e) {
+                globalLogger.info("Connection closed with " + peer.getIp() + ":" + peer.getPort() + " : " + e.getMessage());
+                peer.close();
+            } catch (RuntimeException e) {
+                globalLogger.log(Level.WARNING, "Connection closed with " + peer.getIp() + ":" + peer.getPort() + " after an unexpected error", e);
+                peer.close();
+            }
+        }
+    }
+
+    /**
+     * write the messages queued by the peers handled during this pass
+     */
+    private void flushPeers() {
+        for (PeerClient peer : toFlush) {
+            try {
+                peer.flushQueued();
+            } catch (IOException | CancelledKeyException e) {
+                globalLogger.info("Connection closed with " + peer.getIp() + ":" + peer.getPort() + " : " + e.getMessage());
+                peer.close();
+            } catch (RuntimeException e) {
+                globalLogger.log(Level.WARNING, "Connection closed with " + peer.getIp() + ":" + peer.getPort() + " after an unexpected error", e);
+                peer.close();
+            }
+        }
+        toFlush.clear();
+    }
+
+    /**
+     * close every connection of the reactor and its selector once the event loop has stopped
+     */
+    private void closeAll() {
+        List<PeerClient> peers = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            peers.add((PeerClient) key.attachment());
+        }
+        peers.addAll(pendingPeers);
+        pendingPeers.clear();
+        for (PeerClient peer : peers) {
+            try {
+                peer.close();
+            } catch (RuntimeException e) {
+                globalLogger.log(Level.WARNING, "Connection with " + peer.getIp() + ":" + peer.getPort() + " not closed", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            globalLogger.info(e.getMessage());
+        }
+    }
+
+    /**
+     * stop the event loop
+     */
+    public void shutdown() {
+        running.set(false);
+        selector.wakeup();
+    }
+}
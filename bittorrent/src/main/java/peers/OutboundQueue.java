@@ -0,0 +1,271 @@
+package peers;
+
+import metrics.Metrics;
+import pieces.Storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OutboundQueue class
+ * bytes waiting to be written on a non-blocking socket, flushed when the socket is writable
+ * <p>
+ * The queue holds buffers and file regions, regions being sent from the storage with
+ * transferTo. The buffers following each other at the head of the queue are written with a
+ * single gathering write : the connections only flush at the end of an event loop pass, so
+ * the control messages and requests queued during the pass leave in one system call.
+ * Write calls and entries written are counted over every queue.
+ * <p>
+ * The block data queued (file regions and payload buffers) is counted once written, the bytes
+ * dropped by clear are not : this is what the peer has really been sent.
+ */
+public class OutboundQueue {
+    static final int MAX_GATHER = 64;      // buffers written by one gathering write
+    private final Deque<Object> entries = new ArrayDeque<>();     // ByteBuffer or FileRegion
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private long queuedBytes = 0;
+    private final Deque<long[]> payloads = new ArrayDeque<>();    // block data ranges {start, end} in the bytes added
+    private long addedBytes = 0;            // bytes added since the queue creation
+    private long writtenBytes = 0;          // bytes written or dropped since the queue creation
+    private long payloadWritten = 0;        // block data bytes written
+    private boolean socketFull = false;     // the last write did not take every byte offered
+    private static final AtomicLong writeCalls = new AtomicLong();
+    private static final AtomicLong entriesWritten = new AtomicLong();
+    private static final AtomicLong totalQueuedBytes = new AtomicLong();     // over every queue
+
+    static {
+        Metrics.gauge("net.outbound_queued", totalQueuedBytes::get);
+        Metrics.gauge("net.write_calls", writeCalls::get);
+        Metrics.gauge("net.write_calls_saved", OutboundQueue::getWriteCallsSaved);
+    }
+
+    /**
+     * bytes of the storage to send without copying them, see Storage.transferTo
+     */
+    private static final class FileRegion {
+        private final Storage storage;
+        private long offset;
+        private int remaining;
+
+        private FileRegion(Storage storage, long offset, int length) {
+            this.storage = storage;
+            this.offset = offset;
+            this.remaining = length;
+        }
+    }
+
+    /**
+     * add a buffer ready to be written at the end of the queue
+     *
+     * @param buffer buffer in read mode
+     */
+    public void add(ByteBuffer buffer) {
+        entries.addLast(buffer);
+        addedBytes += buffer.remaining();
+        queuedBytes += buffer.remaining();
+        totalQueuedBytes.addAndGet(buffer.remaining());
+    }
+
+    /**
+     * add block data ready to be written at the end of the queue, counted in getPayloadWritten
+     *
+     * @param buffer buffer in read mode
+     */
+    public void addPayload(ByteBuffer buffer) {
+        payloads.addLast(new long[]{addedBytes, addedBytes + buffer.remaining()});
+        add(buffer);
+    }
+
+    /**
+     * add bytes of the storage at the end of the queue
+     *
+     * @param storage storage
+     * @param offset  offset in the storage
+     * @param length  number of bytes
+     */
+    public void add(Storage storage, long offset, int length) {
+        entries.addLast(new FileRegion(storage, offset, length));
+        payloads.addLast(new long[]{addedBytes, addedBytes + length});
+        addedBytes += length;
+        queuedBytes += length;
+        totalQueuedBytes.addAndGet(length);
+    }
+
+    /**
+     * write as many bytes as the socket accepts without blocking
+     *
+     * @param socket socket channel
+     * @return true if the queue is empty after the write
+     * @throws IOException exception
+     */
+    public boolean flush(SocketChannel socket) throws IOException {
+        flush(socket, Long.MAX_VALUE);
+        return entries.isEmpty();
+    }
+
+    /**
+     * write as many bytes as the socket accepts without blocking, up to a budget
+     *
+     * @param socket socket channel
+     * @param budget maximum number of bytes to write, see RateLimiter
+     * @return number of bytes written
+     * @throws IOException exception
+     */
+    public long flush(SocketChannel socket, long budget) throws IOException {
+        long written = 0;
+        while (!entries.isEmpty() && written < budget) {
+            long sent = entries.peekFirst() instanceof FileRegion
+                    ? transfer(socket, budget - written) : write(socket, budget - written);
+            written += sent;
+            if (socketFull) {
+                break;
+            }
+        }
+        totalQueuedBytes.addAndGet(-written);
+        countPayload(written);
+        return written;
+    }
+
+    /**
+     * add the block data among the bytes just written to payloadWritten
+     *
+     * @param written number of bytes written
+     */
+    private void countPayload(long written) {
+        long from = writtenBytes;
+        writtenBytes += written;
+        while (!payloads.isEmpty() && payloads.peekFirst()[0] < writtenBytes) {
+            long[] range = payloads.peekFirst();
+            payloadWritten += Math.min(range[1], writtenBytes) - Math.max(range[0], from);
+            if (range[1] > writtenBytes) {
+                break;
+            }
+            payloads.pollFirst();
+        }
+    }
+
+    /**
+     * gathering write of the buffers at the head of the queue
+     *
+     * @param socket socket channel
+     * @param budget maximum number of bytes to write
+     * @return number of bytes written
+     * @throws IOException exception
+     */
+    private long write(SocketChannel socket, long budget) throws IOException {
+        int count = 0;
+        long gathered = 0;
+        for (Object entry : entries) {
+            if (count == MAX_GATHER || gathered >= budget || !(entry instanceof ByteBuffer)) {
+                break;
+            }
+            gather[count++] = (ByteBuffer) entry;
+            gathered += ((ByteBuffer) entry).remaining();
+        }
+        // the last buffer is cut to the budget for this write
+        ByteBuffer last = gather[count - 1];
+        int limit = last.limit();
+        if (gathered > budget) {
+            last.limit((int) (limit - (gathered - budget)));
+        }
+        long sent = socket.write(gather, 0, count);
+        socketFull = sent < Math.min(gathered, budget);
+        last.limit(limit);
+        queuedBytes -= sent;
+        writeCalls.incrementAndGet();
+        boolean complete = true;
+        int written = 0;
+        for (int i = 0; i < count; i++) {
+            if (!complete || gather[i].hasRemaining()) {
+                complete = false;
+            } else {
+                entries.pollFirst();
+                written++;
+            }
+            gather[i] = null;
+        }
+        entriesWritten.addAndGet(written);
+        return sent;
+    }
+
+    /**
+     * send the file region at the head of the queue
+     *
+     * @param socket socket channel
+     * @param budget maximum number of bytes to send
+     * @return number of bytes sent
+     * @throws IOException exception
+     */
+    private long transfer(SocketChannel socket, long budget) throws IOException {
+        FileRegion region = (FileRegion) entries.peekFirst();
+        int length = (int) Math.min(region.remaining, budget);
+        long sent = region.storage.transferTo(region.offset, length, socket);
+        socketFull = sent < length;
+        writeCalls.incrementAndGet();
+        region.offset += sent;
+        region.remaining -= sent;
+        queuedBytes -= sent;
+        if (region.remaining == 0) {
+            entries.pollFirst();
+            entriesWritten.incrementAndGet();
+        }
+        return sent;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * block data bytes written on the socket, header and control messages excluded
+     *
+     * @return bytes written
+     */
+    public long getPayloadWritten() {
+        return payloadWritten;
+    }
+
+    /**
+     * number of write and transferTo calls made by every queue
+     *
+     * @return write calls
+     */
+    public static long getWriteCalls() {
+        return writeCalls.get();
+    }
+
+    /**
+     * number of buffers (messages, piece headers) and file regions completely written by every queue
+     *
+     * @return entries written
+     */
+    public static long getEntriesWritten() {
+        return entriesWritten.get();
+    }
+
+    /**
+     * write calls saved by the gathering writes : one call per buffer and per file region
+     * would have been made without them
+     *
+     * @return write calls saved
+     */
+    public static long getWriteCallsSaved() {
+        return Math.max(0, entriesWritten.get() - writeCalls.get());
+    }
+
+    public void clear() {
+        totalQueuedBytes.addAndGet(-queuedBytes);
+        entries.clear();
+        payloads.clear();
+        writtenBytes = addedBytes;
+        queuedBytes = 0;
+    }
+}
@@ -1,14 +1,12 @@
 package peers;
 
 import message.Message;
-import message.TypeMessage;
 import pieces.PieceManager;
 import pieces.Torrent;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,7 +21,6 @@ public abstract class Peer extends Thread{
     protected PieceManager pieceManager;
     protected PeerManager peerManager;
     Logger globalLogger = Logger.getLogger("global");
-    protected HashMap<TypeMessage, Boolean> messageReceivedFromPeerHistory;
 
 
     public Peer(String ip, int port, PeerManager peerManager, PieceManager m, Torrent t, Level level) {
@@ -40,23 +37,6 @@ public abstract class Peer extends Thread{
     }
 
 
-    /**
-     * reverse string character by character
-     *
-     * @param str string word
-     * @return reversed word
-     */
-    static String reverseWord(String str) {
-        String[] words = str.split("\\s");
-        StringBuilder reverseWord = new StringBuilder();
-        for (String w : words) {
-            StringBuilder sb = new StringBuilder(w);
-            sb.reverse();
-            reverseWord.append(sb.toString()).append(" ");
-        }
-        return reverseWord.toString().trim();
-    }
-
     /**
      * generate a random peer id
      *
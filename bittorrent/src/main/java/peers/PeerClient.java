@@ -1,193 +1,352 @@
 package peers;
 
 import message.*;
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
 import pieces.*;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
  * PeerClient Class
+ * state of an outgoing connection, driven by the ClientReactor it is registered on
  */
 public class PeerClient extends Peer {
+    private enum Phase {CONNECTING, HANDSHAKE, BITFIELD, DOWNLOAD, CLOSED}
+
+    private static final int BUFF_SIZE = 65536;
+    private static final long TIMEOUT = 10000;
+    private static final long REQUEST_TIMEOUT = 10000000000L;     // ns, a request not answered in time snubs the peer
     private StateMachine state;
     private SocketChannel socket;
-    private List<Integer> bitfield = new ArrayList<>();
-    private List<RequestMessage> pieces = new ArrayList<>();
+    private SelectionKey key;
+    private Phase phase = Phase.CONNECTING;
+    private boolean closing = false;
+    private boolean flushPending = false;
+    private final RateLimiter rateLimiter;
+    private static final Counter BYTES_IN = Metrics.counter("net.bytes_in");
+    private static final Counter BYTES_OUT = Metrics.counter("net.bytes_out");
+    private static final Histogram REQUEST_LATENCY = Metrics.histogram("request.latency");
+    private Counter peerBytesIn;
+    private Counter peerBytesOut;
+    private boolean readThrottled = false;
+    private long lastReceived;
+    private MessageDecoder decoder;         // created with the connection, in open
+    private OutboundQueue outbound;
+    private Bitfield bitfield;
+    private RequestPipeline pipeline = new RequestPipeline();
+    private final AtomicLong downloaded = new AtomicLong(0);     // bytes of the blocks received, written by the reactor
+    private long downloadedAtLastRound = 0;      // read by the choker only
+    private volatile double downloadRate = 0;    // bytes/s over the last choke round
+    private Piece currentPiece;
+    private Iterator<Block> blocksToRequest;
+    private boolean snubbed = false;        // requests timed out : nothing more is asked until a block arrives
+    private final ConcurrentLinkedQueue<CancelMessage> cancelsToSend = new ConcurrentLinkedQueue<>();
     private AtomicBoolean completed = new AtomicBoolean(false);
     private AtomicBoolean bitfieldSet = new AtomicBoolean(false);
 
     public PeerClient(String ip, int port, PeerManager peerManager, PieceManager m, Torrent t, Level l) {
         super(ip, port, peerManager, m, t, l);
         state = new StateMachine();
-        initMessageReceivedHistory();
+        bitfield = new Bitfield(m.getNbPieces());
+        rateLimiter = peerManager.getRateLimiter().newPeerLimiter();
+    }
+
+    @Override
+    protected boolean connect() throws IOException {
+        socket = SocketChannel.open();
+        // Set socketChannel to nonblocking
+        socket.configureBlocking(false);
+        return socket.connect(new InetSocketAddress(ip, port));
+    }
+
+    /**
+     * open the connection and register it on the reactor selector
+     *
+     * @param selector selector of the reactor
+     * @throws IOException exception
+     */
+    void open(Selector selector) throws IOException {
+        peerBytesIn = Metrics.counter(metricsPrefix() + "bytes_in");
+        peerBytesOut = Metrics.counter(metricsPrefix() + "bytes_out");
         pieceManager.getSelectionPieces().initBitfieldForPeer(this);
+        decoder = new MessageDecoder(BUFF_SIZE);
+        outbound = new OutboundQueue();
+        lastReceived = System.currentTimeMillis();
+        boolean connected = connect();
+        key = socket.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+        if (connected) {
+            onConnected();
+        }
     }
 
     /**
-     * Method that builds the hashMap for the message history
+     * OP_CONNECT : finish the connection
+     *
+     * @throws IOException exception
      */
-    private void initMessageReceivedHistory(){
-        this.messageReceivedFromPeerHistory = new HashMap<>();
-        for(TypeMessage typMessage : TypeMessage.values()) {
-            this.messageReceivedFromPeerHistory.put(typMessage, false);
+    void onConnectable() throws IOException {
+        if (socket.finishConnect()) {
+            onConnected();
         }
     }
 
-    @Override
-    protected boolean connect(){
-        try {
-            socket = SocketChannel.open();
-            // Set socketChannel to nonblocking
-            socket.configureBlocking(false);
-            if (!socket.connect(new InetSocketAddress(ip, port))) {
-                while (!socket.finishConnect()) {
-                    globalLogger.info("... Connexion ...");
+    /**
+     * connection established : send Handshake and wait for the peer handshake
+     *
+     * @throws IOException exception
+     */
+    private void onConnected() throws IOException {
+        globalLogger.info("Socket connected ? " + socket.isConnected());
+        phase = Phase.HANDSHAKE;
+        key.interestOps(SelectionKey.OP_READ);
+        send(new HandshakeMessage(file.getInfoHash(), id), this.socket);
+    }
+
+    /**
+     * OP_READ : decode what has been received and react to every message
+     *
+     * @throws IOException              exception
+     * @throws InterruptedException     exception
+     * @throws NoSuchAlgorithmException exception
+     */
+    void onReadable() throws IOException, InterruptedException, NoSuchAlgorithmException {
+        long allowed = rateLimiter.allowance(RateLimiter.Direction.DOWNLOAD, BUFF_SIZE);
+        if (allowed == 0) {
+            // no download tokens left : the socket is read again from onTick once there are
+            readThrottled = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        ByteBuffer buffer = decoder.getReadBuffer();
+        int limit = buffer.limit();
+        if (allowed < buffer.remaining()) {
+            buffer.limit(buffer.position() + (int) allowed);
+        }
+        int bitsReceived = socket.read(buffer);
+        buffer.limit(limit);
+        if (bitsReceived == -1) {
+            close();
+            return;
+        }
+        rateLimiter.consume(RateLimiter.Direction.DOWNLOAD, bitsReceived);
+        BYTES_IN.add(bitsReceived);
+        peerBytesIn.add(bitsReceived);
+        lastReceived = System.currentTimeMillis();
+        if (phase == Phase.HANDSHAKE) {
+            // bytes following the handshake (bitfield, have) stay in the decoder
+            HandshakeMessage m = decoder.decodeHandshake();
+            if (m == null) {
+                return;
+            }
+            if (!Arrays.equals(m.getInfoHash(), file.getInfoHash())) {
+                close();
+                return;
+            }
+            globalLogger.info("handshake reçu de " + port);
+            phase = Phase.BITFIELD;
+        }
+        for (Message message : decoder.decode()) {
+            if (message instanceof BitfieldMessage) {
+                getBitfield(message);
+                if (phase == Phase.BITFIELD) {
+                    startDownload();
                 }
-                // Test de la connexion
-                globalLogger.info("Socket connected ? " + socket.isConnected());
-                return true;
+            } else if (message instanceof ChokeMessage)
+                getChoke();
+            else if (message instanceof UnchokeMessage)
+                state.receiveUnChoke();
+            else if (message instanceof HaveMessage)
+                getHave(message);
+            else if (message instanceof PieceMessage)
+                getPiece(message);
+            if (phase == Phase.CLOSED) {
+                return;
             }
-            return false;
-        } catch (IOException e){
-            globalLogger.info("Connection refused");
-            return false;
         }
+        requestPieces();
     }
 
-    @Override
-    public void run() {
-        try {
-            if (connect()){
-                // send Handshake
-                send (new HandshakeMessage(file.getInfoHash(), id), this.socket);
-                // receive handshake
-                if (receiveHandshake()){
-                    globalLogger.info("handshake reçu de " + port);
-                    // receive Bitfield ou Have
-                    receive();
-                    globalLogger.info("Pieces disponibles : " + bitfield + " de " + port);
-                    if (!bitfield.isEmpty()){
-                        // set bitfield of this peer to the selection class with the combined information, we will know which pieces to ask from this peer
-                        setBitfield();
-                        // send interested
-                        state.sendInterested(this);
-                        // receive unchoke
-                        state.receiveUnChoke(this);
-                        // request pieces from this peer
-                        state.getPiece(this);
-                        // send not interested
-                        state.sendNotInterested(this);
+    /**
+     * OP_WRITE : write what is left in the outbound queue
+     *
+     * @throws IOException exception
+     */
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * timers of the connection, called by the reactor every tick
+     *
+     * @param now current time in ms
+     * @throws IOException exception
+     */
+    void onTick(long now) throws IOException {
+        if (readThrottled && rateLimiter.allowance(RateLimiter.Direction.DOWNLOAD, BUFF_SIZE) > 0) {
+            readThrottled = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        switch (phase) {
+            case CONNECTING:
+            case HANDSHAKE:
+                if (now - lastReceived > TIMEOUT) {
+                    close();
+                }
+                break;
+            case BITFIELD:
+                // no bitfield received, we go on with the have messages received if any
+                if (now - lastReceived > TIMEOUT) {
+                    startDownload();
+                }
+                break;
+            case DOWNLOAD:
+                List<int[]> expired = pipeline.expire(System.nanoTime(), REQUEST_TIMEOUT);
+                if (!expired.isEmpty()) {
+                    // the blocks are left to the other peers
+                    snubbed = true;
+                    releaseRequests(expired);
+                }
+                if (snubbed && pipeline.isEmpty() && now - lastReceived > TIMEOUT) {
+                    // snubbed and silent since
+                    close();
+                } else if (completed.get() && pipeline.isEmpty()) {
+                    // nothing left to ask from this peer
+                    state.sendNotInterested(this);
+                    closing = true;
+                    if (outbound.isEmpty()) {
+                        close();
                     }
+                } else {
+                    requestPieces();
                 }
-            }
-            quit();
-        } catch (IOException | InterruptedException | NoSuchAlgorithmException e) {
-            globalLogger.severe(e.getMessage());
-            try {
-                quit();
-            } catch (IOException ex) {
-                globalLogger.severe(ex.getMessage());
-            }
+                break;
+            default:
+                break;
         }
     }
 
     /**
-     * get bits from byte array
+     * bitfield of the peer known : send interested if it has pieces, else quit
      *
-     * @param data byte array
-     * @return string
+     * @throws IOException exception
      */
-    private static String getBit(byte[] data) {
-        StringBuilder bitsString = new StringBuilder();
-        for (byte b : data) {
-            for (int mask = 0x01; mask != 0x100; mask <<= 1) {
-                boolean value = (b & mask) != 0;
-                if (value) {
-                    bitsString.append(1);
-                } else {
-                    bitsString.append(0);
-                }
+    private void startDownload() throws IOException {
+        globalLogger.info("Pieces disponibles : " + bitfield + " de " + port);
+        if (!bitfield.hasPieceNotIn(pieceManager.getPiecesBitfield())) {
+            close();
+            return;
+        }
+        // set bitfield of this peer to the selection class with the combined information, we will know which pieces to ask from this peer
+        setBitfield();
+        // send interested
+        state.sendInterested(this);
+        phase = Phase.DOWNLOAD;
+    }
 
+    /**
+     * fill the request window with the next blocks selected for this peer
+     *
+     * @throws IOException exception
+     */
+    private void requestPieces() throws IOException {
+        if (phase != Phase.DOWNLOAD) {
+            return;
+        }
+        sendCancels();
+        if (snubbed || !state.canRequest() || !pieceManager.getSelectionPieces().getDone().get()) {
+            return;
+        }
+        while (!pipeline.isFull()) {
+            Block block = nextBlockToRequest();
+            if (block == null) {
+                return;
             }
+            requestBlock(currentPiece.getIndex(), block);
         }
-        return bitsString.toString();
     }
 
     /**
-     * request pieces method which iterate over pieces to ask
+     * next block of the pieces selected for this peer which is neither received nor already requested,
+     * the blocks requested from another peer being left to it outside the endgame
+     *
+     * @return block or null if there is nothing left to request
      */
-    public void requestPieces() throws IOException, InterruptedException, NoSuchAlgorithmException {
-        while (!completed.get()) {
-            while (!pieceManager.getSelectionPieces().getDone().get()) {
+    private Block nextBlockToRequest() {
+        while (true) {
+            while (blocksToRequest != null && blocksToRequest.hasNext()) {
+                Block block = blocksToRequest.next();
+                if (block.getBlockState() == BlockState.EMPTY
+                        && !pipeline.contains(currentPiece.getIndex(), block.getId() * Piece.BLOCK_SIZE)) {
+                    return block;
+                }
             }
-            Iterator<Map.Entry<Piece, List<Block>>> it = pieceManager.getSelectionPieces().selectPiecesToAskFromPeer(this).entrySet().iterator();
-            int size = pieceManager.getSelectionPieces().selectPiecesToAskFromPeer(this).entrySet().size();
-            requestMaximumPieces(it, size);
-            if (size <= pieceManager.getMaxPiecesToAskEachTime() && size != 0) {
-                requestLastPieces(it);
+            Piece piece = pieceManager.getSelectionPieces().nextPieceToAsk(this);
+            if (piece == null) {
+                blocksToRequest = null;
+                return pieceManager.getSelectionPieces().isEndgame() ? nextEndgameBlock() : null;
             }
+            currentPiece = piece;
+            blocksToRequest = piece.getBlocks().iterator();
         }
     }
 
     /**
-     * request last pieces method which request all the last pieces and after wait for receive
+     * endgame : any block still missing that this peer has, even if it is requested from another peer
      *
-     * @param it iterator over pieces to ask
-     * @throws IOException              exception
-     * @throws InterruptedException     exception
-     * @throws NoSuchAlgorithmException exception
+     * @return block or null if this peer has none of the missing blocks
      */
-    private void requestLastPieces(Iterator<Map.Entry<Piece, List<Block>>> it) throws IOException, InterruptedException, NoSuchAlgorithmException {
-        while (it.hasNext()) {
-            if (!pieceManager.getSelectionPieces().getMaj(this)) {
-                Map.Entry<Piece, List<Block>> pair = it.next();
-                requestPiece(pair.getKey().getIndex(), pair.getValue());
-                it.remove();
-            } else {
-                pieceManager.getSelectionPieces().setMaj(this, false);
-                pieces.clear();
-                break;
+    private Block nextEndgameBlock() {
+        for (Piece piece : pieceManager.getSelectionPieces().getEndgamePieces()) {
+            if (piece.isCompleted() || !pieceManager.getSelectionPieces().hasPiece(this, piece)) {
+                continue;
+            }
+            for (Block block : piece.getBlocks()) {
+                if (block.getBlockState() != BlockState.FULL
+                        && !pipeline.contains(piece.getIndex(), block.getId() * Piece.BLOCK_SIZE)) {
+                    currentPiece = piece;
+                    return block;
+                }
             }
         }
-        if (!it.hasNext()) {
-            receive();
-        }
+        return null;
     }
 
     /**
-     * request maximum pieces method which request max pieces in one shot and wait for receive after
+     * ask this peer to cancel a request, the block has been received from another peer
+     * may be called from any thread, the cancel is sent from the reactor thread
      *
-     * @param it   iterator over pieces to ask
-     * @param size asking pieces map size
-     * @throws IOException              exception
-     * @throws InterruptedException     exception
-     * @throws NoSuchAlgorithmException exception
+     * @param index  piece index
+     * @param begin  block offset
+     * @param length block length
      */
-    private void requestMaximumPieces(Iterator<Map.Entry<Piece, List<Block>>> it, int size) throws IOException, InterruptedException, NoSuchAlgorithmException {
-        int i = 0;
-        while (it.hasNext() && size > pieceManager.getMaxPiecesToAskEachTime()) {
-            Map.Entry<Piece, List<Block>> pair = it.next();
-            if (!pieceManager.getSelectionPieces().getMaj(this)) {
-                if (i < pieceManager.getMaxPiecesToAskEachTime()) {
-                    requestPiece(pair.getKey().getIndex(), pair.getValue());
-                    it.remove();
-                    i++;
-                } else {
-                    receive();
-                    i = 0;
-                }
-            } else {
-                pieceManager.getSelectionPieces().setMaj(this, false);
-                pieces.clear();
-                break;
+    public void cancelRequest(int index, int begin, int length) {
+        cancelsToSend.add(new CancelMessage(index, begin, length));
+    }
+
+    /**
+     * send a cancel message for the blocks received from other peers which are still requested to this one
+     *
+     * @throws IOException exception
+     */
+    private void sendCancels() throws IOException {
+        CancelMessage cancel;
+        while ((cancel = cancelsToSend.poll()) != null) {
+            if (pipeline.remove(cancel.getIndex(), cancel.getBegin())) {
+                send(cancel, this.socket);
+                pieceManager.getSelectionPieces().addCancelSent();
             }
         }
     }
@@ -196,196 +355,177 @@ public class PeerClient extends Peer {
      * set bitfield for this peer
      */
     private void setBitfield() {
-        for (Integer i : bitfield) {
-            pieceManager.getSelectionPieces().setBitfield(pieceManager.getPieces().get(i), this);
-        }
+        pieceManager.getSelectionPieces().setBitfield(bitfield, this);
         bitfieldSet.getAndSet(true);
     }
 
     /**
-     * send request messages for a specific piece
+     * send a request message for a block and add it to the request window
      *
      * @param p     piece index
-     * @param value blocks within the piece
+     * @param block block within the piece
      * @throws IOException exception
      */
-    private void requestPiece(Integer p, List<Block> value) throws IOException {
-        for (Block val : value) {
-            val.setBlockState(BlockState.PENDING);
-            send(new RequestMessage(p, val.getId() * Piece.BLOCK_SIZE, (int) val.getBlockSize()), this.socket);
-            pieces.add(new RequestMessage(p, val.getId() * Piece.BLOCK_SIZE, (int) val.getBlockSize()));
-        }
+    private void requestBlock(int p, Block block) throws IOException {
+        block.setBlockState(BlockState.PENDING);
+        send(new RequestMessage(p, block.getId() * Piece.BLOCK_SIZE, (int) block.getBlockSize()), this.socket);
+        pipeline.sent(p, block.getId() * Piece.BLOCK_SIZE, System.nanoTime());
     }
 
     /**
-     * quitting method
+     * queue a message, written by the reactor at the end of its pass with the other messages queued
      *
-     * @throws IOException exception
+     * @param message message
+     * @param socket  socket
      */
-    private void quit() throws IOException {
-        setCompleted(true);
-        pieceManager.getSelectionPieces().removePeer(this);
-        peerManager.removePeer(this);
-        socket.close();
+    @Override
+    protected void send(Message message, SocketChannel socket) {
+        outbound.add(message.createByteArray());
+        flushPending = true;
     }
 
     /**
-     * receive method which listens on the socket
+     * write the messages queued since the last flush, called by the reactor
      *
-     * @throws IOException              exception
-     * @throws InterruptedException     exception
-     * @throws NoSuchAlgorithmException exception
+     * @throws IOException exception
      */
-    void receive() throws IOException, InterruptedException, NoSuchAlgorithmException {
-        boolean complete = false;
-        long time = System.currentTimeMillis();
-        long newTime = System.currentTimeMillis();
-        ByteBuffer buf = ByteBuffer.allocateDirect(PieceManager.MAX_SIZE);
-        while (!complete) {
-            long dif = newTime - time;
-            if (dif > 10000) {
-                break;
-            }
-            int bitsReceived = socket.read(buf);
-            if (bitsReceived == -1) {
-                return;
-            }
-            if (bitsReceived > 0) {
-                for (Message message : Message.parserMessages(buf)) {
-                    if (message instanceof BitfieldMessage) {
-                        complete = getBitfield(message);
-                        break;
-                    } else if (message instanceof ChokeMessage)
-                        complete = getChoke();
-                    else if (message instanceof UnchokeMessage)
-                        complete = true;
-                    else if (message instanceof HaveMessage)
-                        getHave(message);
-                    else if (message instanceof PieceMessage)
-                        complete = getPiece(message);
-                }
-            } else {
-                newTime = System.currentTimeMillis();
-            }
+    void flushQueued() throws IOException {
+        if (flushPending && phase != Phase.CLOSED) {
+            flushPending = false;
+            flush();
         }
     }
 
     /**
-     * receiving choke message and updating our current state
+     * flush the outbound queue, OP_WRITE stays registered while bytes are left
      *
-     * @return true
-     * @throws InterruptedException     exception
-     * @throws NoSuchAlgorithmException exception
-     * @throws IOException              exception
+     * @throws IOException exception
      */
-    private boolean getChoke() throws InterruptedException, NoSuchAlgorithmException, IOException {
-        state.receiveChoke();
-        state.receiveUnChoke(this);
-        pieces.clear();
-        return true;
+    private void flush() throws IOException {
+        // requests and control messages are counted in the upload rate but never held back
+        long written = outbound.flush(socket, Long.MAX_VALUE);
+        rateLimiter.consume(RateLimiter.Direction.UPLOAD, written);
+        BYTES_OUT.add(written);
+        peerBytesOut.add(written);
+        if (outbound.isEmpty()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing) {
+                close();
+            }
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
     }
 
     /**
-     * receiving bloc message and adding this bloc to PieceManager
-     *
-     * @param m pieceMessage
-     * @return true if we have finished to receive pieces
-     * @throws InterruptedException     exception
-     * @throws NoSuchAlgorithmException exception
-     * @throws IOException              exception
+     * quitting method
      */
-    private boolean getPiece(Message m) throws InterruptedException, NoSuchAlgorithmException, IOException {
-        removeBlockFromAsked((PieceMessage) m);
-        pieceManager.addBlock((PieceMessage) m);
-        return checkCompleted();
+    void close() {
+        if (phase == Phase.CLOSED) {
+            return;
+        }
+        phase = Phase.CLOSED;
+        setCompleted(true);
+        releaseRequests(pipeline.clear());
+        pieceManager.getSelectionPieces().removePeer(this);
+        peerManager.removePeer(this);
+        if (outbound != null) {
+            outbound.clear();
+        }
+        Metrics.remove(metricsPrefix());
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            globalLogger.severe(e.getMessage());
+        }
     }
 
     /**
-     * receiving have message and updating bitfield
-     *
-     * @param m HaveMessage
+     * receiving choke message and updating our current state
      */
-    private void getHave(Message m) {
-        bitfield.add(((HaveMessage) m).getPieceIndex());
-        setBitfield();
+    private void getChoke() {
+        state.receiveChoke();
+        // a choke discards every request sent
+        releaseRequests(pipeline.clear());
     }
 
     /**
-     * receiving bitfield message and updating peer bitfield
+     * requests dropped without an answer : their blocks go back to EMPTY and their pieces, with the
+     * piece being requested, back to the selection to be asked again at once
      *
-     * @param m BitfieldMessage
-     * @return true
+     * @param requests requests dropped from the pipeline, as {index, begin} pairs
      */
-    private boolean getBitfield(Message m) {
-        long sizeBitfield = (long) Math.ceil(pieceManager.getNbPieces() / 8f);
-        byte[] field = Arrays.copyOfRange(((BitfieldMessage) m).getBitfield(), 0, (int) sizeBitfield);
-        String b;
-        if (field.length != sizeBitfield) {
-            b = getBit(field);
-        } else {
-            b = getBit(field).substring(0, pieceManager.getNbPieces());
-        }
-        String bitfieldString = reverseWord(b);
-        int i = 0;
-        for (char c : bitfieldString.toCharArray()) {
-            if (c == '1') {
-                bitfield.add(i);
+    private void releaseRequests(List<int[]> requests) {
+        Set<Piece> released = new HashSet<>();
+        List<Piece> allPieces = pieceManager.getPieces();
+        for (int[] request : requests) {
+            Piece piece = allPieces.get(request[0]);
+            Block block = piece.getBlocks().get(request[1] / Piece.BLOCK_SIZE);
+            if (block.getBlockState() == BlockState.PENDING) {
+                block.setBlockState(BlockState.EMPTY);
             }
-            i++;
+            released.add(piece);
+        }
+        if (currentPiece != null && blocksToRequest != null) {
+            released.add(currentPiece);
+        }
+        blocksToRequest = null;
+        for (Piece piece : released) {
+            pieceManager.getSelectionPieces().putBack(this, piece);
         }
-        return true;
     }
 
     /**
-     * remove block from asking pieces when we receive one
+     * receiving bloc message and adding this bloc to PieceManager
      *
-     * @param m PieceMessage
+     * @param m pieceMessage
+     * @throws IOException if the block is outside of the torrent
      */
-    private void removeBlockFromAsked(PieceMessage m) {
-        int index = m.getIndex();
-        int begin = m.getBegin();
-        int blockLength = m.getBlock().length;
-        pieces.removeIf(req -> req.getIndex() == index && req.getBegin() == begin && req.getLength() == blockLength);
+    private void getPiece(Message m) throws IOException {
+        PieceMessage pieceMessage = (PieceMessage) m;
+        int index = pieceMessage.getIndex();
+        int begin = pieceMessage.getBegin();
+        if (index < 0 || index >= pieceManager.getNbPieces() || begin < 0
+                || begin + (long) pieceMessage.getBlockLength() > pieceManager.getPieces().get(index).getSize()) {
+            throw new IOException("Invalid block " + index + ":" + begin + ":" + pieceMessage.getBlockLength());
+        }
+        downloaded.addAndGet(pieceMessage.getBlockLength());
+        snubbed = false;
+        long latency = pipeline.received(pieceMessage.getIndex(), pieceMessage.getBegin(), pieceMessage.getBlockLength(), System.nanoTime());
+        if (latency >= 0) {
+            REQUEST_LATENCY.record(latency);
+        }
+        pieceManager.addBlock(pieceMessage);
     }
 
     /**
-     * check if we have finished to receive pieces
+     * receiving have message and updating bitfield
      *
-     * @return true if asking pieces is empty
+     * @param m HaveMessage
      */
-    private boolean checkCompleted() {
-        return pieces.isEmpty();
+    private void getHave(Message m) {
+        int index = ((HaveMessage) m).getPieceIndex();
+        if (index < 0 || index >= bitfield.size() || bitfield.get(index)) {
+            return;
+        }
+        bitfield.set(index);
+        if (bitfieldSet.get()) {
+            pieceManager.getSelectionPieces().setHave(index, this);
+        }
     }
 
     /**
-     * handle receiving an handshake message
+     * receiving bitfield message and updating peer bitfield
      *
-     * @return true if handshake message is correct
-     * @throws IOException exception
+     * @param m BitfieldMessage
      */
-    private boolean receiveHandshake() throws IOException {
-        try {
-            ByteBuffer buf = ByteBuffer.allocate(68);
-            long time = System.currentTimeMillis();
-            long newTime = System.currentTimeMillis();
-            while (true) {
-                long dif = newTime - time;
-                if (dif > 10000)
-                    break;
-                int bitsRecus = socket.read(buf);
-                if (bitsRecus == -1) {
-                    return false;
-                } else if (bitsRecus == 68) {
-                    buf.flip();
-                    HandshakeMessage m = new HandshakeMessage();
-                    m = (HandshakeMessage) m.getMessageFromByteBuffer(buf);
-                    return Arrays.equals(m.getInfoHash(), file.getInfoHash());
-                }
-            }
-        } catch (SocketTimeoutException e){
-            return false;
-        }
-        return false;
+    private void getBitfield(Message m) {
+        bitfield.or(Bitfield.fromBytes(((BitfieldMessage) m).getBitfield(), pieceManager.getNbPieces()));
     }
 
     @Override
@@ -418,18 +558,10 @@ public class PeerClient extends Peer {
         return result;
     }
 
-    HashMap<TypeMessage, Boolean> getMessageReceivedFromPeerHistory() {
-        return messageReceivedFromPeerHistory;
-    }
-
     public void setCompleted(boolean completed) {
         this.completed.set(completed);
     }
 
-    void updateMessageReceivedFromPeerHistory(TypeMessage typeMessage, Boolean b) {
-        this.messageReceivedFromPeerHistory.put(typeMessage, b);
-    }
-
     public AtomicBoolean getBitfieldSet() {
         return bitfieldSet;
     }
@@ -437,4 +569,46 @@ public class PeerClient extends Peer {
     public SocketChannel getSocket() {
         return socket;
     }
+
+    /**
+     * number of block requests the window allows for this peer
+     *
+     * @return request window depth
+     */
+    public int getRequestDepth() {
+        return pipeline.getDepth();
+    }
+
+    /**
+     * prefix of the metrics of this connection
+     *
+     * @return "peer.ip:port."
+     */
+    private String metricsPrefix() {
+        return "peer." + ip + ":" + port + ".";
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * compute the download rate since the previous choke round, 0 if the peer sent nothing
+     *
+     * @param elapsed time since the previous round in ms
+     */
+    void updateDownloadRate(long elapsed) {
+        long total = downloaded.get();
+        downloadRate = (total - downloadedAtLastRound) * 1000.0 / elapsed;
+        downloadedAtLastRound = total;
+    }
+
+    /**
+     * download rate measured on this peer during the last choke round
+     *
+     * @return bytes/s
+     */
+    public double getDownloadRate() {
+        return downloadRate;
+    }
 }
\ No newline at end of file
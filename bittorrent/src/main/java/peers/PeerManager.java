@@ -11,11 +11,15 @@ import java.util.logging.Logger;
 public class PeerManager {
     private Logger globalLogger = Logger.getLogger("global");
     private Vector<PeerClient> peers;
+    private ClientReactor[] reactors;
+    private int nextReactor = 0;
+    private RateLimiter rateLimiter = new RateLimiter(RateLimiter.global());
 
 
-    public PeerManager(Level l) {
+    public PeerManager(Level l, ClientReactor... reactors) {
         globalLogger.setLevel(l);
         this.peers = new Vector<>();
+        this.reactors = reactors;
     }
 
     /**
@@ -27,6 +31,17 @@ public class PeerManager {
         this.peers.add(peer);
     }
 
+    /**
+     * Add a new peer and connect to it from one of the reactors, chosen in round robin
+     *
+     * @param peer peer
+     */
+    public synchronized void connect(PeerClient peer) {
+        addNewPeer(peer);
+        reactors[nextReactor].register(peer);
+        nextReactor = (nextReactor + 1) % reactors.length;
+    }
+
     /**
      * Remove a peer from the list of existing peers
      * @param peer peer
@@ -49,6 +64,19 @@ public class PeerManager {
         return true;
     }
 
+    /**
+     * limiter of the torrent, every peer created from now on gets a limiter chained to it
+     *
+     * @param rateLimiter torrent rate limiter
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
     public synchronized List<PeerClient> getPeers() {
         return peers;
     }
@@ -0,0 +1,139 @@
+package peers;
+
+/**
+ * RateLimiter class
+ * upload and download limits of a scope : the whole client, a torrent or a connection
+ * <p>
+ * Limiters are chained from a connection to its torrent and to the global one : a transfer is
+ * allowed up to the smallest number of tokens along the chain and consumes tokens of every
+ * bucket of the chain. Nothing sleeps : a connection without tokens stops being selected for
+ * reading or writing and the event loop resumes it on a later pass.
+ */
+public class RateLimiter {
+    public enum Direction {UPLOAD, DOWNLOAD}
+
+    static final int MIN_TRANSFER = 16384;  // bytes, smaller transfers wait for more tokens
+
+    private static final RateLimiter GLOBAL = new RateLimiter(null);
+    private final RateLimiter parent;
+    private final TokenBucket upload = new TokenBucket();
+    private final TokenBucket download = new TokenBucket();
+    private volatile long peerUploadRate = TokenBucket.UNLIMITED;
+    private volatile long peerDownloadRate = TokenBucket.UNLIMITED;
+
+    /**
+     * new limiter, unlimited until setRate is called
+     *
+     * @param parent limiter of the enclosing scope, null for the global one
+     */
+    public RateLimiter(RateLimiter parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * limiter shared by every torrent and connection
+     *
+     * @return global limiter
+     */
+    public static RateLimiter global() {
+        return GLOBAL;
+    }
+
+    /**
+     * new limiter for a connection of this scope, with the per peer rates of this scope
+     *
+     * @return connection limiter
+     */
+    public RateLimiter newPeerLimiter() {
+        RateLimiter limiter = new RateLimiter(this);
+        limiter.setRate(Direction.UPLOAD, peerUploadRate);
+        limiter.setRate(Direction.DOWNLOAD, peerDownloadRate);
+        return limiter;
+    }
+
+    /**
+     * number of bytes which can be transferred now along the chain
+     *
+     * @param direction upload or download
+     * @return bytes, Long.MAX_VALUE if no limiter of the chain is limited
+     */
+    public long available(Direction direction) {
+        long now = System.nanoTime();
+        long available = Long.MAX_VALUE;
+        for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            available = Math.min(available, limiter.bucket(direction).available(now));
+        }
+        return available;
+    }
+
+    /**
+     * number of bytes a connection may transfer now, 0 while less than MIN_TRANSFER tokens are
+     * available so a throttled connection does not make a system call for a few bytes
+     *
+     * @param direction upload or download
+     * @param wanted    bytes the connection has to transfer
+     * @return bytes allowed, 0 if the connection has to wait
+     */
+    public long allowance(Direction direction, long wanted) {
+        long available = available(direction);
+        return available >= Math.min(wanted, MIN_TRANSFER) ? available : 0;
+    }
+
+    /**
+     * record bytes transferred in every limiter of the chain
+     *
+     * @param direction upload or download
+     * @param bytes     bytes transferred
+     */
+    public void consume(Direction direction, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            limiter.bucket(direction).consume(bytes, now);
+        }
+    }
+
+    /**
+     * limit the rate of this scope
+     *
+     * @param direction upload or download
+     * @param rate      bytes/s, 0 for no limit
+     */
+    public void setRate(Direction direction, long rate) {
+        bucket(direction).setRate(rate);
+    }
+
+    public long getRate(Direction direction) {
+        return bucket(direction).getRate();
+    }
+
+    /**
+     * limit the rate of every connection created from now on by newPeerLimiter
+     *
+     * @param direction upload or download
+     * @param rate      bytes/s, 0 for no limit
+     */
+    public void setPeerRate(Direction direction, long rate) {
+        if (direction == Direction.UPLOAD) {
+            peerUploadRate = rate;
+        } else {
+            peerDownloadRate = rate;
+        }
+    }
+
+    /**
+     * current rate of this scope, limited or not
+     *
+     * @param direction upload or download
+     * @return bytes/s
+     */
+    public double getCurrentRate(Direction direction) {
+        return bucket(direction).getMeasuredRate(System.nanoTime());
+    }
+
+    private TokenBucket bucket(Direction direction) {
+        return direction == Direction.UPLOAD ? upload : download;
+    }
+}
@@ -0,0 +1,162 @@
+package peers;
+
+import pieces.Piece;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RequestPipeline class
+ * window of block requests sent to a peer and not answered yet
+ * <p>
+ * The window is refilled as soon as blocks arrive so the connection never drains between two
+ * batches. Its depth follows the bandwidth-delay product measured on the peer : the download
+ * rate times the shortest request to piece latency seen, doubled to keep the pipe full while
+ * the rate grows. The shortest latency is kept since the connection start : once the pipe is
+ * full every request waits behind the others and recent latencies only measure our own queue.
+ */
+class RequestPipeline {
+    static final int MIN_DEPTH = 4;
+    static final int MAX_DEPTH = 250;
+    private static final long RATE_WINDOW = 1000000000L;   // ns, rate sampling period
+
+    private final Map<Long, Long> outstanding = new HashMap<>();    // <index, begin> -> sent time in ns
+    private int depth = MIN_DEPTH;
+    private double rate = 0;                // bytes/s
+    private long minLatency = Long.MAX_VALUE;   // ns, shortest latency seen
+    private long windowStart = System.nanoTime();
+    private long windowBytes = 0;
+
+    /**
+     * check if the window accepts a new request
+     *
+     * @return true if as many requests as the depth are outstanding
+     */
+    boolean isFull() {
+        return outstanding.size() >= depth;
+    }
+
+    boolean isEmpty() {
+        return outstanding.isEmpty();
+    }
+
+    int size() {
+        return outstanding.size();
+    }
+
+    /**
+     * check if a block has already been requested to this peer
+     *
+     * @param index piece index
+     * @param begin block offset
+     * @return true if the request is outstanding
+     */
+    boolean contains(int index, int begin) {
+        return outstanding.containsKey(key(index, begin));
+    }
+
+    /**
+     * record a request sent
+     *
+     * @param index piece index
+     * @param begin block offset
+     * @param now   current time in ns
+     */
+    void sent(int index, int begin, long now) {
+        outstanding.put(key(index, begin), now);
+    }
+
+    /**
+     * forget a request which has been cancelled
+     *
+     * @param index piece index
+     * @param begin block offset
+     * @return true if the request was outstanding
+     */
+    boolean remove(int index, int begin) {
+        return outstanding.remove(key(index, begin)) != null;
+    }
+
+    /**
+     * record a block received and update the depth of the window
+     *
+     * @param index  piece index
+     * @param begin  block offset
+     * @param length block length
+     * @param now    current time in ns
+     * @return latency of the request in ns, -1 if the block was not requested
+     */
+    long received(int index, int begin, int length, long now) {
+        Long sentTime = outstanding.remove(key(index, begin));
+        windowBytes += length;
+        long latency = -1;
+        if (sentTime != null) {
+            latency = now - sentTime;
+            minLatency = Math.min(minLatency, latency);
+        }
+        long elapsed = now - windowStart;
+        if (elapsed >= RATE_WINDOW) {
+            rate = rate == 0 ? windowBytes * 1e9 / elapsed : (rate + windowBytes * 1e9 / elapsed) / 2;
+            windowStart = now;
+            windowBytes = 0;
+            updateDepth();
+        }
+        return latency;
+    }
+
+    /**
+     * depth = 2 * bandwidth-delay product in blocks, bounded by MIN_DEPTH and MAX_DEPTH
+     */
+    private void updateDepth() {
+        if (minLatency == Long.MAX_VALUE) {
+            return;
+        }
+        double bdp = rate * minLatency / 1e9 / Piece.BLOCK_SIZE;
+        depth = (int) Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, Math.ceil(2 * bdp) + MIN_DEPTH));
+    }
+
+    /**
+     * forget every outstanding request (choked, closed)
+     *
+     * @return the requests dropped, as {index, begin} pairs
+     */
+    List<int[]> clear() {
+        List<int[]> dropped = new ArrayList<>(outstanding.size());
+        for (long request : outstanding.keySet()) {
+            dropped.add(new int[]{(int) (request >>> 32), (int) request});
+        }
+        outstanding.clear();
+        return dropped;
+    }
+
+    /**
+     * forget the requests sent for longer than a timeout
+     *
+     * @param now     current time in ns
+     * @param timeout time allowed to answer a request in ns
+     * @return the requests dropped, as {index, begin} pairs
+     */
+    List<int[]> expire(long now, long timeout) {
+        List<int[]> dropped = new ArrayList<>();
+        Iterator<Map.Entry<Long, Long>> it = outstanding.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> request = it.next();
+            if (now - request.getValue() > timeout) {
+                dropped.add(new int[]{(int) (request.getKey() >>> 32), (int) (long) request.getKey()});
+                it.remove();
+            }
+        }
+        return dropped;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    private static long key(int index, int begin) {
+        return ((long) index << 32) | (begin & 0xffffffffL);
+    }
+}
@@ -1,6 +1,8 @@
 package peers;
 
 import message.*;
+import metrics.Histogram;
+import metrics.Metrics;
 import pieces.Piece;
 import pieces.PieceManager;
 import pieces.Torrent;
@@ -8,56 +10,131 @@ import pieces.Torrent;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
  * Server class
+ * incoming connections, we upload to the peers unchoked by the Choker
+ * <p>
+ * A Server either runs its own thread listening on its port, or is hosted by a Session which
+ * accepts the connections of every torrent on a single port and hands each one to the Server
+ * of the info hash of its handshake, the Session thread then driving the Server events.
  */
 public class Server extends Peer implements ObserverServer {
     private ServerSocketChannel socket;
     private Selector selector;
-    private static final int TIMEOUT = 30000;
-    private static final int BUFF_SIZE = 10000;
-    private List<HaveMessage> broadcastHave = Collections.synchronizedList(new ArrayList<>());
-    private LinkedList clients;
+    static final int TIMEOUT = 1000;     // ms, the choke rounds are checked at least this often
+    static final int THROTTLE_TIMEOUT = 50;     // ms, while connections wait for upload tokens
+    static final int BUFF_SIZE = 10000;
+    private final List<Integer> broadcastHave = new ArrayList<>();     // pieces completed since the last pass
+    private final List<ServerConnection> toFlush = new ArrayList<>();
+    private final List<ServerConnection> connections = new ArrayList<>();
+    private final Choker choker = new Choker();
+    private long nextRechoke = System.currentTimeMillis() + Choker.ROUND;
+    private RateLimiter rateLimiter = new RateLimiter(RateLimiter.global());
+    private boolean throttled = false;     // a connection waits for upload tokens
+    private final AtomicLong uploaded = new AtomicLong(0);     // bytes of the blocks written to the peers, reported to the tracker
+    private static final Histogram LOOP_TIME = Metrics.histogram("server.loop_time");
+    private static final int MAX_REQUEST_LENGTH = 128 * 1024;     // longer requests are dropped, as other clients do
 
     public Server(String ip, int port, PeerManager peerManager, PieceManager pieceManager, Torrent torrentObject, Level l) throws IOException {
         super(ip, port, peerManager, pieceManager, torrentObject, l);
         pieceManager.setServerObserver(this);
-        clients = new LinkedList();
     }
 
     @Override
     public void run() {
-        try {
-            this.connect();
-            if(this.socket.isOpen()) {
-                while (true) {
-                    if (this.selector.select(TIMEOUT) == 0) {
-                        globalLogger.info("...");
-                        continue;
-                    }
-                    Iterator<SelectionKey> keyIterator = this.selector.selectedKeys().iterator();
-                    while (keyIterator.hasNext()) {
-                        SelectionKey currentKey = keyIterator.next();
-                        if (currentKey.isAcceptable()) {
-                            this.accept(currentKey);
-                        }
-                        if (currentKey.isReadable()) {
-                            this.read(currentKey);
-                            broadcast();
-                        }
-                        keyIterator.remove();
-                    }
+        this.connect();
+        if (this.socket.isOpen()) {
+            while (true) {
+                try {
+                    this.selector.select(throttled ? THROTTLE_TIMEOUT : TIMEOUT);
+                } catch (IOException e) {
+                    globalLogger.severe(e.getMessage());
+                    return;
                 }
+                long start = System.nanoTime();
+                Iterator<SelectionKey> keyIterator = this.selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey currentKey = keyIterator.next();
+                    keyIterator.remove();
+                    handle(currentKey);
+                }
+                endOfPass(System.currentTimeMillis());
+                LOOP_TIME.recordSince(start);
+            }
+        }
+    }
+
+    /**
+     * selector used by a Session for the connections of this torrent, instead of listening on its port
+     *
+     * @param selector selector of the session
+     */
+    void host(Selector selector) {
+        this.selector = selector;
+    }
+
+    /**
+     * work done once the events of a selector pass are handled : choke round when it is due,
+     * pieces completed announced, connections waiting for upload tokens and answers queued during the pass
+     *
+     * @param now current time in ms
+     */
+    void endOfPass(long now) {
+        if (now >= nextRechoke) {
+            rechoke(now);
+            nextRechoke = now + Choker.ROUND;
+        }
+        broadcast();
+        resumeThrottled();
+        flushConnections();
+    }
+
+    /**
+     * @return true if a connection waits for upload tokens
+     */
+    boolean isThrottled() {
+        return throttled;
+    }
+
+    /**
+     * dispatch readiness events, an error only closes the connection concerned
+     *
+     * @param key selection key
+     */
+    void handle(SelectionKey key) {
+        ServerConnection connection = (ServerConnection) key.attachment();
+        try {
+            if (key.isAcceptable()) {
+                this.accept(key);
+                return;
+            }
+            if (key.isReadable()) {
+                this.read(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+                throttled |= connection.isThrottled();
+            }
+        } catch (IOException | InterruptedException | CancelledKeyException e) {
+            globalLogger.info("Connection closed : " + e.getMessage());
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (RuntimeException e) {
+            globalLogger.log(Level.WARNING, "Connection closed after an unexpected error", e);
+            if (connection != null) {
+                connection.close();
             }
-        } catch (IOException | InterruptedException e) {
-            globalLogger.severe(e.getMessage());
         }
     }
 
@@ -79,6 +156,65 @@ public class Server extends Peer implements ObserverServer {
         }
     }
 
+    /**
+     * choke round : unchoke the peers chosen by the choker and choke the others
+     *
+     * @param now current time in ms
+     */
+    private void rechoke(long now) {
+        connections.removeIf(connection -> !connection.isOpen());
+        Set<ServerConnection> unchoke = choker.rechoke(connections, pieceManager.getPercentageDownloaded() == 100, now);
+        for (ServerConnection connection : connections) {
+            try {
+                if (unchoke.contains(connection) && connection.isChoked()) {
+                    connection.setChoked(false);
+                    send(new UnchokeMessage(), connection.getSocket());
+                } else if (!unchoke.contains(connection) && !connection.isChoked()) {
+                    connection.setChoked(true);
+                    send(new ChokeMessage(), connection.getSocket());
+                }
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * flush the connections waiting for upload tokens, they stay throttled if there are still none
+     */
+    private void resumeThrottled() {
+        if (!throttled) {
+            return;
+        }
+        throttled = false;
+        for (ServerConnection connection : connections) {
+            if (connection.isOpen() && connection.isThrottled()) {
+                try {
+                    connection.flush();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                }
+                throttled |= connection.isThrottled();
+            }
+        }
+    }
+
+    /**
+     * write the messages queued during this pass, one gathering write per connection
+     */
+    private void flushConnections() {
+        for (ServerConnection connection : toFlush) {
+            try {
+                connection.flushQueued();
+            } catch (IOException | CancelledKeyException e) {
+                globalLogger.info("Connection closed : " + e.getMessage());
+                connection.close();
+            }
+            throttled |= connection.isThrottled();
+        }
+        toFlush.clear();
+    }
+
     /**
      * Handle accepting connection
      *
@@ -88,204 +224,295 @@ public class Server extends Peer implements ObserverServer {
     private void accept(SelectionKey key) throws IOException {
         SocketChannel socketChannel = ((ServerSocketChannel) key.channel()).accept();
         socketChannel.configureBlocking(false);
-        socketChannel.register(key.selector(), SelectionKey.OP_READ, ByteBuffer.allocate(BUFF_SIZE));
+        SelectionKey clientKey = socketChannel.register(key.selector(), SelectionKey.OP_READ);
+        newConnection(socketChannel, clientKey, new MessageDecoder(BUFF_SIZE));
+    }
+
+    /**
+     * take over a connection accepted by a Session, whose handshake is for this torrent
+     *
+     * @param socketChannel socket
+     * @param key           selection key in the session selector
+     * @param decoder       decoder holding the bytes read so far, the handshake first
+     * @param bytesRead     number of bytes read so far
+     * @throws IOException          exception
+     * @throws InterruptedException exception
+     */
+    void adopt(SocketChannel socketChannel, SelectionKey key, MessageDecoder decoder, long bytesRead) throws IOException, InterruptedException {
+        ServerConnection connection = newConnection(socketChannel, key, decoder);
+        connection.received(bytesRead);
+        process(connection);
+        broadcast();
+    }
+
+    /**
+     * state of a new incoming connection, attached to its key
+     *
+     * @param socketChannel socket
+     * @param key           selection key
+     * @param decoder       decoder of the connection
+     * @return connection
+     * @throws IOException exception
+     */
+    private ServerConnection newConnection(SocketChannel socketChannel, SelectionKey key, MessageDecoder decoder) throws IOException {
         String remoteAddress = socketChannel.getRemoteAddress().toString();
         String[] remoteSplit = remoteAddress.split(":");
         int remotePort = Integer.parseInt(remoteSplit[1]);
         String remoteIp = remoteSplit[0].substring(1);
-        this.peerManager.addNewPeer(new PeerClient(remoteIp, remotePort, this.peerManager, this.pieceManager, this.file, globalLogger.getLevel()));
-        clients.add(socketChannel);
+        // listed in the peer manager until the connection closes, its connection state is never opened
+        PeerClient peer = new PeerClient(remoteIp, remotePort, this.peerManager, this.pieceManager, this.file, globalLogger.getLevel());
+        ServerConnection connection = new ServerConnection(this, socketChannel, key, decoder, remoteIp,
+                remotePort, rateLimiter.newPeerLimiter(), peer);
+        key.attach(connection);
+        connections.add(connection);
+        this.peerManager.addNewPeer(peer);
         globalLogger.info("connection accepted from " + remoteIp + ":" + remotePort);
+        return connection;
     }
 
     /**
      * handle read
      *
-     * @param key selection key
+     * @param connection connection of the remote peer
      * @throws IOException          exception
      * @throws InterruptedException exception
      */
-    private void read(SelectionKey key) throws IOException, InterruptedException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        ByteBuffer buffer = (ByteBuffer) key.attachment();
-        long bytesRead = socketChannel.read(buffer);
+    private void read(ServerConnection connection) throws IOException, InterruptedException {
+        SocketChannel socketChannel = connection.getSocket();
+        MessageDecoder decoder = connection.getDecoder();
+        long bytesRead = socketChannel.read(decoder.getReadBuffer());
         if (bytesRead == -1) {
-            socketChannel.close();
+            connection.close();
         } else if (bytesRead > 0) {
-            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-            // We get the peerId of the peer who sent us a message(s)
-            String peerId = getPeerId(socketChannel);
-            if (bytesRead == 68) {
-                buffer.flip();
-                HandshakeMessage m = new HandshakeMessage();
-                m = (HandshakeMessage) m.getMessageFromByteBuffer(buffer);
-                if (Arrays.equals(m.getInfoHash(), file.getInfoHash())){
-                    HandshakeMessage handshake = new HandshakeMessage(this.file.getInfoHash(), this.getPeerId());
-                    // We build the bitfield
-                    byte[] bitfield = pieceManager.getBitfield();
-                    BitfieldMessage bitfieldMessage = new BitfieldMessage(bitfield);
-                    send(handshake, socketChannel);
-                    send(bitfieldMessage, socketChannel);
-                    buffer.compact();
-                }
-            } else {
-                // We process the message(s) sent
-                processMessagesReceived(buffer, socketChannel, peerId);
-            }
+            connection.received(bytesRead);
+            process(connection);
         }
     }
 
     /**
-     * broadcast have message over network if we have ones
+     * answer the handshake if it is the first message, then the messages received
      *
-     * @throws IOException exception
+     * @param connection connection of the remote peer
+     * @throws IOException          exception
+     * @throws InterruptedException exception
      */
-    private void broadcast() throws IOException {
-        for (Object client : clients) {
-            SocketChannel channel = (SocketChannel) client;
-            for (HaveMessage m : broadcastHave) {
-                send(m, channel);
+    private void process(ServerConnection connection) throws IOException, InterruptedException {
+        SocketChannel socketChannel = connection.getSocket();
+        MessageDecoder decoder = connection.getDecoder();
+        if (!connection.isHandshakeReceived()) {
+            HandshakeMessage m = decoder.decodeHandshake();
+            if (m == null) {
+                return;
+            }
+            if (!Arrays.equals(m.getInfoHash(), file.getInfoHash())) {
+                connection.close();
+                return;
             }
+            connection.setHandshakeReceived();
+            HandshakeMessage handshake = new HandshakeMessage(this.file.getInfoHash(), this.getPeerId());
+            // We build the bitfield
+            byte[] bitfield = pieceManager.getBitfield();
+            BitfieldMessage bitfieldMessage = new BitfieldMessage(bitfield);
+            send(handshake, socketChannel);
+            send(bitfieldMessage, socketChannel);
         }
-        clients.clear();
+        // We process the message(s) sent
+        processMessagesReceived(decoder, connection);
     }
 
     /**
-     * Method that gets a peerId given the socket on which we communicate with him
-     *
-     * @param socketChannel socket channel
-     * @return the PeerId of the remote peer
-     * @throws IOException exception
+     * send a have message of every piece completed since the last pass to the peers whose handshake
+     * is received, the others get these pieces in the bitfield answering their handshake
+     * <p>
+     * Each connection gets its own messages : a message is written from its own buffer, which
+     * the first connection written would drain for the others.
      */
-    private String getPeerId(SocketChannel socketChannel) throws IOException {
-        String peerId = null;
-        String remoteAddress = socketChannel.getRemoteAddress().toString();
-        String[] remoteSplit = remoteAddress.split(":");
-        String remoteIp = remoteSplit[0].substring(1);
-        for (PeerClient peer : peerManager.getPeers()) {
-            if ((peer.ip).equals(remoteIp)) {
-                peerId = peer.id;
+    private void broadcast() {
+        List<Integer> haves;
+        synchronized (broadcastHave) {
+            if (broadcastHave.isEmpty()) {
+                return;
+            }
+            haves = new ArrayList<>(broadcastHave);
+            broadcastHave.clear();
+        }
+        for (ServerConnection connection : connections) {
+            if (!connection.isOpen() || !connection.isHandshakeReceived()) {
+                continue;
+            }
+            try {
+                for (int index : haves) {
+                    send(new HaveMessage(index), connection.getSocket());
+                }
+            } catch (IOException e) {
+                globalLogger.info("Connection closed : " + e.getMessage());
+                connection.close();
             }
         }
-        return peerId;
     }
 
-
     /**
-     * Method that gets a list of messages, and replies to them if they are consistent
-     * @param bytesBufferReceived the list of message as a byte[]
-     * @param socket the socket on which the server communicates with the remote peer
-     * @param peerID the ID of the remote peer
+     * Method that gets a list of messages, and replies to them
+     * the state of the remote peer (interested, choked) is kept by its connection
+     * @param decoder the decoder holding the bytes received
+     * @param connection the connection on which the server communicates with the remote peer
      */
-    private void processMessagesReceived(ByteBuffer bytesBufferReceived, SocketChannel socket, String peerID) throws IOException, InterruptedException {
-        List<Message> messages = Message.parserMessages(bytesBufferReceived);
+    private void processMessagesReceived(MessageDecoder decoder, ServerConnection connection) throws IOException, InterruptedException {
+        SocketChannel socket = connection.getSocket();
+        List<Message> messages = decoder.decode();
         for (Message m : messages){
-            if (checkMessageConsistency(m, peerID)){
-                // We update the history of the messages received
-                updateMessageHistory(peerID, m.getTypeMessage());
-                List<Message> answer = new ArrayList<>();
-                // We look at the received message type and create the appropriate answer message
-                switch (m.getTypeMessage()) {
-                    // If we receive an interested message, we reply with an unchoke message
-                    case INTERESTED:
-                        answer.add(new UnchokeMessage());
-                        break;
-                    // If we receive a request for a piece, we reply with the piece
-                    case REQUEST:
-                        RequestMessage requestMessage = (RequestMessage) m;
-                        int pieceIndex = requestMessage.getIndex();
-                        Piece pieceRequested = this.pieceManager.getPieces().get(pieceIndex);
-                        //We build the piece to send
-                        int indexBlock = requestMessage.getBegin()/Piece.BLOCK_SIZE;
-                        byte[] block = pieceRequested.getBlocks().get(indexBlock).getBlockData();
-                        answer.add(new PieceMessage(pieceIndex, requestMessage.getBegin(), block));
-                        break;
-                    // If we receive a not interested message, we reply with a choke and close the connection
-                    case NOT_INTERESTED:
-                        ChokeMessage chokeMessage = new ChokeMessage();
-                        try {
-                            send(chokeMessage, socket);
-                            // Since the connection with this peer is finished, we clear the message history
-                            clearMessageHistory(peerID);
-                            // We close the socket since the peer is not interested
-                            socket.close();
-                        } catch (IOException e) {
-                            globalLogger.severe(e.getMessage());
-                        }
-                        break;
-                    default:
-                        break;
-                }
-                for (Message message : answer){
-                    send(message, socket);
-                }
+            // We look at the received message type and create the appropriate answer message
+            switch (m.getTypeMessage()) {
+                // If we receive an interested message, we unchoke the peer if an upload slot is free,
+                // else it waits for the next choke round
+                case INTERESTED:
+                    connection.setInterested(true);
+                    if (connection.isChoked() && choker.hasFreeSlot(connections)) {
+                        connection.setChoked(false);
+                        send(new UnchokeMessage(), socket);
+                    }
+                    break;
+                // If we receive a request for a piece from an interested and unchoked peer, we reply with the piece
+                case REQUEST:
+                    if (connection.isInterested() && !connection.isChoked()) {
+                        sendBlock((RequestMessage) m, connection);
+                    }
+                    break;
+                // If we receive a not interested message, we reply with a choke and close the connection
+                case NOT_INTERESTED:
+                    connection.setInterested(false);
+                    ChokeMessage chokeMessage = new ChokeMessage();
+                    send(chokeMessage, socket);
+                    // We close the socket since the peer is not interested, once the choke is written
+                    connection.closeWhenFlushed();
+                    return;
+                default:
+                    break;
+            }
+            if (!connection.isOpen()) {
+                return;
             }
         }
     }
 
     /**
-     * Method that updates the Received Messages History from a certain peer
-     * @param peerID The received message's peer ID
-     * @param typeMessage message type
+     * answer a request with the block, requests for pieces we don't have and requests longer than
+     * MAX_REQUEST_LENGTH are ignored
+     * <p>
+     * Once the piece is written the block goes from the file to the socket without being
+     * copied in the heap : only the 13 bytes header is built, the kernel sends the data from
+     * the page cache. Pieces still waiting for the FileWriter are sent from memory.
+     *
+     * @param request    request message
+     * @param connection connection of the remote peer
+     * @throws IOException exception
      */
-    private void updateMessageHistory(String peerID, TypeMessage typeMessage){
-        for(PeerClient peer : peerManager.getPeers()){
-            // We search the corresponding peer in the PeerManager list
-            if(peerID.equals(peer.id)){
-                peer.updateMessageReceivedFromPeerHistory(typeMessage, true);
+    private void sendBlock(RequestMessage request, ServerConnection connection) throws IOException {
+        SocketChannel socket = connection.getSocket();
+        int index = request.getIndex();
+        int begin = request.getBegin();
+        int length = request.getLength();
+        if (length > MAX_REQUEST_LENGTH) {
+            globalLogger.info("Request of " + length + " bytes dropped");
+            return;
+        }
+        long offset = pieceManager.getStorageOffset(index, begin, length);
+        if (offset < 0) {
+            byte[] block = pieceManager.readBlock(index, begin, length);
+            if (block != null) {
+                queued(socket);
+                connection.getOutbound().add(PieceMessage.createHeader(index, begin, length));
+                connection.getOutbound().addPayload(ByteBuffer.wrap(block));
             }
+            return;
         }
+        queued(socket);
+        connection.getOutbound().add(PieceMessage.createHeader(index, begin, length));
+        connection.getOutbound().add(pieceManager.getStorage(), offset, length);
     }
 
     /**
-     * Method that resets the history of the peer
-     * @param peerID peer ID
+     * queue a message, written at the end of the selector pass with the other messages queued
+     *
+     * @param message message
+     * @param socket  socket
+     * @throws IOException exception
      */
-    private void clearMessageHistory(String peerID){
-        for(PeerClient peer : peerManager.getPeers()){
-            // We search the corresponding peer in the PeerManager list
-            if(peerID.equals(peer.getPeerId())){
-                // We reset the history of the peer
-                for(TypeMessage typeMessage : TypeMessage.values()) {
-                    peer.updateMessageReceivedFromPeerHistory(typeMessage, false);
-                }
-            }
+    @Override
+    protected void send(Message message, SocketChannel socket) throws IOException {
+        queued(socket).getOutbound().add(message.createByteArray());
+    }
+
+    /**
+     * connection of a socket, added to the connections to flush at the end of the pass
+     *
+     * @param socket socket
+     * @return connection
+     * @throws IOException if the connection is closed
+     */
+    private ServerConnection queued(SocketChannel socket) throws IOException {
+        SelectionKey key = socket.keyFor(selector);
+        if (key == null || !key.isValid()) {
+            throw new ClosedChannelException();
+        }
+        ServerConnection connection = (ServerConnection) key.attachment();
+        if (connection.markFlushPending()) {
+            toFlush.add(connection);
         }
+        return connection;
     }
 
+    /**
+     * number of peers unchoked by the tit-for-tat rounds, one more is unchoked optimistically
+     *
+     * @param uploadSlots upload slots
+     */
+    public void setUploadSlots(int uploadSlots) {
+        choker.setUploadSlots(uploadSlots);
+    }
 
     /**
-     * Method that checks if the received message is consistent regarding Bittorrent protocol specification
-     * @param message message
-     * @param peerID peer ID
-     * @return True if it is consistent, false if not
+     * limiter of the torrent, every incoming connection gets a limiter chained to it
+     *
+     * @param rateLimiter torrent rate limiter
      */
-    private boolean checkMessageConsistency(Message message, String peerID){
-        boolean messageConsistency = false;
-        switch (message.getTypeMessage()){
-            case HANDSHAKE:
-                HandshakeMessage messageReceived = (HandshakeMessage) message;
-                if(Arrays.equals(messageReceived.getInfoHash(), this.file.getInfoHash())) {
-                    messageConsistency = true;
-                }
-                break;
-            case REQUEST:
-                PeerClient peer = this.peerManager.findPeer(peerID);
-                // We check that the peer in question sent an INTERESTED message before
-                if(peer.getMessageReceivedFromPeerHistory().get(TypeMessage.INTERESTED)){
-                    messageConsistency = true;
-                }
-                break;
-            default: messageConsistency = true;
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
 
-        }
-        return messageConsistency;
+    /**
+     * @return bytes of the blocks written to the peers of the torrent
+     */
+    public long getUploaded() {
+        return uploaded.get();
+    }
+
+    /**
+     * count block bytes written to a peer of the torrent
+     *
+     * @param bytes bytes written
+     */
+    void addUploaded(long bytes) {
+        uploaded.addAndGet(bytes);
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * peers we download from, their download rates rank the peers we upload to
+     *
+     * @param downloadPeers peer manager of the outgoing connections
+     */
+    public void setDownloadPeers(PeerManager downloadPeers) {
+        choker.setDownloadPeers(downloadPeers);
     }
 
     @Override
     public void notify(Piece piece) {
-        if (broadcastHave.size() > 4)
-            broadcastHave.clear();
-        broadcastHave.add(new HaveMessage(piece.getIndex()));
+        synchronized (broadcastHave) {
+            broadcastHave.add(piece.getIndex());
+        }
     }
 }
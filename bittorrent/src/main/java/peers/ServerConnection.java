@@ -0,0 +1,227 @@
+package peers;
+
+import message.MessageDecoder;
+import metrics.Counter;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ServerConnection class
+ * state of an incoming connection, attached to its selection key in the Server (or Session) selector
+ * <p>
+ * Answers are queued and written when the socket is writable. When the queue of a peer goes
+ * over HIGH_WATERMARK its socket is no longer read, so it cannot queue more blocks than it
+ * downloads, until the queue goes back under LOW_WATERMARK. Writes are limited by the rate
+ * limiter of the connection : without tokens OP_WRITE is dropped and the connection is
+ * throttled until the Server flushes it again on a later pass.
+ */
+class ServerConnection {
+    static final long HIGH_WATERMARK = 1 << 22;    // 4 MiB, 256 blocks
+    static final long LOW_WATERMARK = 1 << 20;     // 1 MiB
+    private final Server server;
+    private final SocketChannel socket;
+    private final SelectionKey key;
+    private final MessageDecoder decoder;
+    private final OutboundQueue outbound = new OutboundQueue();
+    private boolean handshakeReceived = false;
+    private boolean readPaused = false;
+    private boolean closing = false;
+    private boolean flushPending = false;
+    private final String remoteIp;
+    private boolean interested = false;
+    private boolean choked = true;
+    private long uploadedAtLastRound = 0;   // block bytes written to the peer at the previous choke round
+    private double uploadRate = 0;          // bytes/s during the last choke round
+    private final RateLimiter rateLimiter;
+    private final PeerClient peer;          // entry of the remote peer in the peer manager of the server
+    private boolean throttled = false;
+    private static final Counter BYTES_IN = Metrics.counter("net.bytes_in");
+    private static final Counter BYTES_OUT = Metrics.counter("net.bytes_out");
+    private final String metricsPrefix;
+    private final Counter peerBytesIn;
+    private final Counter peerBytesOut;
+
+    ServerConnection(Server server, SocketChannel socket, SelectionKey key, MessageDecoder decoder, String remoteIp, int remotePort,
+                     RateLimiter rateLimiter, PeerClient peer) {
+        this.server = server;
+        this.socket = socket;
+        this.key = key;
+        this.decoder = decoder;
+        this.remoteIp = remoteIp;
+        this.rateLimiter = rateLimiter;
+        this.peer = peer;
+        this.metricsPrefix = "peer." + remoteIp + ":" + remotePort + ".";
+        this.peerBytesIn = Metrics.counter(metricsPrefix + "bytes_in");
+        this.peerBytesOut = Metrics.counter(metricsPrefix + "bytes_out");
+    }
+
+    /**
+     * write what the socket and the rate limiter accept and update the interest of the key
+     * OP_WRITE stays registered while bytes are left and tokens remain, OP_READ follows the watermarks
+     *
+     * @throws IOException exception
+     */
+    void flush() throws IOException {
+        long budget = rateLimiter.allowance(RateLimiter.Direction.UPLOAD, outbound.getQueuedBytes());
+        if (budget > 0 && !outbound.isEmpty()) {
+            long payloadBefore = outbound.getPayloadWritten();
+            long written = outbound.flush(socket, budget);
+            server.addUploaded(outbound.getPayloadWritten() - payloadBefore);
+            rateLimiter.consume(RateLimiter.Direction.UPLOAD, written);
+            BYTES_OUT.add(written);
+            peerBytesOut.add(written);
+        }
+        boolean empty = outbound.isEmpty();
+        throttled = !empty && rateLimiter.allowance(RateLimiter.Direction.UPLOAD, outbound.getQueuedBytes()) == 0;
+        if (empty && closing) {
+            close();
+            return;
+        }
+        long queued = outbound.getQueuedBytes();
+        if (queued >= HIGH_WATERMARK) {
+            readPaused = true;
+        } else if (queued <= LOW_WATERMARK) {
+            readPaused = false;
+        }
+        int ops = (readPaused || closing) ? 0 : SelectionKey.OP_READ;
+        if (!empty && !throttled) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * remember the connection has messages queued since the last flush
+     *
+     * @return true if it is the first one, the connection has to be flushed at the end of the pass
+     */
+    boolean markFlushPending() {
+        boolean first = !flushPending;
+        flushPending = true;
+        return first;
+    }
+
+    /**
+     * write the messages queued since the last flush
+     *
+     * @throws IOException exception
+     */
+    void flushQueued() throws IOException {
+        if (flushPending && socket.isOpen()) {
+            flushPending = false;
+            flush();
+        }
+    }
+
+    /**
+     * close the connection once the queued bytes are written
+     */
+    void closeWhenFlushed() {
+        closing = true;
+    }
+
+    /**
+     * count bytes read from the peer
+     * requests are small, they are counted in the download rate but never held back
+     *
+     * @param bytes bytes read
+     */
+    void received(long bytes) {
+        rateLimiter.consume(RateLimiter.Direction.DOWNLOAD, bytes);
+        BYTES_IN.add(bytes);
+        peerBytesIn.add(bytes);
+    }
+
+    void close() {
+        key.cancel();
+        outbound.clear();
+        server.getPeerManager().removePeer(peer);
+        Metrics.remove(metricsPrefix);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * compute the upload rate since the previous choke round, from the block bytes really written
+     *
+     * @param elapsed time since the previous round in ms
+     */
+    void updateUploadRate(long elapsed) {
+        long uploaded = outbound.getPayloadWritten();
+        uploadRate = (uploaded - uploadedAtLastRound) * 1000.0 / elapsed;
+        uploadedAtLastRound = uploaded;
+    }
+
+    double getUploadRate() {
+        return uploadRate;
+    }
+
+    String getRemoteIp() {
+        return remoteIp;
+    }
+
+    boolean isInterested() {
+        return interested;
+    }
+
+    void setInterested(boolean interested) {
+        this.interested = interested;
+    }
+
+    boolean isChoked() {
+        return choked;
+    }
+
+    void setChoked(boolean choked) {
+        this.choked = choked;
+    }
+
+    /**
+     * @return server of the torrent of the connection
+     */
+    Server getServer() {
+        return server;
+    }
+
+    SocketChannel getSocket() {
+        return socket;
+    }
+
+    MessageDecoder getDecoder() {
+        return decoder;
+    }
+
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    boolean isHandshakeReceived() {
+        return handshakeReceived;
+    }
+
+    void setHandshakeReceived() {
+        handshakeReceived = true;
+    }
+
+    boolean isThrottled() {
+        return throttled;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    boolean isReadPaused() {
+        return readPaused;
+    }
+
+    boolean isOpen() {
+        return socket.isOpen();
+    }
+}
@@ -0,0 +1,313 @@
+package peers;
+
+import message.MessageDecoder;
+import metrics.Histogram;
+import metrics.Metrics;
+import org.apache.commons.codec.binary.Hex;
+import pieces.BufferPool;
+import pieces.PieceManager;
+import pieces.Torrent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Session class and thread
+ * several torrents sharing a listening port, the reactors of the outgoing connections, the
+ * threads writing the pieces and the piece buffers
+ * <p>
+ * The session thread accepts every incoming connection and reads it until the handshake is
+ * complete, the connection is then handed to the Server of the info hash of the handshake and
+ * its events are driven from the same selector. A connection without a handshake after
+ * HANDSHAKE_TIMEOUT is closed. The torrents with the same piece length take
+ * their buffers from the same BufferPool, so the idle buffers are kept once for all of them.
+ */
+public class Session extends Thread {
+    private static final int HANDSHAKE_SIZE = 68;
+    private static final int PSTRLEN = 19;
+    private static final int INFO_HASH_OFFSET = 28;
+    private static final int IDLE_BUFFERS = 16;
+    private static final long HANDSHAKE_TIMEOUT = 10000;    // ms given to an accepted connection to send its handshake
+    private final String ip;
+    private final int port;
+    private final Level level;
+    private final Selector selector;
+    private final ServerSocketChannel socket;
+    private final ClientReactor[] reactors;
+    private final ExecutorService diskPool;
+    private final Map<Integer, BufferPool> bufferPools = new ConcurrentHashMap<>();      // piece length -> pool
+    private final Map<String, Server> servers = new ConcurrentHashMap<>();      // hex info hash -> server
+    private final List<Server> hosted = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private long lastExpiry = 0;
+    private static final Histogram LOOP_TIME = Metrics.histogram("session.loop_time");
+    private final Logger globalLogger = Logger.getLogger("global");
+
+    /**
+     * connection accepted whose handshake is not complete yet
+     */
+    private static class Pending {
+        private final MessageDecoder decoder = new MessageDecoder(Server.BUFF_SIZE);
+        private final long accepted = System.currentTimeMillis();
+        private long bytesRead = 0;
+    }
+
+    /**
+     * bind the listening port and start the reactors
+     *
+     * @param ip          our address
+     * @param port        listening port of every torrent
+     * @param nbReactors  number of reactors of the outgoing connections
+     * @param diskThreads number of threads writing the pieces
+     * @param level       log level
+     * @throws IOException exception
+     */
+    public Session(String ip, int port, int nbReactors, int diskThreads, Level level) throws IOException {
+        super("session");
+        globalLogger.setLevel(level);
+        this.ip = ip;
+        this.port = port;
+        this.level = level;
+        this.selector = Selector.open();
+        this.socket = ServerSocketChannel.open();
+        this.socket.socket().bind(new InetSocketAddress(port));
+        this.socket.configureBlocking(false);
+        this.socket.register(selector, SelectionKey.OP_ACCEPT);
+        this.reactors = new ClientReactor[nbReactors];
+        for (int i = 0; i < nbReactors; i++) {
+            reactors[i] = new ClientReactor("reactor-" + i, level);
+            reactors[i].start();
+        }
+        AtomicInteger count = new AtomicInteger(0);
+        this.diskPool = Executors.newFixedThreadPool(diskThreads, r -> {
+            Thread t = new Thread(r, "disk-writer-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        Metrics.gauge("session.torrents", hosted::size);
+    }
+
+    /**
+     * PieceManager of a torrent of the session, its pieces written by the disk threads
+     *
+     * @param torrent      torrent
+     * @param conditionMet notified once every piece is written
+     * @return piece manager
+     * @throws IOException exception
+     */
+    public PieceManager newPieceManager(Torrent torrent, BlockingQueue<Boolean> conditionMet) throws IOException {
+        BufferPool pool = bufferPools.computeIfAbsent(torrent.getPieceLength().intValue(),
+                length -> new BufferPool(length, IDLE_BUFFERS));
+        return new PieceManager(torrent, level, conditionMet, pool, diskPool);
+    }
+
+    /**
+     * @return PeerManager connecting to the peers from the reactors of the session
+     */
+    public PeerManager newPeerManager() {
+        return new PeerManager(level, reactors);
+    }
+
+    /**
+     * Server answering the connections of a torrent on the port of the session
+     *
+     * @param torrent      torrent
+     * @param pieceManager piece manager of the torrent
+     * @return server, not to be started
+     * @throws IOException exception
+     */
+    public Server host(Torrent torrent, PieceManager pieceManager) throws IOException {
+        Server server = new Server(ip, port, new PeerManager(level), pieceManager, torrent, level);
+        server.host(selector);
+        if (servers.putIfAbsent(Hex.encodeHexString(torrent.getInfoHash()), server) != null) {
+            throw new IOException("Torrent already in the session");
+        }
+        hosted.add(server);
+        return server;
+    }
+
+    /**
+     * stop answering the connections of a torrent, those already open are left to the peers, and
+     * forget its metrics
+     *
+     * @param torrent torrent
+     */
+    public void remove(Torrent torrent) {
+        Server server = servers.remove(Hex.encodeHexString(torrent.getInfoHash()));
+        if (server != null) {
+            hosted.remove(server);
+        }
+        Metrics.remove(PieceManager.metricsPrefix(torrent));
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void run() {
+        running.set(true);
+        while (running.get()) {
+            boolean throttled = false;
+            for (Server server : hosted) {
+                throttled |= server.isThrottled();
+            }
+            try {
+                selector.select(throttled ? Server.THROTTLE_TIMEOUT : Server.TIMEOUT);
+            } catch (IOException e) {
+                globalLogger.severe(e.getMessage());
+                return;
+            }
+            long start = System.nanoTime();
+            Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+            while (keyIterator.hasNext()) {
+                SelectionKey currentKey = keyIterator.next();
+                keyIterator.remove();
+                handle(currentKey);
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastExpiry >= HANDSHAKE_TIMEOUT / 10) {
+                expirePending(now);
+                lastExpiry = now;
+            }
+            for (Server server : hosted) {
+                // a torrent failing does not stop the others
+                try {
+                    server.endOfPass(now);
+                } catch (RuntimeException e) {
+                    globalLogger.log(Level.SEVERE, "End of pass of " + server.file.getFileName() + " failed", e);
+                }
+            }
+            LOOP_TIME.recordSince(start);
+        }
+    }
+
+    /**
+     * dispatch readiness events : new connections, handshakes to route, then the Server of the torrent,
+     * an error only closes the connection concerned
+     *
+     * @param key selection key
+     */
+    private void handle(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment instanceof ServerConnection) {
+            ((ServerConnection) attachment).getServer().handle(key);
+            return;
+        }
+        try {
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                route(key, (Pending) attachment);
+            }
+        } catch (IOException | InterruptedException | CancelledKeyException e) {
+            globalLogger.info("Connection closed : " + e.getMessage());
+            close(key);
+        } catch (RuntimeException e) {
+            globalLogger.log(Level.WARNING, "Connection closed after an unexpected error", e);
+            close(key);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socketChannel = socket.accept();
+        if (socketChannel == null) {
+            return;
+        }
+        socketChannel.configureBlocking(false);
+        socketChannel.register(selector, SelectionKey.OP_READ, new Pending());
+    }
+
+    /**
+     * read the handshake, then hand the connection to the Server of its info hash
+     *
+     * @param key     selection key
+     * @param pending connection state
+     * @throws IOException          exception
+     * @throws InterruptedException exception
+     */
+    private void route(SelectionKey key, Pending pending) throws IOException, InterruptedException {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        ByteBuffer buffer = pending.decoder.getReadBuffer();
+        long bytesRead = socketChannel.read(buffer);
+        if (bytesRead == -1) {
+            close(key);
+            return;
+        }
+        pending.bytesRead += bytesRead;
+        if (buffer.position() > 0 && buffer.get(0) != PSTRLEN) {
+            globalLogger.info("Not a BitTorrent handshake, connection closed");
+            close(key);
+            return;
+        }
+        if (buffer.position() < HANDSHAKE_SIZE) {
+            return;
+        }
+        byte[] infoHash = new byte[20];
+        for (int i = 0; i < infoHash.length; i++) {
+            infoHash[i] = buffer.get(INFO_HASH_OFFSET + i);
+        }
+        Server server = servers.get(Hex.encodeHexString(infoHash));
+        if (server == null) {
+            globalLogger.info("Handshake for an unknown torrent, connection closed");
+            close(key);
+            return;
+        }
+        server.adopt(socketChannel, key, pending.decoder, pending.bytesRead);
+    }
+
+    /**
+     * close the connections accepted which did not complete their handshake in time, as PeerClient
+     * does for the outgoing ones
+     *
+     * @param now current time in ms
+     */
+    private void expirePending(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Pending && now - ((Pending) attachment).accepted > HANDSHAKE_TIMEOUT) {
+                globalLogger.info("No handshake received in time, connection closed");
+                close(key);
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            globalLogger.info(e.getMessage());
+        }
+    }
+
+    /**
+     * stop the session thread, the reactors and the disk threads once the pieces queued are written
+     */
+    public void shutdown() {
+        running.set(false);
+        selector.wakeup();
+        for (ClientReactor reactor : reactors) {
+            reactor.shutdown();
+        }
+        diskPool.shutdown();
+    }
+}
@@ -4,7 +4,6 @@ import message.InterestedMessage;
 import message.NotInterestedMessage;
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * StateMachine class
@@ -78,30 +77,26 @@ public class StateMachine {
 
     /**
      * event receive an unchoke message
-     *
-     * @param p peer client
-     * @throws IOException              exception
-     * @throws InterruptedException     exception
-     * @throws NoSuchAlgorithmException exception
      */
-    public void receiveUnChoke(PeerClient p) throws IOException, InterruptedException, NoSuchAlgorithmException {
-        if (this.state == State.CHOKE_INTERESTED) {
-            p.receive();
-            this.state = State.UNCHOKE_INTERESTED;
+    public void receiveUnChoke() {
+        switch (this.state) {
+            case CHOKE_NOT_INTERESTED:
+                this.state = State.UNCHOKE_NOT_INTERESTED;
+                break;
+            case CHOKE_INTERESTED:
+                this.state = State.UNCHOKE_INTERESTED;
+                break;
+            default:
+                break;
         }
     }
 
     /**
-     * event get pieces to request pieces
+     * check if we are allowed to request pieces
      *
-     * @param p peer client
-     * @throws IOException              exception
-     * @throws InterruptedException     exception
-     * @throws NoSuchAlgorithmException exception
+     * @return true if the peer unchoked us and we are interested
      */
-    public void getPiece(PeerClient p) throws IOException, InterruptedException, NoSuchAlgorithmException {
-        if (this.state == State.UNCHOKE_INTERESTED) {
-            p.requestPieces();
-        }
+    public boolean canRequest() {
+        return this.state == State.UNCHOKE_INTERESTED;
     }
-}
\ No newline at end of file
+}
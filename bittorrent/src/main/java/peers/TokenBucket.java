@@ -0,0 +1,87 @@
+package peers;
+
+/**
+ * TokenBucket class
+ * bytes allowed in one direction, refilled at a fixed rate
+ * <p>
+ * The bucket holds at most BURST ms of traffic, so a connection throttled for a while does not
+ * get a large burst when it resumes. It also measures the rate of the bytes consumed, limited
+ * or not.
+ */
+class TokenBucket {
+    static final long UNLIMITED = 0;
+    private static final long BURST = 200;                  // ms of traffic the bucket holds
+    private static final long MIN_CAPACITY = 2 * 16384;     // two blocks
+    private static final long RATE_WINDOW = 1000000000L;    // ns, rate sampling period
+    private long rate = UNLIMITED;      // bytes/s
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+    private long windowStart = System.nanoTime();
+    private long windowBytes = 0;
+    private double measuredRate = 0;    // bytes/s
+
+    /**
+     * number of bytes which can be transferred now
+     *
+     * @param now current time in ns
+     * @return bytes, Long.MAX_VALUE if the bucket is unlimited
+     */
+    synchronized long available(long now) {
+        if (rate == UNLIMITED) {
+            return Long.MAX_VALUE;
+        }
+        refill(now);
+        return (long) tokens;
+    }
+
+    /**
+     * take bytes transferred from the bucket, it may go below zero when several connections share it
+     *
+     * @param bytes bytes transferred
+     * @param now   current time in ns
+     */
+    synchronized void consume(long bytes, long now) {
+        if (rate != UNLIMITED) {
+            refill(now);
+            tokens -= bytes;
+        }
+        windowBytes += bytes;
+        long elapsed = now - windowStart;
+        if (elapsed >= RATE_WINDOW) {
+            measuredRate = measuredRate == 0 ? windowBytes * 1e9 / elapsed : (measuredRate + windowBytes * 1e9 / elapsed) / 2;
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+
+    private void refill(long now) {
+        long capacity = Math.max(MIN_CAPACITY, rate * BURST / 1000);
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+    /**
+     * change the rate, the bucket starts full
+     *
+     * @param rate bytes/s, UNLIMITED for no limit
+     */
+    synchronized void setRate(long rate) {
+        this.rate = Math.max(UNLIMITED, rate);
+        this.tokens = Math.max(MIN_CAPACITY, this.rate * BURST / 1000);
+        this.lastRefill = System.nanoTime();
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * rate measured on the bytes consumed, 0 once nothing has been consumed for a sampling period
+     *
+     * @param now current time in ns
+     * @return bytes/s
+     */
+    synchronized double getMeasuredRate(long now) {
+        return now - windowStart > 2 * RATE_WINDOW ? 0 : measuredRate;
+    }
+}
@@ -0,0 +1,222 @@
+package pieces;
+
+import java.util.Arrays;
+
+/**
+ * Bitfield class
+ * set of piece indexes packed in 64 bits words, bit i of word i / 64 standing for piece i
+ * <p>
+ * On the wire (BitfieldMessage) piece 0 is the high bit of the first byte, so 8 bytes of the
+ * message read as a big-endian long are the bit-reversed word.
+ */
+public class Bitfield {
+    private final long[] words;
+    private final int size;
+
+    /**
+     * empty bitfield
+     *
+     * @param size number of pieces
+     */
+    public Bitfield(int size) {
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    /**
+     * build a bitfield from the payload of a BitfieldMessage
+     * bits after the last piece (spare bits, longer payload) are ignored
+     *
+     * @param wire payload of the message
+     * @param size number of pieces
+     * @return bitfield
+     */
+    public static Bitfield fromBytes(byte[] wire, int size) {
+        Bitfield bitfield = new Bitfield(size);
+        int nbBytes = Math.min(wire.length, (size + 7) >>> 3);
+        int i = 0;
+        for (; i + 8 <= nbBytes; i += 8) {
+            long word = 0;
+            for (int j = 0; j < 8; j++) {
+                word = (word << 8) | (wire[i + j] & 0xFFL);
+            }
+            bitfield.words[i >>> 3] = Long.reverse(word);
+        }
+        for (; i < nbBytes; i++) {
+            long reversedByte = Integer.reverse(wire[i] & 0xFF) >>> 24;
+            bitfield.words[i >>> 3] |= reversedByte << ((i & 7) << 3);
+        }
+        bitfield.clearSpareBits();
+        return bitfield;
+    }
+
+    /**
+     * payload of a BitfieldMessage : ceil(size / 8) bytes, piece 0 being the high bit of the first byte
+     *
+     * @return byte array
+     */
+    public byte[] toBytes() {
+        byte[] wire = new byte[(size + 7) >>> 3];
+        for (int i = 0; i < wire.length; i++) {
+            long word = words[i >>> 3] >>> ((i & 7) << 3);
+            wire[i] = (byte) (Integer.reverse((int) (word & 0xFF)) >>> 24);
+        }
+        return wire;
+    }
+
+    public boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public void set(int index) {
+        words[index >>> 6] |= 1L << index;
+    }
+
+    public void clear(int index) {
+        words[index >>> 6] &= ~(1L << index);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * number of pieces in the set
+     *
+     * @return number of bits set
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * index of the first piece in the set from an index
+     *
+     * @param from first index to look at
+     * @return index or -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        if (from >= size) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++w == words.length) {
+                return -1;
+            }
+            word = words[w];
+        }
+    }
+
+    /**
+     * number of pieces in this set and not in the other one, e.g. pieces a peer has and we don't
+     *
+     * @param other bitfield of the same size
+     * @return number of pieces
+     */
+    public int andNotCardinality(Bitfield other) {
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            count += Long.bitCount(words[i] & ~other.words[i]);
+        }
+        return count;
+    }
+
+    /**
+     * check if this set has a piece which is not in the other one
+     *
+     * @param other bitfield of the same size
+     * @return true if at least one piece is missing from other
+     */
+    public boolean hasPieceNotIn(Bitfield other) {
+        for (int i = 0; i < words.length; i++) {
+            if ((words[i] & ~other.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * number of pieces in both sets
+     *
+     * @param other bitfield of the same size
+     * @return number of pieces
+     */
+    public int andCardinality(Bitfield other) {
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            count += Long.bitCount(words[i] & other.words[i]);
+        }
+        return count;
+    }
+
+    /**
+     * add every piece of another set to this one
+     *
+     * @param other bitfield of the same size
+     */
+    public void or(Bitfield other) {
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    public Bitfield copy() {
+        Bitfield copy = new Bitfield(size);
+        System.arraycopy(words, 0, copy.words, 0, words.length);
+        return copy;
+    }
+
+    private void clearSpareBits() {
+        if ((size & 63) != 0) {
+            words[words.length - 1] &= (1L << size) - 1;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Bitfield)) {
+            return false;
+        }
+        Bitfield b = (Bitfield) o;
+        return size == b.size && Arrays.equals(words, b.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * size + Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(i);
+        }
+        return sb.append(']').toString();
+    }
+}
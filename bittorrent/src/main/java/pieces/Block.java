@@ -6,7 +6,6 @@ package pieces;
 public class Block {
     private int id;
     private double blockSize;
-    private byte[] blockData;
     private BlockState blockState;
 
     Block(int i, double length, BlockState s) {
@@ -19,14 +18,6 @@ public class Block {
         return blockSize;
     }
 
-    public synchronized byte[] getBlockData() {
-        return blockData;
-    }
-
-    synchronized void setBlockData(byte[] blockData) {
-        this.blockData = blockData;
-    }
-
     public synchronized BlockState getBlockState() { return blockState; }
 
     public synchronized void setBlockState(BlockState blockState) {
@@ -0,0 +1,85 @@
+package pieces;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool class
+ * direct buffers of one piece length, reused from a piece to the next
+ * <p>
+ * A buffer is taken when the first block of a piece arrives and given back once the piece is
+ * written or rejected, so the memory used follows the number of pieces in flight instead of
+ * the torrent size. At most maxIdle free buffers are kept, the others are left to the GC.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idle = new AtomicInteger(0);
+    private final AtomicInteger inUse = new AtomicInteger(0);
+    private final AtomicInteger allocated = new AtomicInteger(0);
+
+    /**
+     * @param bufferSize capacity of the buffers, the piece length
+     * @param maxIdle    number of free buffers kept for reuse
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * take a cleared buffer from the pool, allocated if none is free
+     *
+     * @return direct buffer of bufferSize bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            allocated.incrementAndGet();
+        } else {
+            idle.decrementAndGet();
+            buffer.clear();
+        }
+        inUse.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * give a buffer back to the pool, it must not be used afterwards
+     *
+     * @param buffer buffer taken from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        inUse.decrementAndGet();
+        if (idle.incrementAndGet() <= maxIdle) {
+            free.add(buffer);
+        } else {
+            idle.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * buffers held by pieces not written yet
+     *
+     * @return number of buffers
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * buffers allocated since the start, a growing number means buffers are not reused
+     *
+     * @return number of buffers
+     */
+    public int getAllocated() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,132 @@
+package pieces;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * FileLayout class
+ * files of a torrent laid end to end, mapping a range of the torrent data onto the files it covers
+ * <p>
+ * The torrent data is the concatenation of its files in the order of the metainfo, so a piece
+ * or a block may start in a file and end in the following ones. A range is split into spans,
+ * one per file it covers, empty files never being part of a span.
+ */
+public class FileLayout {
+    private final List<Path> paths;
+    private final long[] lengths;
+    private final long[] offsets;       // offset of each file in the torrent data
+    private final long totalLength;
+
+    /**
+     * Span class
+     * part of a range held by one file
+     */
+    public static class Span {
+        private final int file;
+        private final long fileOffset;
+        private final int length;
+
+        Span(int file, long fileOffset, int length) {
+            this.file = file;
+            this.fileOffset = fileOffset;
+            this.length = length;
+        }
+
+        public int getFile() {
+            return file;
+        }
+
+        public long getFileOffset() {
+            return fileOffset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * @param paths   files, in the order of the torrent
+     * @param lengths their lengths in bytes
+     */
+    public FileLayout(List<Path> paths, List<Long> lengths) {
+        this.paths = Collections.unmodifiableList(new ArrayList<>(paths));
+        this.lengths = new long[lengths.size()];
+        this.offsets = new long[lengths.size()];
+        long offset = 0;
+        for (int i = 0; i < this.lengths.length; i++) {
+            this.lengths[i] = lengths.get(i);
+            this.offsets[i] = offset;
+            offset += this.lengths[i];
+        }
+        this.totalLength = offset;
+    }
+
+    /**
+     * file holding a byte of the torrent data, the empty files starting at the same offset skipped
+     *
+     * @param offset offset in the torrent data, less than the total length
+     * @return file index
+     */
+    public int fileIndex(long offset) {
+        int i = Arrays.binarySearch(offsets, offset);
+        if (i < 0) {
+            return -i - 2;
+        }
+        // several files start there when some are empty, the byte is in the last of them
+        while (i + 1 < offsets.length && offsets[i + 1] == offset) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * spans of the files covering a range of the torrent data
+     *
+     * @param offset offset in the torrent data
+     * @param length range length
+     * @return spans in the order of the data
+     */
+    public List<Span> spans(long offset, int length) {
+        List<Span> spans = new ArrayList<>(2);
+        int file = fileIndex(offset);
+        while (length > 0) {
+            long fileOffset = offset - offsets[file];
+            int part = (int) Math.min(length, lengths[file] - fileOffset);
+            if (part > 0) {
+                spans.add(new Span(file, fileOffset, part));
+            }
+            offset += part;
+            length -= part;
+            file++;
+        }
+        return spans;
+    }
+
+    public int getFileCount() {
+        return lengths.length;
+    }
+
+    public Path getPath(int file) {
+        return paths.get(file);
+    }
+
+    public List<Path> getPaths() {
+        return paths;
+    }
+
+    public long getLength(int file) {
+        return lengths[file];
+    }
+
+    public long getOffset(int file) {
+        return offsets[file];
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+}
@@ -23,12 +23,12 @@ public class FileWriter extends Thread {
 
     /**
      * Write piece byte array whenever FileWriter receive a Piece
-     * with the help of a queue
+     * with the help of a queue, until every piece is completed and written
      */
     @Override
     public void run() {
         running.set(true);
-        while (running.get() && !manager.allPiecesCompleted()) {
+        while (running.get() && !(manager.allPiecesCompleted() && writingQueue.isEmpty())) {
             synchronized (writingQueue) {
                 while (writingQueue.isEmpty()) {
                     try {
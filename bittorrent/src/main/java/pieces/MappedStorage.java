@@ -0,0 +1,137 @@
+package pieces;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * MappedStorage class
+ * torrent data in a single file kept open and mapped in memory by windows
+ * <p>
+ * A window is mapped the first time a byte of it is read or written and stays mapped until
+ * the storage is closed, so a multi-GB file never needs a mapping larger than WINDOW_SIZE
+ * and pieces are copied straight between the network buffers and the page cache. Uploads do not
+ * go through the mappings : the file channel hands the page cache to the socket (sendfile).
+ */
+public class MappedStorage implements Storage {
+    static final int WINDOW_SIZE = 1 << 26;     // 64 MiB
+    private final FileChannel channel;
+    private final long size;
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+    /**
+     * open the file, created if it does not exist and extended to the torrent size
+     *
+     * @param path file path
+     * @param size torrent size in bytes
+     * @throws IOException exception
+     */
+    public MappedStorage(Path path, long size) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = size;
+        this.windows = new AtomicReferenceArray<>((int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE));
+        if (size > 0 && channel.size() < size) {
+            // a byte at the end, the file stays sparse and transferTo reads every piece in it
+            channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        checkBounds(offset, src.remaining());
+        while (src.hasRemaining()) {
+            ByteBuffer window = window(offset);
+            int length = Math.min(src.remaining(), window.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            window.put(part);
+            src.position(src.position() + length);
+            offset += length;
+        }
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        checkBounds(offset, dst.remaining());
+        while (dst.hasRemaining()) {
+            ByteBuffer window = window(offset);
+            window.limit(window.position() + Math.min(dst.remaining(), window.remaining()));
+            offset += window.remaining();
+            dst.put(window);
+        }
+    }
+
+    /**
+     * FileChannel.transferTo, the pages written through the mappings are the ones sent
+     */
+    @Override
+    public long transferTo(long offset, int length, WritableByteChannel target) throws IOException {
+        checkBounds(offset, length);
+        return channel.transferTo(offset, length, target);
+    }
+
+    @Override
+    public synchronized void flush() {
+        for (int i = 0; i < windows.length(); i++) {
+            MappedByteBuffer window = windows.get(i);
+            if (window != null) {
+                window.force();
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * flush the mapped windows and close the file, the mappings are released by the garbage collector
+     *
+     * @throws IOException exception
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    /**
+     * view on the window holding an offset, positioned at this offset
+     *
+     * @param offset offset in the torrent data
+     * @return buffer from the offset to the end of the window
+     * @throws IOException exception
+     */
+    private ByteBuffer window(long offset) throws IOException {
+        int i = (int) (offset / WINDOW_SIZE);
+        MappedByteBuffer window = windows.get(i);
+        if (window == null) {
+            window = map(i);
+        }
+        ByteBuffer view = window.duplicate();
+        view.position((int) (offset - (long) i * WINDOW_SIZE));
+        return view;
+    }
+
+    private synchronized MappedByteBuffer map(int i) throws IOException {
+        MappedByteBuffer window = windows.get(i);
+        if (window == null) {
+            long start = (long) i * WINDOW_SIZE;
+            window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, size - start));
+            windows.set(i, window);
+        }
+        return window;
+    }
+
+    private void checkBounds(long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > size) {
+            throw new IOException("Out of storage bounds : " + offset + "+" + length + " > " + size);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package pieces;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * MultiFileStorage class
+ * torrent data spread over the files of a FileLayout, each one being a MappedStorage
+ * <p>
+ * A read, write or transfer is split into the spans of the files it covers and each file gets
+ * a single call for its span. The files are opened the first time one of their bytes is used
+ * and kept open until the storage is closed, the empty files are created with the storage.
+ */
+public class MultiFileStorage implements Storage {
+    private final FileLayout layout;
+    private final AtomicReferenceArray<MappedStorage> files;
+
+    /**
+     * create the directories of the files and the empty files
+     *
+     * @param layout files of the torrent
+     * @throws IOException exception
+     */
+    public MultiFileStorage(FileLayout layout) throws IOException {
+        this.layout = layout;
+        this.files = new AtomicReferenceArray<>(layout.getFileCount());
+        for (int i = 0; i < layout.getFileCount(); i++) {
+            Path parent = layout.getPath(i).toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            if (layout.getLength(i) == 0 && !Files.exists(layout.getPath(i))) {
+                Files.createFile(layout.getPath(i));
+            }
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        checkBounds(offset, src.remaining());
+        for (FileLayout.Span span : layout.spans(offset, src.remaining())) {
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + span.getLength());
+            file(span.getFile()).write(span.getFileOffset(), part);
+            src.position(src.position() + span.getLength());
+        }
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        checkBounds(offset, dst.remaining());
+        for (FileLayout.Span span : layout.spans(offset, dst.remaining())) {
+            ByteBuffer part = dst.duplicate();
+            part.limit(part.position() + span.getLength());
+            file(span.getFile()).read(span.getFileOffset(), part);
+            dst.position(dst.position() + span.getLength());
+        }
+    }
+
+    /**
+     * transfer of each span in turn, stopping at the first one the target did not take entirely
+     */
+    @Override
+    public long transferTo(long offset, int length, WritableByteChannel target) throws IOException {
+        checkBounds(offset, length);
+        long sent = 0;
+        for (FileLayout.Span span : layout.spans(offset, length)) {
+            long n = file(span.getFile()).transferTo(span.getFileOffset(), span.getLength(), target);
+            sent += n;
+            if (n < span.getLength()) {
+                break;
+            }
+        }
+        return sent;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        for (int i = 0; i < files.length(); i++) {
+            MappedStorage file = files.get(i);
+            if (file != null) {
+                file.flush();
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        return layout.getTotalLength();
+    }
+
+    /**
+     * flush and close the files opened
+     *
+     * @throws IOException exception
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < files.length(); i++) {
+            MappedStorage file = files.getAndSet(i, null);
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private MappedStorage file(int i) throws IOException {
+        MappedStorage file = files.get(i);
+        return file != null ? file : open(i);
+    }
+
+    private synchronized MappedStorage open(int i) throws IOException {
+        MappedStorage file = files.get(i);
+        if (file == null) {
+            file = new MappedStorage(layout.getPath(i), layout.getLength(i));
+            files.set(i, file);
+        }
+        return file;
+    }
+
+    private void checkBounds(long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > layout.getTotalLength()) {
+            throw new IOException("Out of storage bounds : " + offset + "+" + length + " > " + layout.getTotalLength());
+        }
+    }
+}
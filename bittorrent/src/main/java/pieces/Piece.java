@@ -1,7 +1,9 @@
 package pieces;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import metrics.Histogram;
+import metrics.Metrics;
+
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -11,6 +13,11 @@ import java.util.List;
 
 /**
  * Piece class
+ * the blocks received are copied into a buffer of the pool, held until the piece is written
+ * <p>
+ * The SHA-1 of the piece is computed as the blocks arrive : each block is fed to the digest as
+ * soon as every block before it has been received, the blocks received out of order waiting
+ * in the piece buffer, so the hash is known right after the last block.
  */
 public class Piece {
     public static final int BLOCK_SIZE = 16384;
@@ -20,15 +27,25 @@ public class Piece {
     private List<Block> blocks = new ArrayList<>();
     private double nbBlocks;
     private boolean completed;
+    private final BufferPool pool;
+    private ByteBuffer data;                // blocks received, null until the first one
+    private MessageDigest digest;           // SHA-1 of the blocks before hashedBlocks
+    private int hashedBlocks = 0;
+    private byte[] result;                  // SHA-1 of the piece once every block is hashed
+    private static final MessageDigest SHA1 = sha1();
+    private static final Histogram HASH_TIME = Metrics.histogram("piece.hash_time");
+    private long hashTime = 0;              // ns spent hashing the blocks of the piece
 
     /**
      * pieces.Piece Constructor
      * @param i index
      * @param length piece size
+     * @param pool pool of the piece buffers
      */
-    Piece(int i, double length, byte[] pieceHash){
+    Piece(int i, double length, byte[] pieceHash, BufferPool pool){
         index = i;                          // pieces.Piece index field
         size = length;
+        this.pool = pool;
         nbBlocks = Math.ceil(size / BLOCK_SIZE);  // piece size divided by block size = 2^14
         initBlocks();
         completed = false;
@@ -60,34 +77,81 @@ public class Piece {
      *
      * @param begin     offset
      * @param blockData data
+     * @return false if the block was already received, or is not exactly one block of the piece
+     */
+    public boolean addBlockToPiece(int begin, byte[] blockData) {
+        return addBlockToPiece(begin, ByteBuffer.wrap(blockData));
+    }
+
+    /**
+     * Add a completed block to a piece, copying it into the piece buffer
+     *
+     * @param begin     offset
+     * @param blockData data, may be a view on a socket buffer
+     * @return false if the block was already received, or is not exactly one block of the piece
      */
-    public synchronized void addBlockToPiece(int begin, byte[] blockData) {
-        int i = begin / 16384;
-        if (!completed && blocks.get(i).getBlockState() != BlockState.FULL) {
-            blocks.get(i).setBlockData(blockData);
-            blocks.get(i).setBlockState(BlockState.FULL);
+    public synchronized boolean addBlockToPiece(int begin, ByteBuffer blockData) {
+        int i = begin / BLOCK_SIZE;
+        // a block overlapping its neighbours would overwrite them in the shared piece buffer
+        if (completed || begin % BLOCK_SIZE != 0 || i < 0 || i >= blocks.size()
+                || blocks.get(i).getBlockState() == BlockState.FULL
+                || blockData.remaining() != blocks.get(i).getBlockSize()) {
+            return false;
+        }
+        if (data == null) {
+            data = pool.acquire();
         }
+        ByteBuffer dst = data.duplicate();
+        dst.position(begin);
+        dst.put(blockData);
+        blocks.get(i).setBlockState(BlockState.FULL);
+        updateDigest();
+        return true;
     }
 
     /**
-     * Verify hash of received data
-     * @return true if hash is ok and else false
-     * @throws NoSuchAlgorithmException SHA-1 exception
+     * feed the digest with the blocks following the last one hashed, as long as they are received
      */
-    public synchronized boolean verifyIntegrity() throws NoSuchAlgorithmException, IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
-        for (Block b : blocks){
-            outputStream.write(b.getBlockData());
+    private void updateDigest() {
+        long start = System.nanoTime();
+        if (digest == null) {
+            digest = newDigest();
+        }
+        ByteBuffer view = data.duplicate();
+        while (hashedBlocks < blocks.size() && blocks.get(hashedBlocks).getBlockState() == BlockState.FULL) {
+            int begin = hashedBlocks * BLOCK_SIZE;
+            view.limit(begin + (int) blocks.get(hashedBlocks).getBlockSize());
+            view.position(begin);
+            digest.update(view);
+            hashedBlocks++;
         }
-        MessageDigest mDigest = MessageDigest.getInstance("SHA1");
-        byte[] result = mDigest.digest(outputStream.toByteArray());
+        if (hashedBlocks == blocks.size()) {
+            result = digest.digest();
+            HASH_TIME.record(hashTime + System.nanoTime() - start);
+            hashTime = 0;
+        } else {
+            hashTime += System.nanoTime() - start;
+        }
+    }
 
-        if (Arrays.equals(result, this.hash)){
+    /**
+     * Verify hash of received data, a piece rejected has its blocks emptied in place as a peer
+     * may be going through them
+     * @return true if hash is ok and else false
+     */
+    public synchronized boolean verifyIntegrity() {
+        if (result != null && Arrays.equals(result, this.hash)){
             return true;
         }
         else {
-            initBlocks();
+            for (Block b : blocks) {
+                b.setBlockState(BlockState.EMPTY);
+            }
             completed = false;
+            digest = null;
+            hashedBlocks = 0;
+            result = null;
+            release();
             return false;
         }
     }
@@ -107,17 +171,82 @@ public class Piece {
     }
 
     /**
-     * Write piece in FileWriter
+     * data of the piece, to be written in the file
      *
-     * @return byte array
-     * @throws IOException exception
+     * @return read-only view on the piece buffer, null if it has been released
      */
-    synchronized byte[] writePiece() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    synchronized ByteBuffer getData() {
+        if (data == null) {
+            return null;
+        }
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.limit((int) size);
+        view.position(0);
+        return view;
+    }
+
+    /**
+     * copy of a block of the piece buffer
+     *
+     * @param begin  block offset
+     * @param length block length
+     * @return block data, null if the buffer has been released
+     */
+    synchronized byte[] readBlock(int begin, int length) {
+        if (data == null) {
+            return null;
+        }
+        byte[] block = new byte[length];
+        ByteBuffer view = data.duplicate();
+        view.position(begin);
+        view.get(block);
+        return block;
+    }
+
+    /**
+     * give the piece buffer back to the pool once the piece is written or rejected
+     */
+    synchronized void release() {
+        if (data != null) {
+            pool.release(data);
+            data = null;
+        }
+    }
+
+    /**
+     * SHA-1 digest, cloned from a prototype instead of looked up in the providers for every piece
+     *
+     * @return new digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return (MessageDigest) SHA1.clone();
+        } catch (CloneNotSupportedException e) {
+            return sha1();
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * mark every block as received, the piece being checked from the file
+     */
+    synchronized void setVerified() {
         for (Block b : blocks) {
-            outputStream.write(b.getBlockData());
+            b.setBlockState(BlockState.FULL);
         }
-        return outputStream.toByteArray();
+        completed = true;
+    }
+
+    byte[] getHash() {
+        return hash;
     }
 
     public synchronized int getIndex() {
@@ -1,18 +1,24 @@
 package pieces;
 
 import message.PieceMessage;
+import metrics.Histogram;
+import metrics.Metrics;
+import org.apache.commons.codec.binary.Hex;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
-import java.security.NoSuchAlgorithmException;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,17 +29,27 @@ public class PieceManager extends ObservablePieceManager {
     private Torrent torrent;
     private int nbPieces;
     private List<Piece> pieces;
-    private int maxPiecesToAskEachTime;
     private double completedPieces = 0;
     private List<Long> fileOffsets = new ArrayList<>();
     private Selection selection;
     private static final int HASH_SIZE = 20;
-    public static final int MAX_SIZE = 1000000;
-    private byte[] blockBitfield;
-    private byte[] bitfield;
-    private static AtomicInteger percentageDownloaded = new AtomicInteger(0);
+    private Bitfield bitfield;
+    private Bitfield persisted;     // pieces written to the storage
+    private Storage storage;
+    private final ResumeFile resumeFile;
+    private final BufferPool bufferPool;
+    private final PieceVerifier verifier;
+    private static final int IDLE_BUFFERS = 16;
+    private static final Histogram HASH_TIME = Metrics.histogram("piece.hash_time");
+    private static final Histogram WRITE_LATENCY = Metrics.histogram("storage.write_latency");
+    private final AtomicInteger percentageDownloaded = new AtomicInteger(0);
+    private final AtomicInteger remainingBlocks = new AtomicInteger(0);
+    private final AtomicLong duplicateBytes = new AtomicLong(0);
+    private final AtomicLong downloaded = new AtomicLong(0);      // bytes of the blocks received, reported to the tracker
     private final ConcurrentLinkedQueue queue;
-    private final BlockingQueue conditionMet;
+    private final BlockingQueue<Boolean> conditionMet;
+    private final Executor diskPool;        // writes the pieces instead of a FileWriter when not null
+    private final AtomicBoolean completionSignaled = new AtomicBoolean(false);
 
     Logger globalLogger = Logger.getLogger("global");
 
@@ -44,17 +60,42 @@ public class PieceManager extends ObservablePieceManager {
      * @param level         Level
      * @param conditionMet  BlockingQueue
      */
-    public PieceManager(Torrent torrentObject, Level level, BlockingQueue conditionMet) {
+    public PieceManager(Torrent torrentObject, Level level, BlockingQueue<Boolean> conditionMet) {
+        this(torrentObject, level, conditionMet, new BufferPool(torrentObject.getPieceLength().intValue(), IDLE_BUFFERS), null);
+    }
+
+    /**
+     * PieceManager sharing its buffer pool and disk threads with other torrents
+     * <p>
+     * The pieces are written by the disk pool instead of a FileWriter, and conditionMet only
+     * gets notified once the last piece is written.
+     *
+     * @param torrentObject Torrent
+     * @param level         Level
+     * @param conditionMet  BlockingQueue
+     * @param bufferPool    pool of buffers of the piece length of the torrent
+     * @param diskPool      threads writing the pieces, null to write them with a FileWriter
+     */
+    public PieceManager(Torrent torrentObject, Level level, BlockingQueue<Boolean> conditionMet, BufferPool bufferPool, Executor diskPool) {
         this.queue = new ConcurrentLinkedQueue<>();
         globalLogger.setLevel(level);
         torrent = torrentObject;
         nbPieces = (int) torrentObject.getNbPieces();
+        this.bufferPool = bufferPool;
+        this.diskPool = diskPool;
+        verifier = PieceVerifier.getShared();
         pieces = initListPieces();
+        // several torrents share a session : their gauges are kept apart, the buffer pools by piece length
+        String metricsPrefix = metricsPrefix(torrentObject);
+        Metrics.gauge(metricsPrefix + "writer.queue", queue::size);
+        Metrics.gauge("buffers." + bufferPool.getBufferSize() + ".in_use", bufferPool::getInUse);
+        Metrics.gauge(metricsPrefix + "pieces.remaining_blocks", remainingBlocks::get);
+        Metrics.gauge(metricsPrefix + "pieces.duplicate_bytes", duplicateBytes::get);
+        bitfield = new Bitfield(nbPieces);
+        persisted = new Bitfield(nbPieces);
         selection = new SelectionRarestFirst(nbPieces);
-        this.blockBitfield = new byte[this.getNbPieces()];
-        maxPiecesToAskEachTime = (int) (MAX_SIZE / torrent.getPieceLength());
-        if (maxPiecesToAskEachTime == 0)
-            maxPiecesToAskEachTime = 1;
+        resumeFile = new ResumeFile(Paths.get(torrentObject.getOutputPath()), torrentObject.getLayout().getPaths(),
+                torrentObject.getInfoHash(), nbPieces);
         this.conditionMet = conditionMet;
     }
 
@@ -67,30 +108,45 @@ public class PieceManager extends ObservablePieceManager {
         long offset = torrent.getPieceLength();
         for (int i = 0; i < nbPieces; i++) {
             long size = torrent.getPieceLength();
-            listPieces.add(i, new Piece(i, size, Arrays.copyOfRange(torrent.getPiecesHash(), i * HASH_SIZE, (i + 1) * HASH_SIZE)));
+            listPieces.add(i, new Piece(i, size, Arrays.copyOfRange(torrent.getPiecesHash(), i * HASH_SIZE, (i + 1) * HASH_SIZE), bufferPool));
             fileOffsets.add(i, (offset * i));
         }
         double size = torrent.getTotalLength() - (nbPieces - 1) * (double)torrent.getPieceLength();
         listPieces.set(nbPieces - 1, new Piece(nbPieces - 1, size,
-                Arrays.copyOfRange(torrent.getPiecesHash(), (nbPieces - 1) * HASH_SIZE, nbPieces * HASH_SIZE)));
+                Arrays.copyOfRange(torrent.getPiecesHash(), (nbPieces - 1) * HASH_SIZE, nbPieces * HASH_SIZE), bufferPool));
+        for (Piece p : listPieces) {
+            remainingBlocks.addAndGet(p.getBlocks().size());
+        }
         return listPieces;
     }
 
+    /**
+     * @param torrent torrent
+     * @return prefix of the metrics of a torrent, to remove them with Metrics.remove
+     */
+    public static String metricsPrefix(Torrent torrent) {
+        return "torrent." + Hex.encodeHexString(torrent.getInfoHash()) + ".";
+    }
+
     /**
      * Add a completed piece to piece manager list
      * @param p completed piece
      */
-    public synchronized boolean addCompletedPiece(Piece p) throws NoSuchAlgorithmException, IOException {
+    public synchronized boolean addCompletedPiece(Piece p) {
         boolean completed = false;
-        if (p.checkCompleted() && p.verifyIntegrity()) {
-            completedPieces++;
-            pieces.set(p.getIndex(), p);
-            completed = true;
-            // We add the piece to our bitfield
-            updateBitfield();
-            // We notify others peers we have a new piece
-            this.notifyObserver(p);
-
+        if (!bitfield.get(p.getIndex()) && p.checkCompleted()) {
+            if (p.verifyIntegrity()) {
+                completedPieces++;
+                pieces.set(p.getIndex(), p);
+                completed = true;
+                // We add the piece to our bitfield
+                bitfield.set(p.getIndex());
+                // We notify others peers we have a new piece
+                this.notifyObserver(p);
+            } else {
+                // hash check failed, every block of the piece has to be downloaded again
+                remainingBlocks.addAndGet(p.getBlocks().size());
+            }
         }
         return completed;
     }
@@ -108,11 +164,94 @@ public class PieceManager extends ObservablePieceManager {
      * @param p piece element
      * @throws IOException exception
      */
-    public synchronized void writePiece(Piece p) throws IOException {
-        RandomAccessFile raf = new RandomAccessFile(torrent.getOutputPath(), "rw");
-        raf.seek(fileOffsets.get(p.getIndex()));
-        raf.write(p.writePiece());
-        raf.close();
+    public void writePiece(Piece p) throws IOException {
+        ByteBuffer data = p.getData();
+        if (data != null) {
+            long start = System.nanoTime();
+            getStorage().write(fileOffsets.get(p.getIndex()), data);
+            WRITE_LATENCY.recordSince(start);
+        }
+        synchronized (this) {
+            persisted.set(p.getIndex());
+        }
+        // the piece is read from the storage from now on
+        p.release();
+        resumeFile.markDirty();
+        resumeFile.startAutoSave(this::saveResumeIfDirty);
+    }
+
+    /**
+     * read a block of a piece we have, from the storage once the piece has been written
+     *
+     * @param index  piece index
+     * @param begin  block offset in the piece
+     * @param length block length
+     * @return block data or null if we don't have the block
+     * @throws IOException exception
+     */
+    public byte[] readBlock(int index, int begin, int length) throws IOException {
+        synchronized (this) {
+            if (index < 0 || index >= nbPieces || !bitfield.get(index)
+                    || begin < 0 || length <= 0 || begin + length > pieces.get(index).getSize()) {
+                return null;
+            }
+        }
+        if (!isPersisted(index)) {
+            // completed, waiting for the FileWriter : released only once written
+            byte[] block = pieces.get(index).readBlock(begin, length);
+            if (block != null) {
+                return block;
+            }
+        }
+        byte[] block = new byte[length];
+        getStorage().read(fileOffsets.get(index) + begin, ByteBuffer.wrap(block));
+        return block;
+    }
+
+    /**
+     * offset of a block in the storage, to send it without reading it, see Storage.transferTo
+     *
+     * @param index  piece index
+     * @param begin  block offset in the piece
+     * @param length block length
+     * @return offset in the storage or -1 if the piece is not written yet or the block is not valid
+     */
+    public synchronized long getStorageOffset(int index, int begin, int length) {
+        if (index < 0 || index >= nbPieces || !persisted.get(index)
+                || begin < 0 || length <= 0 || begin + length > pieces.get(index).getSize()) {
+            return -1;
+        }
+        return fileOffsets.get(index) + begin;
+    }
+
+    private synchronized boolean isPersisted(int index) {
+        return persisted.get(index);
+    }
+
+    /**
+     * storage of the torrent data, the output files are opened on first use
+     *
+     * @return storage
+     * @throws IOException exception
+     */
+    public synchronized Storage getStorage() throws IOException {
+        if (storage == null) {
+            storage = torrent.isMultiFile() ? new MultiFileStorage(torrent.getLayout())
+                    : new MappedStorage(Paths.get(torrent.getOutputPath()), torrent.getTotalLength());
+        }
+        return storage;
+    }
+
+    /**
+     * flush and close the storage
+     *
+     * @throws IOException exception
+     */
+    public synchronized void closeStorage() throws IOException {
+        if (storage != null) {
+            storage.close();
+            storage = null;
+        }
     }
 
     /**
@@ -156,121 +295,275 @@ public class PieceManager extends ObservablePieceManager {
     }
 
     /**
-     * Update the blockBitField for the specified piece
+     * save the pieces written in the resume file, after flushing the storage so its stamps are final
+     * <p>
+     * The pieces are taken before the flush : a piece written in between is left for the next save
+     * rather than saved without having been forced to the disk.
      *
-     * @param indexPiece index of the piece
      * @throws IOException exception
      */
-    public void setBlockBitfieldForPiece(double indexPiece) throws IOException {
-        this.blockBitfield[(int) indexPiece] = 1;
-        this.updateBlockBitfieldInFile();
+    public void saveResume() throws IOException {
+        Bitfield written;
+        synchronized (this) {
+            written = persisted.copy();
+        }
+        getStorage().flush();
+        resumeFile.save(written);
     }
 
     /**
-     * Update the blockBitfield in the configuration file
-     * @throws IOException exception
+     * periodic save of the resume file, only if pieces have been written since the last one
      */
-    public void updateBlockBitfieldInFile() throws IOException {
-        Path path = Paths.get(torrent.getFileName().concat("-config.txt"));
-        if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
-            Files.createFile(path);
+    private void saveResumeIfDirty() {
+        if (resumeFile.clearDirty()) {
+            try {
+                saveResume();
+            } catch (IOException e) {
+                globalLogger.severe("Resume file not saved : " + e.getMessage());
+            }
         }
-        Files.write(path, this.blockBitfield);
     }
 
     /**
      * Retrieve all pieces from final file to fill in PieceManager
+     * the pieces of an up to date resume file are trusted, the others are checked
      */
     public void retrieveAllPieces() throws IOException {
-        Path path = Paths.get(torrent.getFileName().concat("-config.txt"));
-        if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
-            Files.createFile(path);
-        }
-        byte[] bFile = Files.readAllBytes(path);
+        ResumeFile.State state = resumeFile.load();
         try {
-            RandomAccessFile raf = new RandomAccessFile(torrent.getOutputPath(), "rw");
-            int index = 0;
-            for(byte b : bFile) {
-                if(b == 1) {
-                    this.blockBitfield[index] = 1;
-                    Piece p = pieces.get(index);
-                    long pos = fileOffsets.get(index);
-                    raf.seek(pos);
-                    for (Block block : p.getBlocks()) {
-                        byte[] blockData = new byte[(int) block.getBlockSize()];
-                        raf.read(blockData);
-                        p.addBlockToPiece(block.getId() * 16384, blockData);
-                    }
-                    this.addCompletePiece(p);
+            if (state != null && state.isUpToDate()) {
+                Bitfield trusted = state.getPieces();
+                for (int i = trusted.nextSetBit(0); i >= 0; i = trusted.nextSetBit(i + 1)) {
+                    addVerifiedPiece(pieces.get(i));
                 }
-                index++;
+                globalLogger.info("Resume : " + trusted.cardinality() + " pieces restored without check");
+                return;
             }
+            Bitfield candidates = state != null ? state.getPieces() : new Bitfield(nbPieces);
+            if (state == null) {
+                // no resume file, every piece of the data file may be there
+                for (int i = 0; i < nbPieces; i++) {
+                    candidates.set(i);
+                }
+            }
+            recheck(candidates);
+            saveResume();
         } catch (Exception e) {
             globalLogger.severe(e.getMessage());
         }
     }
 
+    /**
+     * check pieces of the file on the verifier threads, each task reading a chunk of consecutive pieces at once
+     *
+     * @param candidates pieces to check
+     * @return number of pieces found complete
+     * @throws IOException          exception
+     * @throws InterruptedException exception
+     */
+    public int recheck(Bitfield candidates) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        int piecesPerChunk = (int) Math.max(1, PieceVerifier.CHUNK_SIZE / torrent.getPieceLength());
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        int first = candidates.nextSetBit(0);
+        while (first >= 0) {
+            int from = first;
+            int end = Math.min(nbPieces, first + piecesPerChunk);
+            tasks.add(() -> recheckChunk(candidates, from, end));
+            first = candidates.nextSetBit(end);
+        }
+        int verified = 0;
+        try {
+            for (Future<Integer> f : verifier.invokeAll(tasks)) {
+                verified += f.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        globalLogger.info(String.format("Recheck : %d/%d pieces verified in %.2f s, %.0f pieces/s on %d threads",
+                verified, candidates.cardinality(), seconds, candidates.cardinality() / seconds, verifier.getNbThreads()));
+        return verified;
+    }
+
+    /**
+     * check the candidate pieces between two indexes, read from the file in one go
+     *
+     * @param candidates pieces to check
+     * @param from       first piece, a candidate
+     * @param end        index after the last piece
+     * @return number of pieces found complete
+     * @throws IOException exception
+     */
+    private int recheckChunk(Bitfield candidates, int from, int end) throws IOException {
+        int last = from;
+        for (int i = candidates.nextSetBit(from); i >= 0 && i < end; i = candidates.nextSetBit(i + 1)) {
+            last = i;
+        }
+        long offset = fileOffsets.get(from);
+        ByteBuffer chunk = verifier.chunkBuffer((int) (fileOffsets.get(last) + pieces.get(last).getSize() - offset));
+        getStorage().read(offset, chunk);
+        MessageDigest digest = Piece.newDigest();
+        int verified = 0;
+        for (int i = candidates.nextSetBit(from); i >= 0 && i <= last; i = candidates.nextSetBit(i + 1)) {
+            Piece p = pieces.get(i);
+            int begin = (int) (fileOffsets.get(i) - offset);
+            chunk.limit(begin + (int) p.getSize());
+            chunk.position(begin);
+            long hashStart = System.nanoTime();
+            digest.update(chunk);
+            byte[] hash = digest.digest();
+            HASH_TIME.recordSince(hashStart);
+            if (Arrays.equals(hash, p.getHash())) {
+                addVerifiedPiece(p);
+                verified++;
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * add a piece found complete in the file
+     *
+     * @param p piece
+     */
+    private synchronized void addVerifiedPiece(Piece p) {
+        if (bitfield.get(p.getIndex())) {
+            return;
+        }
+        p.setVerified();
+        completedPieces++;
+        remainingBlocks.addAndGet(-p.getBlocks().size());
+        bitfield.set(p.getIndex());
+        persisted.set(p.getIndex());
+    }
+
     /**
      * add a completed piece and update our bitfield
      *
      * @param p piece
-     * @throws IOException              exception
-     * @throws NoSuchAlgorithmException exception
      */
-    public void addCompletePiece(Piece p) throws IOException, NoSuchAlgorithmException {
+    public void addCompletePiece(Piece p) {
         if (p.checkCompleted() && p.verifyIntegrity()) {
             completedPieces++;
             pieces.set(p.getIndex(), p);
-            // We add the piece to our bitfield
-            updateBitfield();
+            remainingBlocks.addAndGet(-p.getBlocks().size());
+            // We add the piece to our bitfield, its data is already in the file
+            bitfield.set(p.getIndex());
+            persisted.set(p.getIndex());
         }
     }
 
     /**
      * get a PieceMessage and add this block to the piece manager
-     * and if it's completing a piece then send it to the FileWriter
+     * and if it's completing a piece then check it and send it to the FileWriter from the verifier threads
+     * during the endgame, the other peers the block was requested from are told to cancel it
      *
      * @param pm PieceMessage
-     * @throws IOException exception
-     * @throws NoSuchAlgorithmException exception
-     * @throws InterruptedException exception
+     * @return false if the block had already been received
      */
-    public void addBlock(PieceMessage pm) throws IOException, NoSuchAlgorithmException, InterruptedException {
+    public boolean addBlock(PieceMessage pm) {
         int index = pm.getIndex();
         int begin = pm.getBegin();
-        byte[] block = pm.getBlock();
-        pieces.get(index).addBlockToPiece(begin, block);
-        if (addCompletedPiece(pieces.get(pm.getIndex()))) {
-            this.setBlockBitfieldForPiece(index);
-            int downloaded = getPercentageDownloaded();
-            globalLogger.info("Downloaded : " + downloaded + " %");
-            if (downloaded == 100)
+        if (!pieces.get(index).addBlockToPiece(begin, pm.getBlockBuffer())) {
+            duplicateBytes.addAndGet(pm.getBlockLength());
+            return false;
+        }
+        downloaded.addAndGet(pm.getBlockLength());
+        if (remainingBlocks.decrementAndGet() <= selection.getEndgameThreshold() && !selection.isEndgame()) {
+            globalLogger.info("Endgame : " + remainingBlocks.get() + " blocks left");
+            selection.startEndgame(pieces);
+        }
+        if (selection.isEndgame()) {
+            selection.cancelRequests(index, begin, pm.getBlockLength());
+        }
+        Piece piece = pieces.get(index);
+        if (piece.checkCompleted()) {
+            // last block of the piece, checked and written away from the network thread
+            verifier.execute(() -> completePiece(piece));
+        }
+        return true;
+    }
+
+    /**
+     * check a piece whose blocks have all been received, then announce it and hand it to the FileWriter
+     *
+     * @param piece piece
+     */
+    private void completePiece(Piece piece) {
+        try {
+            if (addCompletedPiece(piece)) {
+                int downloaded = getPercentageDownloaded();
+                globalLogger.info("Downloaded : " + downloaded + " %");
+                if (diskPool != null) {
+                    diskPool.execute(() -> writeFromPool(piece));
+                    return;
+                }
+                synchronized (queue) {
+                    queue.add(piece);
+                    queue.notify();
+                }
+                if (downloaded == 100 && conditionMet != null)
+                    conditionMet.put(true);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * write a piece from the disk pool, the download is complete once the last one is written
+     *
+     * @param piece piece checked
+     */
+    private void writeFromPool(Piece piece) {
+        try {
+            writePiece(piece);
+            if (allPiecesWritten() && conditionMet != null && completionSignaled.compareAndSet(false, true)) {
                 conditionMet.put(true);
-            synchronized (queue) {
-                queue.add(pieces.get(pm.getIndex()));
-                queue.notify();
             }
+        } catch (IOException e) {
+            globalLogger.severe(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * @return true if every piece is in the storage
+     */
+    public synchronized boolean allPiecesWritten() {
+        return persisted.cardinality() == nbPieces;
+    }
+
     /**
      * Method that construct the bitfield based on the list of completed pieces
      */
     public void updateBitfield(){
-        int bitfieldSize = 1 + this.nbPieces / 8; //We calculate the needed size to write the bitfield
-        byte[] bitfield = new byte[bitfieldSize];
+        Bitfield bitfield = new Bitfield(this.nbPieces);
         for (int i = 0; i < this.nbPieces; i++) {
             if (this.pieces.get(i).checkCompleted()) {
-                int byteIndex = i / 8;
-                int bitIndex = 7 - i % 8;
-                bitfield[byteIndex] = (byte) (bitfield[byteIndex] | (1 << bitIndex));
+                bitfield.set(i);
             }
         }
         this.bitfield = bitfield;
     }
 
+    /**
+     * payload of the BitfieldMessage announcing our pieces
+     *
+     * @return byte array
+     */
     public byte[] getBitfield() {
-        updateBitfield();
+        return bitfield.toBytes();
+    }
+
+    /**
+     * pieces we have, updated as pieces are completed
+     *
+     * @return bitfield
+     */
+    public Bitfield getPiecesBitfield() {
         return bitfield;
     }
 
@@ -280,13 +573,7 @@ public class PieceManager extends ObservablePieceManager {
      * @return percentage downloaded of file
      */
     public float updateDownloadPercentage() {
-        int piecesDownloaded = 0;
-        for (Piece p : pieces) {
-            if (p.isCompleted()) {
-                piecesDownloaded += 1;
-            }
-        }
-        return (((float) piecesDownloaded / (float) pieces.size()) * 100);
+        return (((float) bitfield.cardinality() / (float) nbPieces) * 100);
     }
 
     public int getPercentageDownloaded() {
@@ -294,8 +581,50 @@ public class PieceManager extends ObservablePieceManager {
         return percentageDownloaded.get();
     }
 
-    public int getMaxPiecesToAskEachTime() {
-        return maxPiecesToAskEachTime;
+    /**
+     * number of blocks neither received nor retrieved from the file
+     *
+     * @return remaining blocks
+     */
+    public int getRemainingBlocks() {
+        return remainingBlocks.get();
+    }
+
+    /**
+     * bytes received for blocks we already had, requested twice during the endgame
+     *
+     * @return duplicate bytes
+     */
+    public long getDuplicateBytes() {
+        return duplicateBytes.get();
+    }
+
+    /**
+     * bytes of the blocks received from the peers, duplicates excluded
+     *
+     * @return bytes downloaded
+     */
+    public long getDownloaded() {
+        return downloaded.get();
+    }
+
+    /**
+     * bytes of the pieces not verified yet
+     *
+     * @return bytes left
+     */
+    public synchronized long getLeft() {
+        long left = 0;
+        for (Piece p : pieces) {
+            if (!bitfield.get(p.getIndex())) {
+                left += p.getSize();
+            }
+        }
+        return left;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
     }
 
     public ConcurrentLinkedQueue getQueue() {
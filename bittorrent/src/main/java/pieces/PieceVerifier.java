@@ -0,0 +1,105 @@
+package pieces;
+
+import metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PieceVerifier class
+ * pool of threads checking pieces, sized to the number of cores
+ * <p>
+ * The completed pieces are checked and handed to the FileWriter from this pool instead of the
+ * network threads, and the startup recheck reads the file by chunks of CHUNK_SIZE bytes, one
+ * chunk per task, hashing the pieces of the chunk from the same buffer.
+ */
+public class PieceVerifier {
+    static final int CHUNK_SIZE = 1 << 24;      // 16 MiB
+    private static PieceVerifier shared;
+    private final ExecutorService executor;
+    private final int nbThreads;
+    private final ThreadLocal<ByteBuffer> chunks = new ThreadLocal<>();
+
+    /**
+     * @param nbThreads number of threads checking pieces
+     */
+    public PieceVerifier(int nbThreads) {
+        this.nbThreads = nbThreads;
+        AtomicInteger count = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(nbThreads, r -> {
+            Thread t = new Thread(r, "verifier-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * pool shared by every torrent, one thread per core
+     *
+     * @return verifier
+     */
+    public static synchronized PieceVerifier getShared() {
+        if (shared == null) {
+            shared = new PieceVerifier(Runtime.getRuntime().availableProcessors());
+            Metrics.gauge("verifier.queue", shared::getQueueSize);
+        }
+        return shared;
+    }
+
+    /**
+     * number of tasks waiting for a thread
+     *
+     * @return queued tasks
+     */
+    public int getQueueSize() {
+        return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+
+    /**
+     * run a task on the pool
+     *
+     * @param task task
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * run tasks on the pool and wait for all of them
+     *
+     * @param tasks tasks
+     * @param <T>   result type
+     * @return futures of the tasks, all done
+     * @throws InterruptedException exception
+     */
+    public <T> List<Future<T>> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException {
+        return executor.invokeAll(tasks);
+    }
+
+    /**
+     * direct buffer of the calling thread to read chunks of the file
+     *
+     * @param size bytes needed, CHUNK_SIZE or more for pieces larger than a chunk
+     * @return cleared buffer limited to size
+     */
+    ByteBuffer chunkBuffer(int size) {
+        ByteBuffer buffer = chunks.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(Math.max(size, CHUNK_SIZE));
+            chunks.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    public int getNbThreads() {
+        return nbThreads;
+    }
+}
@@ -0,0 +1,215 @@
+package pieces;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * ResumeFile class
+ * pieces written in the data file, saved next to it to restart without checking them again
+ * <p>
+ * Format, big-endian : magic "BTFR", version, info hash (20 bytes), number of pieces, size and
+ * last modification time of the data file when the state was saved, the pieces as in a
+ * BitfieldMessage, then the CRC32 of everything before. The pieces are trusted on restart only
+ * if the data file still has the same size and modification time, otherwise they are checked.
+ * For a multi-file torrent the size is the sum of the sizes of the files and the modification
+ * time the latest of them.
+ * <p>
+ * Saves are batched : written pieces only mark the state dirty and a background thread saves
+ * it every SAVE_INTERVAL seconds, through a temporary file renamed over the previous one.
+ */
+public class ResumeFile {
+    static final long SAVE_INTERVAL = 10;       // s
+    private static final int MAGIC = 0x42544652;
+    private static final int VERSION = 1;
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "resume-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Path path;
+    private final List<Path> dataFiles;
+    private final byte[] infoHash;
+    private final int nbPieces;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private ScheduledFuture<?> autoSave;
+
+    /**
+     * State class
+     * pieces read from a resume file
+     */
+    public static class State {
+        private final Bitfield pieces;
+        private final boolean upToDate;
+
+        State(Bitfield pieces, boolean upToDate) {
+            this.pieces = pieces;
+            this.upToDate = upToDate;
+        }
+
+        public Bitfield getPieces() {
+            return pieces;
+        }
+
+        /**
+         * check if the data file has not been modified since the state was saved
+         *
+         * @return true if the pieces can be trusted without checking them
+         */
+        public boolean isUpToDate() {
+            return upToDate;
+        }
+    }
+
+    /**
+     * @param dataPath data file, the resume file being dataPath.resume
+     * @param infoHash info hash of the torrent
+     * @param nbPieces number of pieces
+     */
+    public ResumeFile(Path dataPath, byte[] infoHash, int nbPieces) {
+        this(dataPath, Collections.singletonList(dataPath), infoHash, nbPieces);
+    }
+
+    /**
+     * @param dataPath  data file or directory of a multi-file torrent, the resume file being dataPath.resume
+     * @param dataFiles files of the torrent
+     * @param infoHash  info hash of the torrent
+     * @param nbPieces  number of pieces
+     */
+    public ResumeFile(Path dataPath, List<Path> dataFiles, byte[] infoHash, int nbPieces) {
+        this.dataFiles = dataFiles;
+        this.path = dataPath.resolveSibling(dataPath.getFileName() + ".resume");
+        this.infoHash = infoHash;
+        this.nbPieces = nbPieces;
+    }
+
+    /**
+     * read the resume file
+     *
+     * @return state saved, null if there is no valid resume file for this torrent
+     * @throws IOException exception
+     */
+    public State load() throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        byte[] content = Files.readAllBytes(path);
+        if (content.length < 4) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(content, content.length - 4, 4).getInt()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content, 0, content.length - 4));
+        byte[] hash = new byte[infoHash.length];
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+        }
+        in.readFully(hash);
+        if (!Arrays.equals(hash, infoHash) || in.readInt() != nbPieces) {
+            return null;
+        }
+        long size = in.readLong();
+        long modified = in.readLong();
+        byte[] wire = new byte[(nbPieces + 7) >>> 3];
+        in.readFully(wire);
+        boolean upToDate = dataFiles.stream().allMatch(Files::isRegularFile)
+                && dataSize() == size
+                && lastModified() == modified;
+        return new State(Bitfield.fromBytes(wire, nbPieces), upToDate);
+    }
+
+    /**
+     * save the pieces written, the data file must have been flushed to stamp it
+     *
+     * @param pieces pieces in the data file
+     * @throws IOException exception
+     */
+    public synchronized void save(Bitfield pieces) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(infoHash);
+        out.writeInt(nbPieces);
+        out.writeLong(dataSize());
+        out.writeLong(lastModified());
+        out.write(pieces.toBytes());
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long dataSize() throws IOException {
+        long size = 0;
+        for (Path file : dataFiles) {
+            size += Files.size(file);
+        }
+        return size;
+    }
+
+    private long lastModified() throws IOException {
+        long modified = 0;
+        for (Path file : dataFiles) {
+            modified = Math.max(modified, Files.getLastModifiedTime(file).toMillis());
+        }
+        return modified;
+    }
+
+    /**
+     * a piece has been written, it will be in the next save
+     */
+    public void markDirty() {
+        dirty.set(true);
+    }
+
+    /**
+     * take the dirty flag
+     *
+     * @return true if pieces have been written since the last call
+     */
+    public boolean clearDirty() {
+        return dirty.getAndSet(false);
+    }
+
+    /**
+     * run a save every SAVE_INTERVAL seconds, does nothing if already started
+     *
+     * @param save task saving the state if it is dirty
+     */
+    public synchronized void startAutoSave(Runnable save) {
+        if (autoSave == null) {
+            autoSave = scheduler.scheduleWithFixedDelay(save, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * stop the periodic saves
+     */
+    public synchronized void stopAutoSave() {
+        if (autoSave != null) {
+            autoSave.cancel(false);
+            autoSave = null;
+        }
+    }
+}
@@ -4,24 +4,31 @@ import peers.PeerClient;
 
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Selection class
  */
 public abstract class Selection {
-    protected ConcurrentHashMap<PeerClient, List<Piece>> pieces;
+    public static final int DEFAULT_ENDGAME_THRESHOLD = 32;    // blocks
+    protected final int nbPieces;
+    protected ConcurrentHashMap<PeerClient, Bitfield> pieces;
     public Hashtable<PeerClient, Map<Piece, List<Block>>> piecesToAsk;
-    public Hashtable<PeerClient, AtomicBoolean> maj;
     protected final AtomicBoolean done = new AtomicBoolean(false);
+    private final AtomicBoolean endgame = new AtomicBoolean(false);
+    private volatile List<Piece> endgamePieces = new ArrayList<>();
+    private int endgameThreshold = DEFAULT_ENDGAME_THRESHOLD;
+    private final AtomicLong cancelsSent = new AtomicLong(0);
 
-    Selection() {
+    Selection(int nbPieces) {
+        this.nbPieces = nbPieces;
         pieces = new ConcurrentHashMap<>();
         piecesToAsk = new Hashtable<>();
-        maj = new Hashtable<>();
     }
 
     /**
@@ -30,19 +37,34 @@ public abstract class Selection {
      * @param p PeerClient
      */
     public synchronized void initBitfieldForPeer(PeerClient p) {
-        pieces.put(p, new ArrayList<>());
+        pieces.put(p, new Bitfield(nbPieces));
         piecesToAsk.put(p, new ConcurrentHashMap<>());
-        maj.put(p, new AtomicBoolean(false));
     }
 
     /**
      * set bitfield for peer
      *
-     * @param p    Piece
-     * @param peer PeerClient
+     * @param bitfield pieces the peer has
+     * @param peer     PeerClient
      */
-    public synchronized void setBitfield(Piece p, PeerClient peer) {
-        pieces.get(peer).add(p);
+    public synchronized void setBitfield(Bitfield bitfield, PeerClient peer) {
+        Bitfield peerPieces = pieces.get(peer);
+        if (peerPieces != null) {
+            peerPieces.or(bitfield);
+        }
+    }
+
+    /**
+     * add a piece to the bitfield of a peer (have message)
+     *
+     * @param index piece index
+     * @param peer  PeerClient
+     */
+    public synchronized void setHave(int index, PeerClient peer) {
+        Bitfield peerPieces = pieces.get(peer);
+        if (peerPieces != null) {
+            peerPieces.set(index);
+        }
     }
 
     /**
@@ -60,13 +82,47 @@ public abstract class Selection {
      */
     public abstract Map<Piece, List<Block>> selectPiecesToAskFromPeer(PeerClient p);
 
+    /**
+     * next piece to ask from a peer, taken from the pieces selected for it
+     *
+     * @param p PeerClient
+     * @return piece or null if nothing is left to ask from this peer
+     */
+    public synchronized Piece nextPieceToAsk(PeerClient p) {
+        Map<Piece, List<Block>> selected = selectPiecesToAskFromPeer(p);
+        if (selected == null) {
+            return null;
+        }
+        Iterator<Piece> it = selected.keySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Piece piece = it.next();
+        it.remove();
+        return piece;
+    }
+
+    /**
+     * give back a piece taken by nextPieceToAsk whose requests have been dropped, so its blocks
+     * are asked again without waiting for the next selection
+     *
+     * @param p     PeerClient the piece was given to
+     * @param piece Piece
+     */
+    public synchronized void putBack(PeerClient p, Piece piece) {
+        Map<Piece, List<Block>> selected = selectPiecesToAskFromPeer(p);
+        if (selected != null && !piece.isCompleted()) {
+            selected.put(piece, piece.getBlocks());
+        }
+    }
+
     /**
      * method which verify if every peer has set up its bitfield
      *
      * @return true if all peers have set up their bitfield and false if not
      */
     public synchronized boolean allPeersAskedForTheirBitfield() {
-        for (Map.Entry<PeerClient, List<Piece>> entry : pieces.entrySet()) {
+        for (Map.Entry<PeerClient, Bitfield> entry : pieces.entrySet()) {
             if (!entry.getKey().getBitfieldSet().get()) {
                 return false;
             }
@@ -74,6 +130,19 @@ public abstract class Selection {
         return true;
     }
 
+    /**
+     * @return number of peers whose bitfield is known, a new one calling for a selection round
+     */
+    public synchronized int getPeersWithBitfield() {
+        int count = 0;
+        for (PeerClient peer : pieces.keySet()) {
+            if (peer.getBitfieldSet().get()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * method which set a peer to completed when there is nothing left to ask from it
      */
@@ -92,6 +161,47 @@ public abstract class Selection {
         pieces.remove(peerClient);
         piecesToAsk.remove(peerClient);
     }
+
+    /**
+     * enter the endgame : the remaining blocks may be requested from every peer having them
+     *
+     * @param allPieces pieces of the torrent
+     */
+    public synchronized void startEndgame(List<Piece> allPieces) {
+        List<Piece> left = new ArrayList<>();
+        for (Piece p : allPieces) {
+            if (!p.isCompleted()) {
+                left.add(p);
+            }
+        }
+        endgamePieces = left;
+        endgame.set(true);
+    }
+
+    /**
+     * check if a peer has a piece
+     *
+     * @param peer  PeerClient
+     * @param piece Piece
+     * @return true if the peer announced the piece
+     */
+    public boolean hasPiece(PeerClient peer, Piece piece) {
+        Bitfield peerPieces = pieces.get(peer);
+        return peerPieces != null && peerPieces.get(piece.getIndex());
+    }
+
+    /**
+     * a block has been received during the endgame, every peer still waiting for it cancels its request
+     *
+     * @param index  piece index
+     * @param begin  block offset
+     * @param length block length
+     */
+    public void cancelRequests(int index, int begin, int length) {
+        for (PeerClient peer : pieces.keySet()) {
+            peer.cancelRequest(index, begin, length);
+        }
+    }
     /*****************************************************************************/
     /**                             GETTER AND SETTER                           **/
     /*****************************************************************************/
@@ -107,18 +217,28 @@ public abstract class Selection {
         return done;
     }
 
-    public boolean getMaj(PeerClient p) {
-        return maj.get(p).get();
+    public boolean isEndgame() {
+        return endgame.get();
     }
 
-    public void setMaj(PeerClient p, boolean b) {
-        maj.get(p).set(b);
+    public List<Piece> getEndgamePieces() {
+        return endgamePieces;
     }
 
-    public void setMaj(boolean b) {
-        for (Map.Entry<PeerClient, AtomicBoolean> p : maj.entrySet()) {
-            p.getValue().set(b);
-        }
+    public int getEndgameThreshold() {
+        return endgameThreshold;
+    }
+
+    public void setEndgameThreshold(int endgameThreshold) {
+        this.endgameThreshold = endgameThreshold;
+    }
+
+    public void addCancelSent() {
+        cancelsSent.incrementAndGet();
+    }
+
+    public long getCancelsSent() {
+        return cancelsSent.get();
     }
 
 
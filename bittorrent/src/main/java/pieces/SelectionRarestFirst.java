@@ -2,90 +2,190 @@ package pieces;
 
 import peers.PeerClient;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /**
  * SelectionRarestFirst class
+ * pieces are handed out one at a time, the rarest piece the peer has first
+ * <p>
+ * The number of peers having each piece is kept up to date on bitfield, have and disconnect
+ * events. Pieces still to ask are linked in buckets by availability, so moving a piece when its
+ * availability changes is a constant time operation. A pick walks the buckets from the rarest
+ * one and stops at the first piece the peer has, unless the peer has fewer pieces than there are
+ * pieces to ask : its pieces are then walked instead, so a peer with few pieces never walks
+ * every bucket.
+ * <p>
+ * A piece is handed out to a single peer : pieces with requests in flight are left to their peer,
+ * which puts them back with putBack if its requests are dropped.
  */
-public class SelectionRarestFirst extends SelectionWeight {
-    Map<Integer, Integer> rarestPieces; // < index Piece, nb of peers having piece>
+public class SelectionRarestFirst extends Selection {
+    private static final int NONE = -1;
+    private final int[] availability;   // index Piece -> nb of peers having piece
+    private final int[] next;           // next piece in the same bucket
+    private final int[] prev;           // previous piece in the same bucket
+    private final boolean[] queued;     // piece still to ask, linked in its bucket
+    private int queuedCount = 0;        // pieces linked in the buckets
+    private final Piece[] toAsk;        // index -> Piece, set by the last selection
+    private int[] head = new int[0];    // availability -> first piece of the bucket
+    private int[] tail = new int[0];    // availability -> last piece of the bucket
 
     SelectionRarestFirst(int nbPieces) {
-        super();
-        rarestPieces = initRarestPiecesDict(nbPieces);
+        super(nbPieces);
+        availability = new int[nbPieces];
+        next = new int[nbPieces];
+        prev = new int[nbPieces];
+        queued = new boolean[nbPieces];
+        toAsk = new Piece[nbPieces];
     }
 
     /**
-     * init Map for rarest pieces
+     * setBitfield for a peer, counting the pieces the peer did not announce yet
      *
-     * @param nbPieces pieces number
-     * @return Map rarestPieces
+     * @param bitfield pieces the peer has
+     * @param peer     PeerClient
      */
-    private Map<Integer, Integer> initRarestPiecesDict(int nbPieces) {
-        Map<Integer, Integer> dict = new HashMap<>();
-        for (int i = 0; i < nbPieces; i++) {
-            dict.put(i, 0);
+    @Override
+    public synchronized void setBitfield(Bitfield bitfield, PeerClient peer) {
+        Bitfield peerPieces = pieces.get(peer);
+        if (peerPieces == null) {
+            return;
+        }
+        for (int i = bitfield.nextSetBit(0); i >= 0; i = bitfield.nextSetBit(i + 1)) {
+            if (!peerPieces.get(i)) {
+                updateAvailability(i, 1);
+            }
+        }
+        super.setBitfield(bitfield, peer);
+    }
+
+    /**
+     * have message from a peer
+     *
+     * @param index piece index
+     * @param peer  PeerClient
+     */
+    @Override
+    public synchronized void setHave(int index, PeerClient peer) {
+        Bitfield peerPieces = pieces.get(peer);
+        if (peerPieces != null && !peerPieces.get(index)) {
+            updateAvailability(index, 1);
         }
-        return dict;
+        super.setHave(index, peer);
     }
 
     /**
-     * setBitfield for a peer
+     * remove a peer and its pieces from the availability
      *
-     * @param p    Piece
-     * @param peer PeerClient
+     * @param peerClient PeerClient
      */
     @Override
-    public synchronized void setBitfield(Piece p, PeerClient peer) {
-        super.setBitfield(p, peer);
-        rarestPieces.put(p.getIndex(), rarestPieces.get(p.getIndex()) + 1);
+    public synchronized void removePeer(PeerClient peerClient) {
+        Bitfield peerPieces = pieces.get(peerClient);
+        if (peerPieces != null) {
+            for (int i = peerPieces.nextSetBit(0); i >= 0; i = peerPieces.nextSetBit(i + 1)) {
+                updateAvailability(i, -1);
+            }
+        }
+        super.removePeer(peerClient);
     }
 
     /**
-     * select pieces to ask for every peer
+     * put the left pieces back in their buckets, except the pieces with requests in flight
      *
      * @param piecesToDownload left pieces to download
      */
     @Override
     public synchronized void selectPiecesToAsk(Map<Piece, List<Block>> piecesToDownload) {
-        super.selectPiecesToAsk(piecesToDownload);
-        // Reverse rarestPieces map in descending order
-        LinkedHashMap<Integer, Integer> reverseSortedMap = new LinkedHashMap<>();
-        rarestPieces.entrySet()
-                .stream()
-                .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                .forEachOrdered(x -> reverseSortedMap.put(x.getKey(), x.getValue()));
-        rarestPieces.clear();
-        rarestPieces.putAll(reverseSortedMap);
-
-        // il faut trier le tableau piecesToAsk en fonction de rarestPieces
-        for (Map.Entry<PeerClient, Map<Piece, List<Block>>> peer : piecesToAsk.entrySet()) {
-            int cursor = 0;
-            ArrayList<Piece> keySetList = new ArrayList<>(piecesToAsk.get(peer.getKey()).keySet());
-            for (Integer rarestPiece : rarestPieces.keySet()) {
-                Iterator iterator = piecesToAsk.get(peer.getKey()).keySet().iterator();
-                while (iterator.hasNext()) {
-                    Piece key = (Piece) iterator.next();
-                    if (key.getIndex() == rarestPiece) {
-                        Set<Piece> keys = piecesToAsk.get(peer.getKey()).keySet();
-                        List<Piece> listKeys = new ArrayList<>(keys);
-                        Collections.swap(keySetList, cursor, listKeys.indexOf(key));
-                        LinkedHashMap<Piece, List<Block>> swappedMap = new LinkedHashMap<>();
-
-                        for (Piece oldSwappedKey : keySetList) {
-                            swappedMap.put(oldSwappedKey, piecesToAsk.get(peer.getKey()).get(oldSwappedKey));
-                        }
-                        piecesToAsk.get(peer.getKey()).clear();
-                        piecesToAsk.get(peer.getKey()).putAll(swappedMap);
-                        cursor++;
-                    }
+        Arrays.fill(head, NONE);
+        Arrays.fill(tail, NONE);
+        Arrays.fill(queued, false);
+        queuedCount = 0;
+        Arrays.fill(toAsk, null);
+        for (Piece p : piecesToDownload.keySet()) {
+            toAsk[p.getIndex()] = p;
+        }
+        for (int i = 0; i < nbPieces; i++) {
+            if (toAsk[i] != null && !hasPendingBlock(toAsk[i])) {
+                link(i);
+            }
+        }
+    }
+
+    /**
+     * rarest piece this peer has among the pieces nobody has been asked for
+     *
+     * @param p PeerClient
+     * @return piece, removed from the pieces to ask, or null if the peer has none of them
+     */
+    @Override
+    public synchronized Piece nextPieceToAsk(PeerClient p) {
+        Bitfield peerPieces = pieces.get(p);
+        if (peerPieces == null) {
+            return null;
+        }
+        if (peerPieces.cardinality() < queuedCount) {
+            return nextPieceOfPeer(peerPieces);
+        }
+        // bucket 0 holds the pieces no peer has
+        for (int count = 1; count < head.length; count++) {
+            int i = head[count];
+            while (i != NONE) {
+                int following = next[i];
+                if (toAsk[i].isCompleted()) {
+                    unlink(i);
+                } else if (peerPieces.get(i)) {
+                    unlink(i);
+                    return toAsk[i];
                 }
+                i = following;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * rarest piece to ask among the pieces of a peer, walking its pieces instead of the buckets
+     *
+     * @param peerPieces pieces the peer has
+     * @return piece, removed from the pieces to ask, or null if the peer has none of them
+     */
+    private Piece nextPieceOfPeer(Bitfield peerPieces) {
+        int best = NONE;
+        for (int i = peerPieces.nextSetBit(0); i >= 0; i = peerPieces.nextSetBit(i + 1)) {
+            if (!queued[i] || availability[i] == 0) {
+                continue;
+            }
+            if (toAsk[i].isCompleted()) {
+                unlink(i);
+            } else if (best == NONE || availability[i] < availability[best]) {
+                best = i;
             }
         }
+        if (best == NONE) {
+            return null;
+        }
+        unlink(best);
+        return toAsk[best];
     }
 
     /**
-     * pieces to ask fro a special peer
+     * link a piece handed out by nextPieceToAsk back in its bucket, for every peer having it
+     *
+     * @param p     PeerClient the piece was given to
+     * @param piece Piece
+     */
+    @Override
+    public synchronized void putBack(PeerClient p, Piece piece) {
+        int i = piece.getIndex();
+        if (toAsk[i] == piece && !queued[i] && !piece.isCompleted()) {
+            link(i);
+        }
+    }
+
+    /**
+     * pieces are handed out by nextPieceToAsk, nothing is assigned in advance
      *
      * @param p PeerClient
      */
@@ -93,4 +193,86 @@ public class SelectionRarestFirst extends SelectionWeight {
     public synchronized Map<Piece, List<Block>> selectPiecesToAskFromPeer(PeerClient p) {
         return this.piecesToAsk.get(p);
     }
+
+    /**
+     * number of connected peers having a piece
+     *
+     * @param index piece index
+     * @return availability
+     */
+    public synchronized int getAvailability(int index) {
+        return availability[index];
+    }
+
+    /**
+     * change the availability of a piece and move it to its new bucket
+     *
+     * @param index piece index
+     * @param delta +1 or -1
+     */
+    private void updateAvailability(int index, int delta) {
+        if (queued[index]) {
+            unlink(index);
+            availability[index] += delta;
+            link(index);
+        } else {
+            availability[index] += delta;
+        }
+    }
+
+    /**
+     * add a piece at the end of the bucket of its availability
+     *
+     * @param index piece index
+     */
+    private void link(int index) {
+        int count = availability[index];
+        if (count >= head.length) {
+            int oldLength = head.length;
+            head = Arrays.copyOf(head, Math.max(count + 1, oldLength * 2));
+            tail = Arrays.copyOf(tail, head.length);
+            Arrays.fill(head, oldLength, head.length, NONE);
+            Arrays.fill(tail, oldLength, tail.length, NONE);
+        }
+        prev[index] = tail[count];
+        next[index] = NONE;
+        if (tail[count] == NONE) {
+            head[count] = index;
+        } else {
+            next[tail[count]] = index;
+        }
+        tail[count] = index;
+        queued[index] = true;
+        queuedCount++;
+    }
+
+    /**
+     * remove a piece from its bucket
+     *
+     * @param index piece index
+     */
+    private void unlink(int index) {
+        int count = availability[index];
+        if (prev[index] == NONE) {
+            head[count] = next[index];
+        } else {
+            next[prev[index]] = next[index];
+        }
+        if (next[index] == NONE) {
+            tail[count] = prev[index];
+        } else {
+            prev[next[index]] = prev[index];
+        }
+        queued[index] = false;
+        queuedCount--;
+    }
+
+    private static boolean hasPendingBlock(Piece piece) {
+        for (Block b : piece.getBlocks()) {
+            if (b.getBlockState() == BlockState.PENDING) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -2,6 +2,7 @@ package pieces;
 
 import peers.PeerClient;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -15,8 +16,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * ne pas requérir une pièce que vous avez déjà
  */
 public class SelectionSequential extends Selection {
-    SelectionSequential() {
-        super();
+    SelectionSequential(int nbPieces) {
+        super(nbPieces);
     }
 
     /**
@@ -29,12 +30,14 @@ public class SelectionSequential extends Selection {
         for (Map.Entry<PeerClient, Map<Piece, List<Block>>> entry : piecesToAsk.entrySet()) {
             entry.setValue(new ConcurrentHashMap<>());
         }
-        for (Map.Entry<PeerClient, List<Piece>> entry : pieces.entrySet()) {
+        for (Map.Entry<PeerClient, Bitfield> entry : pieces.entrySet()) {
             if (!entry.getValue().isEmpty()) {
-                for (Piece p : entry.getValue()) {
-                    if (piecesToDownload.containsKey(p)) {
-                        piecesToAsk.get(entry.getKey()).put(p, piecesToDownload.get(p));
-                        piecesToDownload.remove(p);
+                Iterator<Map.Entry<Piece, List<Block>>> it = piecesToDownload.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Piece, List<Block>> p = it.next();
+                    if (entry.getValue().get(p.getKey().getIndex())) {
+                        piecesToAsk.get(entry.getKey()).put(p.getKey(), p.getValue());
+                        it.remove();
                     }
                 }
             } else {
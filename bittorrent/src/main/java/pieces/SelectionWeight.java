@@ -12,8 +12,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * SelectionWeight class : pieces selected to balance charge on peers
  */
 public class SelectionWeight extends Selection {
-    SelectionWeight() {
-        super();
+    SelectionWeight(int nbPieces) {
+        super(nbPieces);
     }
 
     /**
@@ -27,21 +27,24 @@ public class SelectionWeight extends Selection {
         for (Map.Entry<PeerClient, Map<Piece, List<Block>>> entry : piecesToAsk.entrySet())
             entry.setValue(new ConcurrentHashMap<>());
 
-        // init peersCharge map
+        // init peersCharge map, peers without any piece have nothing to give
         Map<PeerClient, Integer> peersCharge = new HashMap<>();
-        for (Map.Entry<PeerClient, List<Piece>> entry : pieces.entrySet())
+        Map<PeerClient, Bitfield> peersWithPieces = new HashMap<>();
+        for (Map.Entry<PeerClient, Bitfield> entry : pieces.entrySet()) {
             peersCharge.put(entry.getKey(), 0);
+            if (!entry.getValue().isEmpty())
+                peersWithPieces.put(entry.getKey(), entry.getValue());
+            else
+                entry.getKey().setCompleted(true);
+        }
 
         // fill in map with pieces
         Iterator<Piece> it = piecesToDownload.keySet().iterator();
         while (it.hasNext()) {
             Piece p = it.next();
-            for (Map.Entry<PeerClient, List<Piece>> entry : pieces.entrySet()) {
-                if (!entry.getValue().isEmpty()) {
-                    if (entry.getValue().contains(p))
-                        peersCharge.put(entry.getKey(), peersCharge.get(entry.getKey()) + 1);
-                } else
-                    entry.getKey().setCompleted(true);
+            for (Map.Entry<PeerClient, Bitfield> entry : peersWithPieces.entrySet()) {
+                if (entry.getValue().get(p.getIndex()))
+                    peersCharge.put(entry.getKey(), peersCharge.get(entry.getKey()) + 1);
             }
             Map.Entry<PeerClient, Integer> min = null;
             for (Map.Entry<PeerClient, Integer> entry : peersCharge.entrySet()) {
@@ -0,0 +1,50 @@
+package pieces;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage interface
+ * bytes of the torrent data, addressed by their offset from the beginning of the first piece
+ */
+public interface Storage extends Closeable {
+    /**
+     * write every remaining byte of a buffer
+     *
+     * @param offset offset in the torrent data
+     * @param src    buffer in read mode, consumed
+     * @throws IOException exception
+     */
+    void write(long offset, ByteBuffer src) throws IOException;
+
+    /**
+     * fill the remaining bytes of a buffer
+     *
+     * @param offset offset in the torrent data
+     * @param dst    buffer in write mode, filled up to its limit
+     * @throws IOException exception
+     */
+    void read(long offset, ByteBuffer dst) throws IOException;
+
+    /**
+     * send bytes straight to a channel, without copying them in the heap
+     *
+     * @param offset offset in the torrent data
+     * @param length number of bytes to send
+     * @param target channel, a socket for the uploads
+     * @return number of bytes sent, less than length if a non-blocking target is full
+     * @throws IOException exception
+     */
+    long transferTo(long offset, int length, WritableByteChannel target) throws IOException;
+
+    /**
+     * write the data still in memory to the disk
+     *
+     * @throws IOException exception
+     */
+    void flush() throws IOException;
+
+    long size();
+}
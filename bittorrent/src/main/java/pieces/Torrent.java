@@ -5,8 +5,13 @@ import bencode.BEncodedValue;
 import bencode.BEncoder;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,12 +22,16 @@ import java.util.logging.Logger;
 public class Torrent {
     private String outputPath;
     private String announce;
+    private List<List<String>> announceList = new ArrayList<>();    // tiers of trackers, the announce alone if none
     private byte[] infoHash;
     private String fileName;
     private Long totalLength;
     private Long pieceLength;
     private double nbPieces;
     private byte[] piecesHash;
+    private boolean multiFile;
+    private List<String> filePaths = new ArrayList<>();     // relative to the torrent directory for a multi-file torrent
+    private List<Long> fileLengths = new ArrayList<>();
     protected Logger globalLogger = Logger.getLogger("global");
 
     public Torrent(File torrent, File directory, Level level) throws IOException, NoSuchAlgorithmException {
@@ -35,11 +44,11 @@ public class Torrent {
     /**
      * method checking if the file is already in its directory
      *
-     * @return true if the file exists and is a file and false if not
+     * @return true if the file exists and is a file (a directory for a multi-file torrent) and false if not
      */
     public boolean checkAlreadyDownloaded() {
         File file = new File(outputPath);
-        return file.exists() && file.isFile();
+        return file.exists() && (multiFile ? file.isDirectory() : file.isFile());
     }
 
     /**
@@ -55,9 +64,31 @@ public class Torrent {
         BDecoder reader = new BDecoder(flux);
         Map<String, BEncodedValue> document = reader.decodeMap().getMap();
         Map<String, BEncodedValue> info = document.get("info").getMap();
-        announce = document.get("announce").getString();
-        totalLength = info.get("length").getLong();
+        parseAnnounceList(document);
         fileName = new String(info.get("name").getBytes());
+        checkPathElement(fileName);
+        multiFile = info.containsKey("files");
+        if (multiFile) {
+            totalLength = 0L;
+            for (BEncodedValue file : info.get("files").getList()) {
+                Map<String, BEncodedValue> fileInfo = file.getMap();
+                StringBuilder path = new StringBuilder();
+                for (BEncodedValue element : fileInfo.get("path").getList()) {
+                    String name = new String(element.getBytes());
+                    checkPathElement(name);
+                    path.append(path.length() > 0 ? File.separator : "").append(name);
+                }
+                if (path.length() == 0) {
+                    throw new IOException("Empty file path in torrent");
+                }
+                filePaths.add(path.toString());
+                fileLengths.add(fileInfo.get("length").getLong());
+                totalLength += fileInfo.get("length").getLong();
+            }
+        } else {
+            totalLength = info.get("length").getLong();
+            fileLengths.add(totalLength);
+        }
         pieceLength = info.get("piece length").getLong();
         nbPieces = Math.ceil((float)totalLength / pieceLength);
         piecesHash = info.get("pieces").getBytes();
@@ -65,10 +96,73 @@ public class Torrent {
         BEncoder.encode(info, baos);
         MessageDigest mDigest = MessageDigest.getInstance("SHA1");
         this.infoHash = mDigest.digest(baos.toByteArray());
-        globalLogger.info("file to download : " + fileName);
+        globalLogger.info("file to download : " + fileName + (multiFile ? " (" + filePaths.size() + " files)" : ""));
         globalLogger.info("pieces number to download : " + nbPieces);
     }
 
+    /**
+     * tiers of the announce-list (BEP 12), each tier shuffled, or a single tier with the announce
+     *
+     * @param document torrent dictionary
+     * @throws IOException exception
+     */
+    private void parseAnnounceList(Map<String, BEncodedValue> document) throws IOException {
+        if (document.containsKey("announce-list")) {
+            for (BEncodedValue tier : document.get("announce-list").getList()) {
+                List<String> urls = new ArrayList<>();
+                for (BEncodedValue url : tier.getList()) {
+                    String announceURL = url.getString();
+                    if (!announceURL.isEmpty() && !urls.contains(announceURL)) {
+                        urls.add(announceURL);
+                    }
+                }
+                if (!urls.isEmpty()) {
+                    Collections.shuffle(urls);
+                    announceList.add(urls);
+                }
+            }
+        }
+        if (document.containsKey("announce")) {
+            announce = document.get("announce").getString();
+        } else if (!announceList.isEmpty()) {
+            announce = announceList.get(0).get(0);
+        } else {
+            throw new IOException("No tracker in torrent");
+        }
+        if (announceList.isEmpty()) {
+            announceList.add(Collections.singletonList(announce));
+        }
+    }
+
+    /**
+     * reject the path elements which would make a file land outside of the torrent directory
+     *
+     * @param name file or directory name read from the torrent
+     * @throws IOException exception
+     */
+    private static void checkPathElement(String name) throws IOException {
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.contains("/") || name.contains("\\")) {
+            throw new IOException("Invalid path in torrent : " + name);
+        }
+    }
+
+    /**
+     * files of the torrent, in the output directory for a multi-file torrent
+     *
+     * @return file layout for the current output path
+     */
+    public FileLayout getLayout() {
+        Path output = Paths.get(outputPath);
+        if (!multiFile) {
+            return new FileLayout(Collections.singletonList(output), fileLengths);
+        }
+        List<Path> paths = new ArrayList<>();
+        for (String path : filePaths) {
+            paths.add(output.resolve(path));
+        }
+        return new FileLayout(paths, fileLengths);
+    }
+
     /*************************************************************************/
     /**                         GETTER AND SETTER                           **/
     /*************************************************************************/
@@ -76,7 +170,11 @@ public class Torrent {
         return announce;
     }
 
-    Long getPieceLength() {
+    public List<List<String>> getAnnounceList() {
+        return announceList;
+    }
+
+    public Long getPieceLength() {
         return pieceLength;
     }
 
@@ -102,4 +200,8 @@ public class Torrent {
     public String getFileName() {
         return fileName;
     }
+
+    public boolean isMultiFile() {
+        return multiFile;
+    }
 }
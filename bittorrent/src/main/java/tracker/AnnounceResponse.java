@@ -0,0 +1,52 @@
+package tracker;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * AnnounceResponse class
+ * answer of a tracker to an announce : peers of the swarm and when to announce again
+ */
+public class AnnounceResponse {
+    private final int interval;         // s
+    private final int minInterval;      // s, -1 if the tracker gave none
+    private final int complete;
+    private final int incomplete;
+    private final List<InetSocketAddress> peers;
+
+    /**
+     * @param interval    seconds to wait before the next regular announce
+     * @param minInterval seconds to wait at least before any announce, -1 if none
+     * @param complete    number of seeders, -1 if unknown
+     * @param incomplete  number of leechers, -1 if unknown
+     * @param peers       peers returned
+     */
+    public AnnounceResponse(int interval, int minInterval, int complete, int incomplete, List<InetSocketAddress> peers) {
+        this.interval = interval;
+        this.minInterval = minInterval;
+        this.complete = complete;
+        this.incomplete = incomplete;
+        this.peers = Collections.unmodifiableList(peers);
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public int getMinInterval() {
+        return minInterval;
+    }
+
+    public int getComplete() {
+        return complete;
+    }
+
+    public int getIncomplete() {
+        return incomplete;
+    }
+
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+}
@@ -0,0 +1,278 @@
+package tracker;
+
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
+import peers.PeerManager;
+import peers.Server;
+import pieces.PieceManager;
+import pieces.Torrent;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * AnnounceScheduler class
+ * announces of the torrents made in the background, when the trackers ask for them
+ * <p>
+ * Every torrent is announced with "started" when added, then again after the interval given by
+ * its tracker. An announce asked before (more peers wanted, download completed) never comes
+ * sooner than the min interval, or Tracker.DEFAULT_MIN_INTERVAL if the tracker gives none, except
+ * for the events. A failed announce is retried after RETRY_MIN seconds, doubled on each failure up
+ * to RETRY_MAX. The peers returned are handed to the PeerManager, whose reactors open the
+ * connections, so the selection never waits for a tracker.
+ */
+public class AnnounceScheduler {
+    static final long RETRY_MIN = 15;       // s, delay before the first retry
+    static final long RETRY_MAX = 1800;     // s
+    private static final long STOP_TIMEOUT = 5;     // s, to send the "stopped" events on shutdown
+    private static final Counter ANNOUNCES = Metrics.counter("tracker.announces");
+    private static final Counter FAILURES = Metrics.counter("tracker.failures");
+    private static final Histogram ANNOUNCE_TIME = Metrics.histogram("tracker.announce_time");
+    private final ScheduledExecutorService executor;
+    private final List<Announcer> announcers = new CopyOnWriteArrayList<>();
+    private final Logger globalLogger = Logger.getLogger("global");
+
+    /**
+     * @param threads number of announces sent at the same time, each one waits for its tracker
+     * @param level   log level
+     */
+    public AnnounceScheduler(int threads, Level level) {
+        globalLogger.setLevel(level);
+        AtomicInteger count = new AtomicInteger(0);
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "announce-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.setRemoveOnCancelPolicy(true);
+        this.executor = pool;
+    }
+
+    /**
+     * announce a torrent now with the "started" event, then when its tracker asks for it
+     *
+     * @param tracker      tracker of the torrent
+     * @param server       Server of the torrent
+     * @param torrent      Torrent
+     * @param peerManager  PeerManager connecting to the peers returned
+     * @param pieceManager PieceManager
+     * @return announces of the torrent
+     */
+    public Announcer add(Tracker tracker, Server server, Torrent torrent, PeerManager peerManager, PieceManager pieceManager) {
+        return add(tracker, server, torrent, peerManager, pieceManager, Tracker.NUMWANT);
+    }
+
+    /**
+     * announce a torrent now with the "started" event, then when its tracker asks for it
+     *
+     * @param tracker      tracker of the torrent
+     * @param server       Server of the torrent
+     * @param torrent      Torrent
+     * @param peerManager  PeerManager connecting to the peers returned
+     * @param pieceManager PieceManager
+     * @param numwant      number of peers asked for
+     * @return announces of the torrent
+     */
+    public Announcer add(Tracker tracker, Server server, Torrent torrent, PeerManager peerManager, PieceManager pieceManager, int numwant) {
+        Announcer announcer = new Announcer(tracker, server, torrent, peerManager, pieceManager);
+        announcer.setNumwant(numwant);
+        announcers.add(announcer);
+        announcer.schedule(HttpRequestType.STARTED, 0);
+        return announcer;
+    }
+
+    /**
+     * send the "stopped" event of every torrent, waiting STOP_TIMEOUT at most, then stop the threads
+     */
+    public void shutdown() {
+        for (Announcer announcer : announcers) {
+            announcer.stop();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Announcer class
+     * announces of a torrent, one at a time
+     */
+    public class Announcer {
+        private final Tracker tracker;
+        private final Server server;
+        private final Torrent torrent;
+        private final PeerManager peerManager;
+        private final PieceManager pieceManager;
+        private HttpRequestType event = HttpRequestType.STARTED;       // event of the next announce
+        private ScheduledFuture<?> next;
+        private long scheduled = 0;         // number of announces scheduled, to know if one was while announcing
+        private long nextTime;              // ms, time of the next announce
+        private long lastSuccess = 0;       // ms
+        private int interval = Tracker.DEFAULT_INTERVAL;        // s
+        private int minInterval = 0;        // s
+        private int failures = 0;
+        private boolean stopped = false;
+        private volatile AnnounceResponse lastResponse;
+        private volatile int numwant = Tracker.NUMWANT;
+        private final Object announcing = new Object();
+
+        Announcer(Tracker tracker, Server server, Torrent torrent, PeerManager peerManager, PieceManager pieceManager) {
+            this.tracker = tracker;
+            this.server = server;
+            this.torrent = torrent;
+            this.peerManager = peerManager;
+            this.pieceManager = pieceManager;
+        }
+
+        /**
+         * announce the "completed" event now
+         */
+        public synchronized void completed() {
+            schedule(HttpRequestType.COMPLETED, 0);
+        }
+
+        /**
+         * announce the "stopped" event now, no announce follows it
+         */
+        public synchronized void stop() {
+            if (!stopped) {
+                schedule(HttpRequestType.STOPPED, 0);
+                stopped = true;
+            }
+        }
+
+        /**
+         * announce as soon as the min interval allows it, to get more peers
+         */
+        public synchronized void requestPeers() {
+            if (stopped || failures > 0) {
+                return;
+            }
+            long time = Math.max(System.currentTimeMillis(), lastSuccess + minInterval * 1000L);
+            if (time < nextTime) {
+                schedule(event, time - System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * number of peers asked for from the next announce on, the connection budget of the torrent
+         *
+         * @param numwant number of peers
+         */
+        public void setNumwant(int numwant) {
+            this.numwant = numwant;
+        }
+
+        public int getNumwant() {
+            return numwant;
+        }
+
+        public AnnounceResponse getLastResponse() {
+            return lastResponse;
+        }
+
+        public synchronized int getFailures() {
+            return failures;
+        }
+
+        /**
+         * replace the announce to come, an event replacing the regular announce
+         *
+         * @param event event of the announce
+         * @param delay ms before the announce
+         */
+        private synchronized void schedule(HttpRequestType event, long delay) {
+            if (stopped) {
+                return;
+            }
+            if (this.event == HttpRequestType.OTHER || event != HttpRequestType.OTHER) {
+                this.event = event;
+            }
+            if (next != null) {
+                next.cancel(false);
+            }
+            scheduled++;
+            nextTime = System.currentTimeMillis() + Math.max(0, delay);
+            next = executor.schedule(this::announce, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * announce from a thread of the scheduler, then schedule the next one
+         */
+        private void announce() {
+            synchronized (announcing) {
+                HttpRequestType type;
+                long generation;
+                synchronized (this) {
+                    type = event;
+                    generation = scheduled;
+                }
+                long start = System.nanoTime();
+                try {
+                    AnnounceResponse response = tracker.announce(type, server, torrent, pieceManager, numwant);
+                    ANNOUNCES.inc();
+                    ANNOUNCE_TIME.recordSince(start);
+                    if (type != HttpRequestType.STOPPED) {
+                        int added = tracker.connectPeers(response.getPeers(), server, torrent, peerManager, pieceManager);
+                        globalLogger.info(torrent.getFileName() + " : " + added + " new peers from " + tracker.getAnnounceURL());
+                    }
+                    lastResponse = response;
+                    succeeded(type, generation, response);
+                } catch (IOException | RuntimeException e) {
+                    FAILURES.inc();
+                    globalLogger.warning("Announce to " + tracker.getAnnounceURL() + " failed : " + e.getMessage());
+                    failed(type, generation);
+                }
+            }
+        }
+
+        /**
+         * next regular announce after the interval, unless an announce was asked meanwhile
+         *
+         * @param type       event announced
+         * @param generation announces scheduled when it started
+         * @param response   answer of the tracker
+         */
+        private synchronized void succeeded(HttpRequestType type, long generation, AnnounceResponse response) {
+            failures = 0;
+            lastSuccess = System.currentTimeMillis();
+            interval = response.getInterval() > 0 ? response.getInterval() : Tracker.DEFAULT_INTERVAL;
+            // without a min interval from the tracker, the peers asked for could trigger an announce every round
+            minInterval = response.getMinInterval() >= 0 ? response.getMinInterval()
+                    : Math.min(Tracker.DEFAULT_MIN_INTERVAL, interval);
+            if (event == type) {
+                event = HttpRequestType.OTHER;
+            }
+            if (type != HttpRequestType.STOPPED && generation == scheduled) {
+                schedule(event, Math.max(interval, minInterval) * 1000L);
+            }
+        }
+
+        /**
+         * retry with the same event after a delay doubled on each failure, the stopped event is not retried
+         *
+         * @param type       event of the announce failed
+         * @param generation announces scheduled when it started
+         */
+        private synchronized void failed(HttpRequestType type, long generation) {
+            failures++;
+            if (type == HttpRequestType.STOPPED || generation != scheduled) {
+                return;
+            }
+            long delay = Math.min(RETRY_MAX, RETRY_MIN << Math.min(failures - 1, 16));
+            schedule(type, delay * 1000L);
+        }
+    }
+}
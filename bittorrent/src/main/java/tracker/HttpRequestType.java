@@ -3,5 +3,6 @@ package tracker;
 public enum HttpRequestType {
     STARTED,
     COMPLETED,
+    STOPPED,
     OTHER
 }
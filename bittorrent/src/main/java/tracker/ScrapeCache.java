@@ -0,0 +1,90 @@
+package tracker;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ScrapeCache class
+ * swarm sizes of the torrents, scraped from their trackers at most every TTL
+ * <p>
+ * The torrents of a tracker are scraped in a single request. The last sizes known are kept when
+ * the tracker fails. They give the share of the connection and bandwidth budgets of each torrent :
+ * a download weighs the peers it can download from, a seed the leechers per seeder it can serve.
+ * A torrent whose swarm is unknown weighs 1, as a swarm without any peer.
+ */
+public class ScrapeCache {
+    static final long TTL = 15 * 60 * 1000;     // ms a scrape is used before asking again
+    private final Map<String, ScrapeResult> results = new ConcurrentHashMap<>();     // hex info hash -> swarm
+    private final Map<String, Long> times = new ConcurrentHashMap<>();                // hex info hash -> ms of the scrape
+    private final Logger globalLogger = Logger.getLogger("global");
+
+    public ScrapeCache(Level level) {
+        globalLogger.setLevel(level);
+    }
+
+    /**
+     * scrape the torrents of a tracker whose sizes are older than TTL
+     *
+     * @param tracker    tracker of the torrents
+     * @param infoHashes info hashes of the torrents
+     * @return number of torrents scraped
+     */
+    public int refresh(Tracker tracker, List<byte[]> infoHashes) {
+        long now = System.currentTimeMillis();
+        List<byte[]> stale = new ArrayList<>();
+        for (byte[] infoHash : infoHashes) {
+            Long time = times.get(Hex.encodeHexString(infoHash));
+            if (time == null || now - time >= TTL) {
+                stale.add(infoHash);
+            }
+        }
+        if (stale.isEmpty()) {
+            return 0;
+        }
+        try {
+            Map<String, ScrapeResult> scraped = tracker.scrape(stale);
+            for (Map.Entry<String, ScrapeResult> entry : scraped.entrySet()) {
+                results.put(entry.getKey(), entry.getValue());
+                times.put(entry.getKey(), now);
+            }
+            globalLogger.info("Scrape of " + tracker.getAnnounceURL() + " : " + scraped);
+            return scraped.size();
+        } catch (IOException e) {
+            globalLogger.warning("Scrape of " + tracker.getAnnounceURL() + " failed : " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @param infoHash info hash
+     * @return last swarm size known, null if none
+     */
+    public ScrapeResult get(byte[] infoHash) {
+        return results.get(Hex.encodeHexString(infoHash));
+    }
+
+    /**
+     * share of the budgets of a torrent, to be divided by the sum of the weights of the torrents
+     *
+     * @param infoHash info hash
+     * @param seeding  true if we have every piece
+     * @return weight, 1 at least
+     */
+    public double weight(byte[] infoHash, boolean seeding) {
+        ScrapeResult result = get(infoHash);
+        if (result == null) {
+            return 1;
+        }
+        if (seeding) {
+            return 1 + result.getIncomplete() / (result.getComplete() + 1.0);
+        }
+        return 1 + result.getComplete() + result.getIncomplete() / 2.0;
+    }
+}
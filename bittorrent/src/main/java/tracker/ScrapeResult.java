@@ -0,0 +1,39 @@
+package tracker;
+
+/**
+ * ScrapeResult class
+ * size of a swarm as counted by a tracker
+ */
+public class ScrapeResult {
+    private final int complete;
+    private final int downloaded;
+    private final int incomplete;
+
+    /**
+     * @param complete   number of seeders
+     * @param downloaded number of completed downloads
+     * @param incomplete number of leechers
+     */
+    public ScrapeResult(int complete, int downloaded, int incomplete) {
+        this.complete = complete;
+        this.downloaded = downloaded;
+        this.incomplete = incomplete;
+    }
+
+    public int getComplete() {
+        return complete;
+    }
+
+    public int getDownloaded() {
+        return downloaded;
+    }
+
+    public int getIncomplete() {
+        return incomplete;
+    }
+
+    @Override
+    public String toString() {
+        return complete + " seeders, " + incomplete + " leechers, " + downloaded + " downloads";
+    }
+}
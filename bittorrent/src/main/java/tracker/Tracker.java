@@ -6,26 +6,42 @@ import org.apache.commons.codec.binary.Hex;
 import peers.PeerClient;
 import peers.PeerManager;
 import peers.Server;
-import pieces.Block;
-import pieces.Piece;
 import pieces.PieceManager;
 import pieces.Torrent;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Tracker class
+ * HTTP announces, asking for a compact peer list of NUMWANT peers, see UdpTracker for the udp:// trackers
+ * <p>
+ * The scrape URL is the announce URL with its last "announce" path element turned into "scrape"
+ * (BEP 48), the trackers whose URL has no such element do not scrape. Up to SCRAPE_BATCH info
+ * hashes are scraped in a single request.
+ * <p>
+ * The counters sent are the bytes really uploaded by the Server and downloaded by the
+ * PieceManager of the torrent, and left the bytes of the pieces not verified yet.
  */
 public class Tracker {
-
+    public static final int NUMWANT = 50;
+    static final int DEFAULT_INTERVAL = 1800;      // s, when the tracker does not give one
+    static final int DEFAULT_MIN_INTERVAL = 300;   // s, when the tracker does not give one, at most the interval
+    static final int SCRAPE_BATCH = 50;            // info hashes per scrape, for the URL to stay short
+    private static final int TIMEOUT = 15000;      // ms, to connect and to read the answer
     private String announceURL;
+    private volatile String trackerId = null;
     protected Logger globalLogger = Logger.getLogger("global");
 
     public Tracker(String announceURL, Level level) {
@@ -34,8 +50,38 @@ public class Tracker {
         globalLogger.info("Tracker : " + announceURL);
     }
 
+    /**
+     * tracker of an announce URL, over UDP for the udp:// ones and over HTTP for the others
+     *
+     * @param announceURL announce URL
+     * @param level       log level
+     * @return tracker
+     */
+    public static Tracker forURL(String announceURL, Level level) {
+        if (announceURL.regionMatches(true, 0, "udp://", 0, 6)) {
+            return new UdpTracker(announceURL, level);
+        }
+        return new Tracker(announceURL, level);
+    }
+
+    /**
+     * trackers of a torrent, the tiers of its announce-list if it has several trackers
+     *
+     * @param torrent torrent
+     * @param level   log level
+     * @return tracker
+     */
+    public static Tracker forTorrent(Torrent torrent, Level level) {
+        List<List<String>> announceList = torrent.getAnnounceList();
+        if (announceList.size() == 1 && announceList.get(0).size() == 1) {
+            return forURL(announceList.get(0).get(0), level);
+        }
+        return new TrackerTiers(announceList, level);
+    }
+
     /**
      * Send HTTP GET method to contact Tracker in order to get peers connected
+     * the call blocks until the tracker answers, see AnnounceScheduler to announce in the background
      *
      * @param type         HTTPRequestType
      * @param server       Server
@@ -46,36 +92,187 @@ public class Tracker {
      * @throws MalformedURLException        exception
      */
     public void sendGet(HttpRequestType type, Server server, Torrent torrent, PeerManager manager, PieceManager pieceManager) throws UnsupportedEncodingException, MalformedURLException {
-        URL url = createURL(type, server, torrent, pieceManager);
-        globalLogger.info("get request from tracker :" + url.toString());
         try {
-            // send HTTP GET request to tracker
-            HttpURLConnection request = (HttpURLConnection) Objects.requireNonNull(url).openConnection();
-            request.setRequestMethod("GET");
-
-                // get tracker response
-                BDecoder reader = new BDecoder(request.getInputStream());
-                Map<String, BEncodedValue> document = reader.decodeMap().getMap();
-                BEncodedValue peers = document.get("peers");
-                int nbPeers = peers.getBytes().length;
-                globalLogger.info("from tracker, nb peers connected : " + (nbPeers / 6 - 1));
+            AnnounceResponse response = announce(type, server, torrent, pieceManager, NUMWANT);
             if (!type.equals(HttpRequestType.COMPLETED)) {
-                for (int i = 0; i < nbPeers; i += 6) {
-                    byte[] ip = {peers.getBytes()[i], peers.getBytes()[i + 1], peers.getBytes()[i + 2], peers.getBytes()[i + 3]};
-                    String ipAddr = InetAddress.getByAddress(ip).getHostAddress();
-                    byte[] portArray = {peers.getBytes()[i + 4], peers.getBytes()[i + 5]};
-                    int port = Integer.parseInt(Hex.encodeHexString(portArray), 16);
-                    if (!equals(server, ipAddr, port) && !manager.containsPeer(ipAddr, port)) {
-                        PeerClient p = new PeerClient(ipAddr, port, manager, pieceManager, torrent, globalLogger.getLevel());
-                        manager.addNewPeer(p);
-                        p.start();
-                    }
+                connectPeers(response.getPeers(), server, torrent, manager, pieceManager);
+            }
+        } catch (IOException e) {
+            globalLogger.severe("Tracker " + announceURL + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * announce to the tracker and decode its answer
+     *
+     * @param type         event
+     * @param server       Server of the torrent, for the peer id, the port and the bytes uploaded
+     * @param torrent      Torrent
+     * @param pieceManager PieceManager, for the bytes downloaded and left
+     * @param numwant      number of peers wanted
+     * @return answer of the tracker
+     * @throws IOException exception, also when the tracker answers with a failure reason
+     */
+    public AnnounceResponse announce(HttpRequestType type, Server server, Torrent torrent, PieceManager pieceManager, int numwant) throws IOException {
+        URL url = createURL(type, server, torrent, pieceManager, numwant);
+        globalLogger.info("get request from tracker :" + url.toString());
+        Map<String, BEncodedValue> document = get(url);
+        if (document.containsKey("tracker id")) {
+            trackerId = document.get("tracker id").getString();
+        }
+        List<InetSocketAddress> peers = decodePeers(document.get("peers"));
+        globalLogger.info("from tracker, nb peers : " + peers.size());
+        return new AnnounceResponse(intValue(document, "interval", DEFAULT_INTERVAL), intValue(document, "min interval", -1),
+                intValue(document, "complete", -1), intValue(document, "incomplete", -1), peers);
+    }
+
+    /**
+     * swarm sizes of several torrents, SCRAPE_BATCH info hashes per request
+     *
+     * @param infoHashes info hashes
+     * @return hex info hash -> swarm size, the torrents unknown to the tracker left out
+     * @throws IOException exception, also when the tracker does not scrape
+     */
+    public Map<String, ScrapeResult> scrape(List<byte[]> infoHashes) throws IOException {
+        String scrapeURL = getScrapeURL();
+        if (scrapeURL == null) {
+            throw new IOException("No scrape for " + announceURL);
+        }
+        Map<String, ScrapeResult> results = new LinkedHashMap<>();
+        for (int from = 0; from < infoHashes.size(); from += SCRAPE_BATCH) {
+            List<byte[]> batch = infoHashes.subList(from, Math.min(infoHashes.size(), from + SCRAPE_BATCH));
+            StringBuilder url = new StringBuilder(scrapeURL);
+            for (byte[] infoHash : batch) {
+                url.append(url.indexOf("?") < 0 ? '?' : '&').append("info_hash=").append(urlEncode(infoHash));
+            }
+            Map<String, BEncodedValue> document = get(new URL(url.toString()));
+            if (!document.containsKey("files")) {
+                continue;
+            }
+            // the keys are the raw info hashes, decoded as UTF-8 by the decoder : the info hashes
+            // asked for are decoded the same way to find them back
+            Map<String, BEncodedValue> files = document.get("files").getMap();
+            Map<String, Integer> asked = new LinkedHashMap<>();
+            for (byte[] infoHash : batch) {
+                asked.merge(new String(infoHash, StandardCharsets.UTF_8), 1, Integer::sum);
+            }
+            for (byte[] infoHash : batch) {
+                String key = new String(infoHash, StandardCharsets.UTF_8);
+                BEncodedValue file = files.get(key);
+                if (file != null && asked.get(key) == 1) {
+                    Map<String, BEncodedValue> counts = file.getMap();
+                    results.put(Hex.encodeHexString(infoHash), new ScrapeResult(intValue(counts, "complete", 0),
+                            intValue(counts, "downloaded", 0), intValue(counts, "incomplete", 0)));
+                }
+            }
+            // two info hashes decoded alike, asked for again one at a time
+            for (byte[] infoHash : batch) {
+                if (asked.get(new String(infoHash, StandardCharsets.UTF_8)) > 1 && batch.size() > 1) {
+                    results.putAll(scrape(Collections.singletonList(infoHash)));
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            //globalLogger.severe("Error: " + e.getLocalizedMessage());
         }
+        return results;
+    }
+
+    /**
+     * @return scrape URL of the tracker, null if it has none
+     */
+    public String getScrapeURL() {
+        int slash = announceURL.lastIndexOf('/');
+        if (slash < 0 || !announceURL.startsWith("announce", slash + 1)) {
+            return null;
+        }
+        return announceURL.substring(0, slash + 1) + "scrape" + announceURL.substring(slash + 1 + "announce".length());
+    }
+
+    /**
+     * connect to the peers we are not connected to yet, from the reactors of the PeerManager
+     *
+     * @param peers        peers returned by the tracker
+     * @param server       Server, to skip ourselves
+     * @param torrent      Torrent
+     * @param manager      PeerManager
+     * @param pieceManager PieceManager
+     * @return number of new peers
+     */
+    public int connectPeers(List<InetSocketAddress> peers, Server server, Torrent torrent, PeerManager manager, PieceManager pieceManager) {
+        int added = 0;
+        for (InetSocketAddress peer : peers) {
+            String ipAddr = peer.getAddress().getHostAddress();
+            int port = peer.getPort();
+            if (!equals(server, ipAddr, port) && !manager.containsPeer(ipAddr, port)) {
+                PeerClient p = new PeerClient(ipAddr, port, manager, pieceManager, torrent, globalLogger.getLevel());
+                manager.connect(p);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    public String getAnnounceURL() {
+        return announceURL;
+    }
+
+    /**
+     * peers of an answer, either compact (6 bytes per peer) or a list of dictionaries
+     *
+     * @param peers value of the "peers" key, may be null
+     * @return peers
+     * @throws IOException exception
+     */
+    static List<InetSocketAddress> decodePeers(BEncodedValue peers) throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (peers == null) {
+            return addresses;
+        }
+        if (peers.getValue() instanceof byte[]) {
+            byte[] compact = peers.getBytes();
+            for (int i = 0; i + 6 <= compact.length; i += 6) {
+                byte[] ip = {compact[i], compact[i + 1], compact[i + 2], compact[i + 3]};
+                int port = ((compact[i + 4] & 0xFF) << 8) | (compact[i + 5] & 0xFF);
+                addresses.add(new InetSocketAddress(InetAddress.getByAddress(ip), port));
+            }
+        } else {
+            for (BEncodedValue peer : peers.getList()) {
+                Map<String, BEncodedValue> dictionary = peer.getMap();
+                addresses.add(new InetSocketAddress(InetAddress.getByName(dictionary.get("ip").getString()),
+                        dictionary.get("port").getInt()));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * GET a tracker URL and decode its answer
+     *
+     * @param url URL
+     * @return answer dictionary
+     * @throws IOException exception, also when the tracker answers with a failure reason
+     */
+    private Map<String, BEncodedValue> get(URL url) throws IOException {
+        HttpURLConnection request = (HttpURLConnection) url.openConnection();
+        request.setRequestMethod("GET");
+        request.setConnectTimeout(TIMEOUT);
+        request.setReadTimeout(TIMEOUT);
+        Map<String, BEncodedValue> document;
+        try (InputStream in = new BufferedInputStream(request.getInputStream())) {
+            document = new BDecoder(in).decodeMap().getMap();
+        } finally {
+            request.disconnect();
+        }
+        if (document.containsKey("failure reason")) {
+            throw new IOException("failure reason : " + document.get("failure reason").getString());
+        }
+        if (document.containsKey("warning message")) {
+            globalLogger.warning("Tracker " + announceURL + " : " + document.get("warning message").getString());
+        }
+        return document;
+    }
+
+    private static int intValue(Map<String, BEncodedValue> document, String key, int defaultValue) throws IOException {
+        BEncodedValue value = document.get(key);
+        return value != null ? value.getInt() : defaultValue;
     }
 
     /**
@@ -97,48 +294,26 @@ public class Tracker {
      * @param server       Server
      * @param torrent      Torrent
      * @param pieceManager PieceManager
+     * @param numwant      number of peers wanted
      * @return URL
      * @throws UnsupportedEncodingException exception
      * @throws MalformedURLException exception
      */
-    private URL createURL(HttpRequestType type, Server server, Torrent torrent, PieceManager pieceManager) throws UnsupportedEncodingException, MalformedURLException {
-        String workingURL = announceURL + '?';
+    private URL createURL(HttpRequestType type, Server server, Torrent torrent, PieceManager pieceManager, int numwant) throws UnsupportedEncodingException, MalformedURLException {
+        String workingURL = announceURL + (announceURL.indexOf('?') < 0 ? '?' : '&');
         String escapedInfoHash = urlEncode(torrent.getInfoHash());
         String escapedPeerID = URLEncoder.encode(server.getPeerId(), StandardCharsets.UTF_8.toString());
+        long left = type == HttpRequestType.COMPLETED ? 0 : pieceManager.getLeft();
 
-        String left = null;
-        String downloaded = null;
-        String uploaded = null;
-        switch (type) {
-            case STARTED:
-                left = Long.toString(torrent.getTotalLength()); /*initially set as the size of the file to be downloaded*/
-                downloaded = "0";
-                uploaded = "0";
-                break;
-            case COMPLETED:
-                left = "0";
-                downloaded = Long.toString(torrent.getTotalLength());
-                uploaded = "0";
-                break;
-            case OTHER:
-                Map<Piece, List<Block>> leftPieces = pieceManager.getLeftPieces();
-                long leftValue = 0;
-                for (Piece p : leftPieces.keySet()) {
-                    leftValue += p.getSize();
-                }
-                long downloadedValue = torrent.getTotalLength() - leftValue;
-                left = Long.toString(leftValue);
-                downloaded = Long.toString(downloadedValue);
-                uploaded = Integer.toString(0);
-                break;
-            default:
-                globalLogger.warning("Not implemented yet");
-        }
         workingURL = workingURL + "info_hash" + "=" + escapedInfoHash + "&peer_id=" + escapedPeerID + "&port="
-                + server.getPort() + "&uploaded=" + uploaded + "&downloaded=" + downloaded + "&left=" + left;
+                + server.getPort() + "&uploaded=" + server.getUploaded() + "&downloaded=" + pieceManager.getDownloaded()
+                + "&left=" + left + "&compact=1&numwant=" + numwant;
 
         if (!type.equals(HttpRequestType.OTHER)) {
-            workingURL = workingURL + "&event=" + type.toString();
+            workingURL = workingURL + "&event=" + type.toString().toLowerCase();
+        }
+        if (trackerId != null) {
+            workingURL = workingURL + "&trackerid=" + URLEncoder.encode(trackerId, StandardCharsets.UTF_8.toString());
         }
 
         return new URL(workingURL);
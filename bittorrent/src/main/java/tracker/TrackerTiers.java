@@ -0,0 +1,255 @@
+package tracker;
+
+import peers.Server;
+import pieces.PieceManager;
+import pieces.Torrent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * TrackerTiers class
+ * trackers of the announce-list of a torrent (BEP 12), announced to tier after tier
+ * <p>
+ * The first PARALLEL trackers of a tier are announced to at the same time, the next ones only if
+ * none of them answered, then the next tier. The announce returns with the first answer and the
+ * ones arriving within GRACE ms after it, their peers merged without duplicates : a dead tracker
+ * does not hold back the peers of the others, it goes on in the background. The trackers which
+ * answered move to the front of their tier, the fastest first, so the next announces go to them;
+ * the latency and the failures of each tracker are kept.
+ */
+public class TrackerTiers extends Tracker {
+    static final int PARALLEL = 4;      // trackers of a tier announced to at the same time
+    static final long GRACE = 500;      // ms waited after the first answer for the other trackers
+    private static final double SMOOTHING = 0.3;       // weight of the last latency in the average
+    private static final AtomicInteger THREADS = new AtomicInteger(0);
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "tracker-" + THREADS.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
+    private final List<List<Member>> tiers = new ArrayList<>();
+
+    /**
+     * Member class
+     * tracker of a tier and how it answered so far
+     */
+    public static class Member {
+        private final Tracker tracker;
+        private volatile double latency = -1;     // ms, average of the answers, -1 before the first one
+        private volatile int answers = 0;
+        private volatile int failures = 0;
+        private volatile int consecutiveFailures = 0;
+
+        Member(Tracker tracker) {
+            this.tracker = tracker;
+        }
+
+        private synchronized void answered(long ms) {
+            latency = latency < 0 ? ms : SMOOTHING * ms + (1 - SMOOTHING) * latency;
+            answers++;
+            consecutiveFailures = 0;
+        }
+
+        private synchronized void failed() {
+            failures++;
+            consecutiveFailures++;
+        }
+
+        public Tracker getTracker() {
+            return tracker;
+        }
+
+        public double getLatency() {
+            return latency;
+        }
+
+        public int getAnswers() {
+            return answers;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        @Override
+        public String toString() {
+            return tracker.getAnnounceURL() + " : " + answers + " answers in " + Math.round(latency) + " ms, "
+                    + failures + " failures";
+        }
+    }
+
+    /**
+     * @param announceList tiers of announce URLs, in the order of the torrent
+     * @param level        log level
+     */
+    public TrackerTiers(List<List<String>> announceList, Level level) {
+        super(announceList.get(0).get(0), level);
+        for (List<String> urls : announceList) {
+            List<Member> tier = new ArrayList<>();
+            for (String url : urls) {
+                tier.add(new Member(Tracker.forURL(url, level)));
+            }
+            tiers.add(tier);
+        }
+    }
+
+    /**
+     * announce to the trackers of the first tiers until some answer
+     *
+     * @return answers merged : peers without duplicates, the longest intervals and the largest swarm
+     * @throws IOException exception of the last tracker if none answered
+     */
+    @Override
+    public AnnounceResponse announce(HttpRequestType type, Server server, Torrent torrent, PieceManager pieceManager, int numwant) throws IOException {
+        IOException last = null;
+        for (List<Member> tier : tiers) {
+            List<Member> members;
+            synchronized (tier) {
+                members = new ArrayList<>(tier);
+            }
+            for (int from = 0; from < members.size(); from += PARALLEL) {
+                List<Member> group = members.subList(from, Math.min(members.size(), from + PARALLEL));
+                CompletionService<AnnounceResponse> answers = new ExecutorCompletionService<>(POOL);
+                for (Member member : group) {
+                    answers.submit(announceTask(member, type, server, torrent, pieceManager, numwant));
+                }
+                List<AnnounceResponse> responses = new ArrayList<>();
+                long deadline = Long.MAX_VALUE;
+                try {
+                    for (int pending = group.size(); pending > 0; pending--) {
+                        Future<AnnounceResponse> future;
+                        if (responses.isEmpty()) {
+                            future = answers.take();
+                        } else {
+                            future = answers.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                            if (future == null) {
+                                break;
+                            }
+                        }
+                        try {
+                            responses.add(future.get());
+                            if (deadline == Long.MAX_VALUE) {
+                                deadline = System.currentTimeMillis() + GRACE;
+                            }
+                        } catch (ExecutionException e) {
+                            last = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Announce interrupted");
+                }
+                promote(tier);
+                if (!responses.isEmpty()) {
+                    return merge(responses);
+                }
+            }
+        }
+        throw last != null ? last : new IOException("No tracker");
+    }
+
+    /**
+     * scrape the trackers in the order they are announced to, until one answers, the latencies
+     * and failures being those of the announces only
+     *
+     * @param infoHashes info hashes
+     * @return answer of the first tracker answering
+     * @throws IOException exception of the last tracker if none answered
+     */
+    @Override
+    public Map<String, ScrapeResult> scrape(List<byte[]> infoHashes) throws IOException {
+        IOException last = null;
+        for (List<Member> tier : getTiers()) {
+            for (Member member : tier) {
+                try {
+                    return member.tracker.scrape(infoHashes);
+                } catch (IOException e) {
+                    last = e;
+                }
+            }
+        }
+        throw last != null ? last : new IOException("No tracker");
+    }
+
+    /**
+     * @return tiers, the trackers of each one in the order they are announced to
+     */
+    public List<List<Member>> getTiers() {
+        List<List<Member>> copy = new ArrayList<>();
+        for (List<Member> tier : tiers) {
+            synchronized (tier) {
+                copy.add(new ArrayList<>(tier));
+            }
+        }
+        return copy;
+    }
+
+    private Callable<AnnounceResponse> announceTask(Member member, HttpRequestType type, Server server, Torrent torrent,
+                                                    PieceManager pieceManager, int numwant) {
+        return () -> {
+            long start = System.currentTimeMillis();
+            try {
+                AnnounceResponse response = member.tracker.announce(type, server, torrent, pieceManager, numwant);
+                member.answered(System.currentTimeMillis() - start);
+                return response;
+            } catch (IOException | RuntimeException e) {
+                member.failed();
+                globalLogger.info("Announce to " + member.tracker.getAnnounceURL() + " failed : " + e.getMessage());
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * trackers which answered last first, the fastest first, then the others by failures in a row
+     *
+     * @param tier tier
+     */
+    private static void promote(List<Member> tier) {
+        synchronized (tier) {
+            Collections.sort(tier, Comparator.comparingInt((Member m) -> m.consecutiveFailures)
+                    .thenComparingDouble(m -> m.latency < 0 ? Double.MAX_VALUE : m.latency));
+        }
+    }
+
+    private static AnnounceResponse merge(List<AnnounceResponse> responses) {
+        if (responses.size() == 1) {
+            return responses.get(0);
+        }
+        Set<InetSocketAddress> peers = new LinkedHashSet<>();
+        int interval = 0;
+        int minInterval = -1;
+        int complete = -1;
+        int incomplete = -1;
+        for (AnnounceResponse response : responses) {
+            peers.addAll(response.getPeers());
+            interval = Math.max(interval, response.getInterval());
+            minInterval = Math.max(minInterval, response.getMinInterval());
+            complete = Math.max(complete, response.getComplete());
+            incomplete = Math.max(incomplete, response.getIncomplete());
+        }
+        return new AnnounceResponse(interval, minInterval, complete, incomplete, new ArrayList<>(peers));
+    }
+}
@@ -0,0 +1,323 @@
+package tracker;
+
+import org.apache.commons.codec.binary.Hex;
+import peers.Server;
+import pieces.PieceManager;
+import pieces.Torrent;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+
+/**
+ * UdpTracker class
+ * announces and scrapes over UDP (BEP 15), a datagram each way instead of a TCP connection and
+ * an HTTP exchange
+ * <p>
+ * A connection id is asked for first and kept CONNECTION_TTL ms, so the following requests cost a
+ * single round trip. A request left unanswered is sent again after a timeout doubled on each
+ * attempt, RETRANSMITS times at most. A connection id refused by the tracker is asked for again
+ * once. The channel is connected to the tracker, datagrams from other addresses never reach us.
+ */
+public class UdpTracker extends Tracker {
+    static final long PROTOCOL_ID = 0x41727101980L;
+    static final int CONNECT = 0;
+    static final int ANNOUNCE = 1;
+    static final int SCRAPE = 2;
+    static final int ERROR = 3;
+    static final int MAX_SCRAPE = 74;           // info hashes per scrape, for the answer to fit in a datagram
+    private static final long CONNECTION_TTL = 60000;       // ms a connection id can be used
+    private static final int TIMEOUT = 15000;   // ms before the first retransmit
+    private static final int RETRANSMITS = 2;
+    private static final int MAX_DATAGRAM = 65507;
+    private final String host;
+    private final int port;
+    private final int key = new Random().nextInt();     // identifies us if our address changes
+    private final Random random = new Random();
+    private final ByteBuffer received = ByteBuffer.allocate(MAX_DATAGRAM);
+    private int timeout = TIMEOUT;
+    private int retransmits = RETRANSMITS;
+    private DatagramChannel channel;
+    private Selector selector;
+    private long connectionId;
+    private long connectionTime = 0;        // ms, 0 if no connection id
+    private volatile boolean ipv6 = false;  // peers of 18 bytes instead of 6 when the tracker is reached over IPv6
+
+    /**
+     * @param announceURL udp://host:port[/announce]
+     * @param level       log level
+     */
+    public UdpTracker(String announceURL, Level level) {
+        super(announceURL, level);
+        try {
+            URI uri = new URI(announceURL);
+            if (uri.getHost() == null || uri.getPort() < 0) {
+                throw new IllegalArgumentException("Tracker URL without host or port : " + announceURL);
+            }
+            this.host = uri.getHost();
+            this.port = uri.getPort();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid tracker URL : " + announceURL, e);
+        }
+    }
+
+    /**
+     * change the timeouts, to test them
+     *
+     * @param timeout     ms before the first retransmit, doubled on each one
+     * @param retransmits number of retransmits before giving up
+     */
+    public synchronized void setTimeout(int timeout, int retransmits) {
+        this.timeout = timeout;
+        this.retransmits = retransmits;
+    }
+
+    /**
+     * announce to the tracker, the counters taken as for the HTTP trackers
+     */
+    @Override
+    public AnnounceResponse announce(HttpRequestType type, Server server, Torrent torrent, PieceManager pieceManager, int numwant) throws IOException {
+        long left = type == HttpRequestType.COMPLETED ? 0 : pieceManager.getLeft();
+        return announce(torrent.getInfoHash(), server.getPeerId(), server.getPort(), pieceManager.getDownloaded(),
+                left, server.getUploaded(), type, numwant);
+    }
+
+    /**
+     * announce to the tracker
+     *
+     * @param infoHash   info hash of the torrent
+     * @param peerId     our peer id, 20 characters
+     * @param listenPort our listening port
+     * @param downloaded bytes downloaded
+     * @param left       bytes left
+     * @param uploaded   bytes uploaded
+     * @param type       event
+     * @param numwant    number of peers wanted
+     * @return answer of the tracker, without min interval
+     * @throws IOException exception, also when the tracker answers with an error
+     */
+    public AnnounceResponse announce(byte[] infoHash, String peerId, int listenPort, long downloaded, long left,
+                                     long uploaded, HttpRequestType type, int numwant) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(98);
+        request.putLong(0);         // connection id, set when sent
+        request.putInt(ANNOUNCE);
+        request.putInt(0);          // transaction id, set when sent
+        request.put(infoHash);
+        request.put(peerId.getBytes(StandardCharsets.ISO_8859_1), 0, 20);
+        request.putLong(downloaded);
+        request.putLong(left);
+        request.putLong(uploaded);
+        request.putInt(event(type));
+        request.putInt(0);          // ip, the one the datagram comes from
+        request.putInt(key);
+        request.putInt(numwant);
+        request.putShort((short) listenPort);
+        request.flip();
+        ByteBuffer response = request(request, ANNOUNCE, 20);
+        int interval = response.getInt(8);
+        int leechers = response.getInt(12);
+        int seeders = response.getInt(16);
+        int addressLength = ipv6 ? 16 : 4;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        byte[] address = new byte[addressLength];
+        response.position(20);
+        while (response.remaining() >= addressLength + 2) {
+            response.get(address);
+            int peerPort = response.getShort() & 0xFFFF;
+            peers.add(new InetSocketAddress(InetAddress.getByAddress(address), peerPort));
+        }
+        globalLogger.info("from tracker, nb peers : " + peers.size());
+        // BEP 15 has no min interval
+        return new AnnounceResponse(interval, -1, seeders, leechers, peers);
+    }
+
+    /**
+     * swarm sizes of several torrents, MAX_SCRAPE info hashes per request
+     *
+     * @param infoHashes info hashes
+     * @return hex info hash -> swarm size
+     * @throws IOException exception, also when the tracker answers with an error
+     */
+    @Override
+    public Map<String, ScrapeResult> scrape(List<byte[]> infoHashes) throws IOException {
+        Map<String, ScrapeResult> results = new LinkedHashMap<>();
+        for (int from = 0; from < infoHashes.size(); from += MAX_SCRAPE) {
+            List<byte[]> batch = infoHashes.subList(from, Math.min(infoHashes.size(), from + MAX_SCRAPE));
+            ByteBuffer request = ByteBuffer.allocate(16 + 20 * batch.size());
+            request.putLong(0);
+            request.putInt(SCRAPE);
+            request.putInt(0);
+            for (byte[] infoHash : batch) {
+                request.put(infoHash);
+            }
+            request.flip();
+            ByteBuffer response = request(request, SCRAPE, 8 + 12 * batch.size());
+            response.position(8);
+            for (byte[] infoHash : batch) {
+                int seeders = response.getInt();
+                int completed = response.getInt();
+                int leechers = response.getInt();
+                results.put(Hex.encodeHexString(infoHash), new ScrapeResult(seeders, completed, leechers));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * close the channel, it is opened again by the next request
+     */
+    public synchronized void close() {
+        connectionTime = 0;
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            globalLogger.info(e.getMessage());
+        }
+        selector = null;
+        channel = null;
+    }
+
+    /**
+     * send a request with a valid connection id
+     *
+     * @param request   request, its connection id and transaction id left to 0
+     * @param action    action of the request
+     * @param minLength smallest valid answer
+     * @return answer, its action checked
+     * @throws IOException exception
+     */
+    private synchronized ByteBuffer request(ByteBuffer request, int action, int minLength) throws IOException {
+        boolean cached = System.currentTimeMillis() - connectionTime < CONNECTION_TTL;
+        while (true) {
+            if (System.currentTimeMillis() - connectionTime >= CONNECTION_TTL) {
+                connect();
+            }
+            request.putLong(0, connectionId);
+            ByteBuffer response = transact(request);
+            if (response.getInt(0) == ERROR && cached) {
+                // the tracker may have forgotten our connection id before it expired for us
+                globalLogger.info("Connection id refused by " + getAnnounceURL() + ", connecting again");
+                connectionTime = 0;
+                cached = false;
+                continue;
+            }
+            check(response, action, minLength);
+            return response;
+        }
+    }
+
+    private void connect() throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(16);
+        request.putLong(PROTOCOL_ID);
+        request.putInt(CONNECT);
+        request.putInt(0);
+        request.flip();
+        ByteBuffer response = transact(request);
+        check(response, CONNECT, 16);
+        connectionId = response.getLong(8);
+        connectionTime = System.currentTimeMillis();
+    }
+
+    /**
+     * send a request until an answer with its transaction id comes, the timeout doubled on each attempt
+     *
+     * @param request request, a transaction id is put at offset 12
+     * @return answer
+     * @throws IOException exception, SocketTimeoutException when no answer came
+     */
+    private ByteBuffer transact(ByteBuffer request) throws IOException {
+        open();
+        for (int attempt = 0; attempt <= retransmits; attempt++) {
+            int transactionId = random.nextInt();
+            request.putInt(12, transactionId);
+            request.rewind();
+            channel.write(request);
+            long deadline = System.currentTimeMillis() + ((long) timeout << attempt);
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                selector.selectedKeys().clear();
+                if (selector.select(remaining) == 0) {
+                    continue;
+                }
+                received.clear();
+                if (channel.read(received) < 8) {
+                    continue;
+                }
+                received.flip();
+                if (received.getInt(4) == transactionId) {
+                    byte[] answer = new byte[received.remaining()];
+                    received.get(answer);
+                    return ByteBuffer.wrap(answer);
+                }
+            }
+            globalLogger.info("No answer from " + getAnnounceURL() + " after " + ((long) timeout << attempt) + " ms");
+        }
+        throw new SocketTimeoutException("No answer from " + getAnnounceURL() + " after " + (retransmits + 1) + " attempts");
+    }
+
+    private void open() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            return;
+        }
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new IOException("Unknown tracker host " + host);
+        }
+        ipv6 = address.getAddress() instanceof Inet6Address;
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.connect(address);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    private void check(ByteBuffer response, int action, int minLength) throws IOException {
+        int answer = response.getInt(0);
+        if (answer == ERROR) {
+            byte[] message = new byte[response.remaining() - 8];
+            response.position(8);
+            response.get(message);
+            throw new IOException("failure reason : " + new String(message, StandardCharsets.UTF_8));
+        }
+        if (answer != action || response.remaining() < minLength) {
+            throw new IOException("Invalid answer from " + getAnnounceURL() + " : action " + answer + ", " + response.remaining() + " bytes");
+        }
+    }
+
+    /**
+     * @param type event
+     * @return event code of the protocol
+     */
+    private static int event(HttpRequestType type) {
+        switch (type) {
+            case COMPLETED:
+                return 1;
+            case STARTED:
+                return 2;
+            case STOPPED:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+}
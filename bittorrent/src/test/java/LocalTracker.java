@@ -0,0 +1,220 @@
+import bencode.BEncodedValue;
+import bencode.BEncoder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LocalTracker class
+ * stand-in HTTP tracker on the loopback interface, answering the announces with compact peer lists
+ * and the scrapes of several info hashes
+ * <p>
+ * Every peer announced for an info hash is returned to the others, the peer asking included as
+ * Tracker.sendGet expects it, until it announces the "stopped" event.
+ */
+public class LocalTracker {
+    private final int interval;      // s, announce interval returned to the peers
+    private final HttpServer httpServer;
+    private final Map<String, Map<String, Long>> swarms = new HashMap<>();     // info hash -> ip:port -> left
+    private final Map<String, Integer> downloads = new HashMap<>();      // info hash -> completed events
+    private int announces = 0;
+    private int scrapes = 0;
+
+    /**
+     * start the tracker on a free port
+     *
+     * @throws IOException exception
+     */
+    public LocalTracker() throws IOException {
+        this(1800);
+    }
+
+    /**
+     * start the tracker on a free port
+     *
+     * @param interval announce interval returned to the peers, in s, also the min interval
+     * @throws IOException exception
+     */
+    public LocalTracker(int interval) throws IOException {
+        this.interval = interval;
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        httpServer.createContext("/announce", this::announce);
+        httpServer.createContext("/scrape", this::scrape);
+        httpServer.start();
+    }
+
+    /**
+     * @return URL to put in the torrents
+     */
+    public String getAnnounceURL() {
+        return "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/announce";
+    }
+
+    public synchronized int getAnnounces() {
+        return announces;
+    }
+
+    public synchronized int getScrapes() {
+        return scrapes;
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+    }
+
+    private void announce(HttpExchange exchange) throws IOException {
+        Map<String, byte[]> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        byte[] body;
+        if (!query.containsKey("info_hash") || !query.containsKey("port")) {
+            body = bencode(failure("missing info_hash or port"));
+        } else {
+            String ip = exchange.getRemoteAddress().getAddress().getHostAddress();
+            int port = Integer.parseInt(new String(query.get("port"), "ISO-8859-1"));
+            long left = query.containsKey("left") ? Long.parseLong(new String(query.get("left"), "ISO-8859-1")) : 0;
+            String event = query.containsKey("event") ? new String(query.get("event"), "ISO-8859-1") : "";
+            body = bencode(update(new String(query.get("info_hash"), "ISO-8859-1"), ip, port, left, event));
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * record the announce and build the answer
+     *
+     * @param infoHash info hash, one char per byte
+     * @param ip       peer address
+     * @param port     peer listening port
+     * @param left     bytes left to download
+     * @param event    announce event, empty for a regular one
+     * @return response dictionary
+     * @throws IOException exception
+     */
+    private synchronized Map<String, BEncodedValue> update(String infoHash, String ip, int port, long left, String event) throws IOException {
+        announces++;
+        Map<String, Long> swarm = swarms.computeIfAbsent(infoHash, h -> new LinkedHashMap<>());
+        if (event.equalsIgnoreCase("stopped")) {
+            swarm.remove(ip + ":" + port);
+        } else {
+            swarm.put(ip + ":" + port, left);
+        }
+        if (event.equalsIgnoreCase("completed")) {
+            downloads.merge(infoHash, 1, Integer::sum);
+        }
+        ByteArrayOutputStream peers = new ByteArrayOutputStream(swarm.size() * 6);
+        int complete = 0;
+        for (Map.Entry<String, Long> entry : swarm.entrySet()) {
+            String[] address = entry.getKey().split(":");
+            peers.write(InetAddress.getByName(address[0]).getAddress());
+            int peerPort = Integer.parseInt(address[1]);
+            peers.write(peerPort >> 8);
+            peers.write(peerPort & 0xFF);
+            if (entry.getValue() == 0) {
+                complete++;
+            }
+        }
+        Map<String, BEncodedValue> response = new TreeMap<>();
+        response.put("complete", new BEncodedValue(complete));
+        response.put("incomplete", new BEncodedValue(swarm.size() - complete));
+        response.put("interval", new BEncodedValue(interval));
+        response.put("min interval", new BEncodedValue(interval));
+        response.put("peers", new BEncodedValue(peers.toByteArray()));
+        return response;
+    }
+
+    /**
+     * sizes of the swarms of every info_hash parameter, the dictionary written by hand as its keys
+     * are the raw info hashes
+     */
+    private void scrape(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("d5:filesd".getBytes("ISO-8859-1"));
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        synchronized (this) {
+            scrapes++;
+            for (String parameter : rawQuery == null ? new String[0] : rawQuery.split("&")) {
+                if (!parameter.startsWith("info_hash=")) {
+                    continue;
+                }
+                String infoHash = new String(percentDecode(parameter.substring("info_hash=".length())), "ISO-8859-1");
+                Map<String, Long> swarm = swarms.get(infoHash);
+                if (swarm == null) {
+                    continue;
+                }
+                int complete = 0;
+                for (long left : swarm.values()) {
+                    if (left == 0) {
+                        complete++;
+                    }
+                }
+                body.write(("20:" + infoHash + "d8:completei" + complete + "e10:downloadedi" + downloads.getOrDefault(infoHash, 0)
+                        + "e10:incompletei" + (swarm.size() - complete) + "ee").getBytes("ISO-8859-1"));
+            }
+        }
+        body.write("ee".getBytes("ISO-8859-1"));
+        exchange.sendResponseHeaders(200, body.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            body.writeTo(out);
+        }
+    }
+
+    private static Map<String, BEncodedValue> failure(String reason) throws IOException {
+        Map<String, BEncodedValue> response = new TreeMap<>();
+        response.put("failure reason", new BEncodedValue(reason));
+        return response;
+    }
+
+    private static byte[] bencode(Map<String, BEncodedValue> response) throws IOException {
+        ByteBuffer encoded = BEncoder.encode(response);
+        byte[] body = new byte[encoded.remaining()];
+        encoded.get(body);
+        return body;
+    }
+
+    /**
+     * parameters of the query string, percent-decoded to bytes as the info hash is binary
+     *
+     * @param rawQuery query string
+     * @return name -> value
+     */
+    private static Map<String, byte[]> parseQuery(String rawQuery) {
+        Map<String, byte[]> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(parameter.substring(0, equals), percentDecode(parameter.substring(equals + 1)));
+            }
+        }
+        return parameters;
+    }
+
+    private static byte[] percentDecode(String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length()) {
+                bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else if (c == '+') {
+                bytes.write(' ');
+            } else {
+                bytes.write(c);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
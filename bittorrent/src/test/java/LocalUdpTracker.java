@@ -0,0 +1,215 @@
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * LocalUdpTracker class
+ * stand-in UDP tracker (BEP 15) on the loopback interface, answering like LocalTracker
+ * <p>
+ * The next datagrams received can be dropped to check the retransmits, and the connection ids
+ * forgotten to check that they are asked for again.
+ */
+public class LocalUdpTracker extends Thread {
+    private static final long PROTOCOL_ID = 0x41727101980L;
+    private final int interval;      // s, announce interval returned to the peers
+    private final DatagramChannel channel;
+    private final Random random = new Random();
+    private final Set<Long> connectionIds = new HashSet<>();
+    private final Map<String, Map<String, Long>> swarms = new HashMap<>();     // hex info hash -> ip:port -> left
+    private final Map<String, Integer> downloads = new HashMap<>();            // hex info hash -> completed events
+    private int connects = 0;
+    private int announces = 0;
+    private int scrapes = 0;
+    private int toDrop = 0;
+
+    /**
+     * start the tracker on a free port
+     *
+     * @param interval announce interval returned to the peers, in s
+     * @throws IOException exception
+     */
+    public LocalUdpTracker(int interval) throws IOException {
+        super("local-udp-tracker");
+        setDaemon(true);
+        this.interval = interval;
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        start();
+    }
+
+    /**
+     * @return URL to put in the torrents
+     */
+    public String getAnnounceURL() throws IOException {
+        return "udp://127.0.0.1:" + ((InetSocketAddress) channel.getLocalAddress()).getPort() + "/announce";
+    }
+
+    public synchronized int getConnects() {
+        return connects;
+    }
+
+    public synchronized int getAnnounces() {
+        return announces;
+    }
+
+    public synchronized int getScrapes() {
+        return scrapes;
+    }
+
+    /**
+     * @param datagrams number of the next datagrams received left unanswered
+     */
+    public synchronized void drop(int datagrams) {
+        toDrop = datagrams;
+    }
+
+    /**
+     * refuse the connection ids given so far
+     */
+    public synchronized void forgetConnections() {
+        connectionIds.clear();
+    }
+
+    public void shutdown() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        while (true) {
+            try {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                buffer.flip();
+                ByteBuffer answer = answer(buffer, (InetSocketAddress) from);
+                if (answer != null) {
+                    channel.send(answer, from);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("LocalUdpTracker : " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized ByteBuffer answer(ByteBuffer request, InetSocketAddress from) {
+        if (toDrop > 0) {
+            toDrop--;
+            return null;
+        }
+        if (request.remaining() < 16) {
+            return null;
+        }
+        long connectionId = request.getLong();
+        int action = request.getInt();
+        int transactionId = request.getInt();
+        if (action == 0) {
+            if (connectionId != PROTOCOL_ID) {
+                return null;
+            }
+            connects++;
+            long id = random.nextLong();
+            connectionIds.add(id);
+            ByteBuffer answer = ByteBuffer.allocate(16);
+            answer.putInt(0).putInt(transactionId).putLong(id).flip();
+            return answer;
+        }
+        if (!connectionIds.contains(connectionId)) {
+            return error(transactionId, "unknown connection id");
+        }
+        if (action == 1 && request.remaining() >= 82) {
+            return announce(request, transactionId, from);
+        } else if (action == 2) {
+            return scrape(request, transactionId);
+        }
+        return error(transactionId, "invalid request");
+    }
+
+    /**
+     * record the announce and answer with every peer of the swarm, the one asking included
+     */
+    private ByteBuffer announce(ByteBuffer request, int transactionId, InetSocketAddress from) {
+        announces++;
+        byte[] infoHash = new byte[20];
+        request.get(infoHash);
+        request.position(request.position() + 20 + 8);      // peer id, downloaded
+        long left = request.getLong();
+        request.getLong();      // uploaded
+        int event = request.getInt();
+        request.position(request.position() + 12);         // ip, key, num_want
+        int port = request.getShort() & 0xFFFF;
+        String hash = Hex.encodeHexString(infoHash);
+        Map<String, Long> swarm = swarms.computeIfAbsent(hash, h -> new LinkedHashMap<>());
+        String peer = from.getAddress().getHostAddress() + ":" + port;
+        if (event == 3) {
+            swarm.remove(peer);
+        } else {
+            swarm.put(peer, left);
+        }
+        if (event == 1) {
+            downloads.merge(hash, 1, Integer::sum);
+        }
+        int complete = 0;
+        ByteBuffer answer = ByteBuffer.allocate(20 + 6 * swarm.size());
+        answer.putInt(1).putInt(transactionId).putInt(interval).putInt(0).putInt(0);
+        for (Map.Entry<String, Long> entry : swarm.entrySet()) {
+            String[] address = entry.getKey().split(":");
+            try {
+                answer.put(InetAddress.getByName(address[0]).getAddress());
+            } catch (IOException e) {
+                answer.put(new byte[4]);
+            }
+            answer.putShort((short) Integer.parseInt(address[1]));
+            if (entry.getValue() == 0) {
+                complete++;
+            }
+        }
+        answer.putInt(12, swarm.size() - complete);
+        answer.putInt(16, complete);
+        answer.flip();
+        return answer;
+    }
+
+    private ByteBuffer scrape(ByteBuffer request, int transactionId) {
+        scrapes++;
+        ByteBuffer answer = ByteBuffer.allocate(8 + 12 * (request.remaining() / 20));
+        answer.putInt(2).putInt(transactionId);
+        byte[] infoHash = new byte[20];
+        while (request.remaining() >= 20) {
+            request.get(infoHash);
+            String hash = Hex.encodeHexString(infoHash);
+            Map<String, Long> swarm = swarms.getOrDefault(hash, new HashMap<>());
+            int complete = 0;
+            for (long left : swarm.values()) {
+                if (left == 0) {
+                    complete++;
+                }
+            }
+            answer.putInt(complete).putInt(downloads.getOrDefault(hash, 0)).putInt(swarm.size() - complete);
+        }
+        answer.flip();
+        return answer;
+    }
+
+    private static ByteBuffer error(int transactionId, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer answer = ByteBuffer.allocate(8 + text.length);
+        answer.putInt(3).putInt(transactionId).put(text).flip();
+        return answer;
+    }
+}
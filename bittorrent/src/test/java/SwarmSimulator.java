@@ -0,0 +1,456 @@
+import bencode.BEncodedValue;
+import peers.ClientReactor;
+import peers.OutboundQueue;
+import peers.PeerManager;
+import peers.Server;
+import pieces.FileLayout;
+import pieces.FileWriter;
+import pieces.PieceManager;
+import pieces.Torrent;
+import tracker.AnnounceScheduler;
+import tracker.HttpRequestType;
+import tracker.Tracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+/**
+ * SwarmSimulator class
+ * load test of a swarm running in this process on the loopback interface
+ * <p>
+ * A synthetic torrent is generated, N seeders serve it and M leechers download it at the same
+ * time, every one of them being made of a Server, a PieceManager and for the leechers a
+ * ClientReactor, a FileWriter and the selection rounds of BitTorrentClient. They find each
+ * other through a LocalTracker, or a LocalUdpTracker with --udp, announced to in the background
+ * every round, each peer with its own announce thread as separate clients would. The leechers
+ * keep seeding once complete, so the last ones also download from the first ones.
+ * <p>
+ * Reported : time to complete of the leechers, aggregate throughput, CPU time of the process
+ * and bytes allocated per GB downloaded. The allocations are those of the threads still alive
+ * at the end, which run the whole transfer (reactors, servers, writers, verifiers).
+ * <p>
+ * java SwarmSimulator [--size=MB] [--piece-length=kB] [--files=N] [--seeders=N] [--leechers=M] [--port=N]
+ * [--upload-slots=N] [--round=s] [--timeout=s] [--keep] [--debug]
+ * <p>
+ * The leechers not complete after --timeout seconds are reported as failures, their time is
+ * left out of the times to complete.
+ * <p>
+ * With --files=N the torrent is a multi-file one, its data being split in N files of unequal sizes.
+ */
+public class SwarmSimulator {
+    private static final String FILE_NAME = "swarm.bin";
+    private static long size = 100L * 1024 * 1024;
+    private static int pieceLength = 256 * 1024;
+    private static int nbFiles = 1;     // single file torrent if 1
+    private static int nbSeeders = 1;
+    private static int nbLeechers = 4;
+    private static int basePort = 17000;
+    private static int uploadSlots = 4;
+    private static int round = 10;      // s between two selection rounds of a leecher and two announces
+    private static int timeout = 300;   // s given to the leechers to complete
+    private static AnnounceScheduler announces;
+    private static boolean udp = false;     // LocalUdpTracker instead of LocalTracker
+    private static boolean keep = false;
+    private static Level level = Level.SEVERE;
+
+    public static void main(String[] args) throws Exception {
+        parseArguments(args);
+        announces = new AnnounceScheduler(nbSeeders + nbLeechers, level);
+        LocalTracker tracker = udp ? null : new LocalTracker(round);
+        LocalUdpTracker udpTracker = udp ? new LocalUdpTracker(round) : null;
+        Path root = Files.createTempDirectory("swarm");
+        Path source = Files.createDirectories(root.resolve("source"));
+        File torrentFile = root.resolve("swarm.torrent").toFile();
+        List<Path> seedData = new ArrayList<>();
+        byte[] expected = generate(source, seedData, torrentFile, udp ? udpTracker.getAnnounceURL() : tracker.getAnnounceURL());
+        System.out.println("Torrent : " + size / (1024 * 1024) + " MB in " + nbFiles + " files, pieces of " + pieceLength / 1024 + " kB, "
+                + nbSeeders + " seeders, " + nbLeechers + " leechers, data in " + root);
+
+        for (int i = 0; i < nbSeeders; i++) {
+            startSeeder(root.resolve("seeder-" + i), source, seedData, torrentFile, basePort + i);
+        }
+        List<Leecher> leechers = new ArrayList<>();
+        for (int i = 0; i < nbLeechers; i++) {
+            leechers.add(new Leecher(root.resolve("leecher-" + i), torrentFile, basePort + nbSeeders + i));
+        }
+
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        Map<Long, Long> allocatedBefore = allocatedBytes();
+        long gcBefore = gcTime();
+        long cpuBefore = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        for (Leecher leecher : leechers) {
+            leecher.launch(start);
+        }
+        long deadline = System.currentTimeMillis() + timeout * 1000L;
+        for (Leecher leecher : leechers) {
+            leecher.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        long elapsed = System.nanoTime() - start;
+        long cpu = os.getProcessCpuTime() - cpuBefore;
+        long gc = gcTime() - gcBefore;
+        Map<Long, Long> allocatedAfter = allocatedBytes();
+        long allocated = 0;
+        for (Map.Entry<Long, Long> entry : allocatedAfter.entrySet()) {
+            allocated += entry.getValue() - allocatedBefore.getOrDefault(entry.getKey(), 0L);
+        }
+
+        List<Long> times = new ArrayList<>();
+        int valid = 0;
+        for (Leecher leecher : leechers) {
+            if (leecher.getTime() >= 0 && leecher.getTime() <= elapsed) {
+                times.add(leecher.getTime());
+            }
+            if (Arrays.equals(expected, sha1(leecher.getLayout().getPaths()))) {
+                valid++;
+            }
+        }
+        Collections.sort(times);
+        double gigaBytes = (double) size * nbLeechers / (1L << 30);
+        double seconds = elapsed / 1e9;
+        System.out.println("Completed : " + times.size() + " / " + nbLeechers + " leechers, " + valid + " files identical to the source");
+        if (times.size() < nbLeechers) {
+            System.out.println("Failed : " + (nbLeechers - times.size()) + " leechers not complete after " + timeout + " s");
+        }
+        if (!times.isEmpty()) {
+            System.out.printf("Time to complete : min %.2f s, median %.2f s, max %.2f s%n",
+                    times.get(0) / 1e9, times.get(times.size() / 2) / 1e9, times.get(times.size() - 1) / 1e9);
+        }
+        System.out.printf("Throughput : %.1f MB/s aggregated over %.2f s%n", size * nbLeechers / seconds / (1024 * 1024), seconds);
+        System.out.printf("CPU : %.2f s, %.2f s/GB (%.0f %% of one core), GC %d ms%n",
+                cpu / 1e9, cpu / 1e9 / gigaBytes, 100.0 * cpu / elapsed, gc);
+        System.out.printf("Allocated : %.1f MB, %.1f MB/GB%n", allocated / 1048576.0, allocated / 1048576.0 / gigaBytes);
+        System.out.println("Writes : " + OutboundQueue.getEntriesWritten() + " messages in " + OutboundQueue.getWriteCalls()
+                + " write calls, tracker announces : " + (udp ? udpTracker.getAnnounces() : tracker.getAnnounces()));
+
+        if (udp) {
+            udpTracker.shutdown();
+        } else {
+            tracker.stop();
+        }
+        if (!keep) {
+            delete(root);
+        }
+        System.exit(valid == nbLeechers && times.size() == nbLeechers ? 0 : 1);
+    }
+
+    /**
+     * leecher downloading the torrent then seeding it
+     */
+    private static class Leecher extends Thread {
+        private final Torrent torrent;
+        private final PieceManager pieceManager;
+        private final PeerManager peerManager;
+        private final Server server;
+        private final Tracker tracker;
+        private final FileWriter fileWriter;
+        private final BlockingQueue<Boolean> isFileDownloaded = new LinkedBlockingQueue<>();
+        private long start;
+        private volatile long time = -1;     // ns to complete, -1 until then
+
+        Leecher(Path directory, File torrentFile, int port) throws IOException, NoSuchAlgorithmException {
+            super("leecher-" + port);
+            setDaemon(true);
+            Files.createDirectories(directory);
+            torrent = new Torrent(torrentFile, directory.toFile(), level);
+            torrent.setOutputPath(directory.resolve(FILE_NAME).toString());
+            pieceManager = new PieceManager(torrent, level, isFileDownloaded);
+            ClientReactor reactor = new ClientReactor("reactor-" + port, level);
+            reactor.setDaemon(true);
+            reactor.start();
+            peerManager = new PeerManager(level, reactor);
+            server = new Server("127.0.0.1", port, new PeerManager(level), pieceManager, torrent, level);
+            server.setUploadSlots(uploadSlots);
+            server.setDownloadPeers(peerManager);
+            server.setDaemon(true);
+            tracker = Tracker.forTorrent(torrent, level);
+            fileWriter = new FileWriter(pieceManager, level);
+            fileWriter.setDaemon(true);
+        }
+
+        void launch(long start) {
+            this.start = start;
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                fileWriter.start();
+                server.start();
+                AnnounceScheduler.Announcer announcer = announces.add(tracker, server, torrent, peerManager, pieceManager);
+                int nbPeers = -1;
+                long nextRound = 0;
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (announcer.getLastResponse() != null
+                            && (now >= nextRound || pieceManager.getSelectionPieces().getPeersWithBitfield() != nbPeers)) {
+                        nbPeers = pieceManager.getSelectionPieces().getPeersWithBitfield();
+                        selectionRound();
+                        nextRound = now + round * 1000L;
+                    }
+                    if (isFileDownloaded.poll(100, TimeUnit.MILLISECONDS) != null) {
+                        break;
+                    }
+                }
+                fileWriter.join();
+                time = System.nanoTime() - start;
+                announcer.completed();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * selection round of BitTorrentClient.launchSelection, sleeping while the bitfields
+         * are awaited instead of spinning so the CPU measured is the one of the transfer
+         */
+        private void selectionRound() throws InterruptedException {
+            pieceManager.getSelectionPieces().setUnDone();
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!pieceManager.getSelectionPieces().allPeersAskedForTheirBitfield() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            pieceManager.getSelectionPieces().selectPiecesToAsk(pieceManager.getLeftPieces());
+            pieceManager.getSelectionPieces().setDone();
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        FileLayout getLayout() {
+            return torrent.getLayout();
+        }
+    }
+
+    /**
+     * seeder serving links to the source data, its pieces checked before the transfer starts
+     *
+     * @param directory   seeder directory
+     * @param source      source directory
+     * @param files       data files in the source directory
+     * @param torrentFile torrent file
+     * @param port        listening port
+     * @throws Exception exception
+     */
+    private static void startSeeder(Path directory, Path source, List<Path> files, File torrentFile, int port) throws Exception {
+        for (Path file : files) {
+            Path data = directory.resolve(source.relativize(file));
+            Files.createDirectories(data.getParent());
+            try {
+                Files.createLink(data, file);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(file, data);
+            }
+        }
+        Torrent torrent = new Torrent(torrentFile, directory.toFile(), level);
+        torrent.setOutputPath(directory.resolve(FILE_NAME).toString());
+        PieceManager pieceManager = new PieceManager(torrent, level, null);
+        pieceManager.retrieveAllPieces();
+        if (pieceManager.getPercentageDownloaded() != 100) {
+            throw new IllegalStateException("seeder on port " + port + " is missing pieces");
+        }
+        PeerManager peerManager = new PeerManager(level);
+        Server server = new Server("127.0.0.1", port, peerManager, pieceManager, torrent, level);
+        server.setUploadSlots(uploadSlots);
+        server.setDaemon(true);
+        server.start();
+        Tracker.forTorrent(torrent, level).sendGet(HttpRequestType.COMPLETED, server, torrent, peerManager, pieceManager);
+    }
+
+    /**
+     * write random data and the torrent describing it, the data being split in nbFiles files
+     * of sizes growing by a half from one to the next
+     *
+     * @param source      directory of the data
+     * @param files       filled with the data files
+     * @param torrentFile torrent file
+     * @param announce    tracker URL
+     * @return SHA-1 of the whole data
+     * @throws IOException              exception
+     * @throws NoSuchAlgorithmException exception
+     */
+    private static byte[] generate(Path source, List<Path> files, File torrentFile, String announce) throws IOException, NoSuchAlgorithmException {
+        List<Long> lengths = new ArrayList<>();
+        double weight = 0;
+        for (int i = 0; i < nbFiles; i++) {
+            weight += Math.pow(1.5, i);
+        }
+        long left = size;
+        for (int i = 0; i < nbFiles; i++) {
+            long length = i == nbFiles - 1 ? left : (long) (size * Math.pow(1.5, i) / weight);
+            lengths.add(length);
+            left -= length;
+            files.add(nbFiles == 1 ? source.resolve(FILE_NAME) : source.resolve(FILE_NAME).resolve("part-" + i + ".bin"));
+        }
+        if (nbFiles > 1) {
+            Files.createDirectories(source.resolve(FILE_NAME));
+        }
+        Random random = new Random(1);
+        MessageDigest pieceDigest = MessageDigest.getInstance("SHA1");
+        MessageDigest fileDigest = MessageDigest.getInstance("SHA1");
+        byte[] piece = new byte[pieceLength];
+        byte[] hashes = new byte[(int) ((size + pieceLength - 1) / pieceLength) * 20];
+        int file = -1;
+        long fileLeft = 0;
+        FileChannel channel = null;
+        try {
+            for (int i = 0; (long) i * pieceLength < size; i++) {
+                int length = (int) Math.min(pieceLength, size - (long) i * pieceLength);
+                random.nextBytes(piece);
+                pieceDigest.update(piece, 0, length);
+                System.arraycopy(pieceDigest.digest(), 0, hashes, i * 20, 20);
+                fileDigest.update(piece, 0, length);
+                ByteBuffer buffer = ByteBuffer.wrap(piece, 0, length);
+                while (buffer.hasRemaining()) {
+                    if (fileLeft == 0) {
+                        if (channel != null) {
+                            channel.close();
+                        }
+                        file++;
+                        fileLeft = lengths.get(file);
+                        channel = FileChannel.open(files.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                        continue;
+                    }
+                    ByteBuffer part = buffer.duplicate();
+                    part.limit(part.position() + (int) Math.min(part.remaining(), fileLeft));
+                    int n = channel.write(part);
+                    buffer.position(buffer.position() + n);
+                    fileLeft -= n;
+                }
+            }
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        // empty files at the end
+        for (file++; file < nbFiles; file++) {
+            Files.write(files.get(file), new byte[0]);
+        }
+        Map<String, Object> info = new TreeMap<>();
+        if (nbFiles == 1) {
+            info.put("length", size);
+        } else {
+            List<BEncodedValue> entries = new ArrayList<>();
+            for (int i = 0; i < nbFiles; i++) {
+                Map<String, BEncodedValue> entry = new TreeMap<>();
+                entry.put("length", new BEncodedValue(lengths.get(i)));
+                entry.put("path", new BEncodedValue(Collections.singletonList(new BEncodedValue("part-" + i + ".bin"))));
+                entries.add(new BEncodedValue(entry));
+            }
+            info.put("files", entries);
+        }
+        info.put("name", FILE_NAME);
+        info.put("piece length", pieceLength);
+        info.put("pieces", hashes);
+        TorrentWriter.write(torrentFile, info, Collections.singletonList(Collections.singletonList(announce)));
+        return fileDigest.digest();
+    }
+
+    /**
+     * SHA-1 of files laid end to end
+     *
+     * @param files files, the missing ones being skipped
+     * @return digest
+     * @throws IOException              exception
+     * @throws NoSuchAlgorithmException exception
+     */
+    private static byte[] sha1(List<Path> files) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        byte[] buffer = new byte[1 << 20];
+        for (Path file : files) {
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                        digest.update(buffer, 0, n);
+                    }
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * bytes allocated so far by every live thread
+     *
+     * @return thread id -> bytes
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static void delete(Path root) throws IOException {
+        List<Path> paths = Files.walk(root).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static void parseArguments(String[] args) {
+        for (String argument : args) {
+            if (argument.startsWith("--size=")) {
+                size = Long.parseLong(argument.split("=")[1]) * 1024 * 1024;
+            } else if (argument.startsWith("--piece-length=")) {
+                pieceLength = Integer.parseInt(argument.split("=")[1]) * 1024;
+            } else if (argument.startsWith("--files=")) {
+                nbFiles = Integer.parseInt(argument.split("=")[1]);
+            } else if (argument.startsWith("--seeders=")) {
+                nbSeeders = Integer.parseInt(argument.split("=")[1]);
+            } else if (argument.startsWith("--leechers=")) {
+                nbLeechers = Integer.parseInt(argument.split("=")[1]);
+            } else if (argument.startsWith("--port=")) {
+                basePort = Integer.parseInt(argument.split("=")[1]);
+            } else if (argument.startsWith("--upload-slots=")) {
+                uploadSlots = Integer.parseInt(argument.split("=")[1]);
+            } else if (argument.startsWith("--round=")) {
+                round = Integer.parseInt(argument.split("=")[1]);
+            } else if (argument.startsWith("--timeout=")) {
+                timeout = Integer.parseInt(argument.split("=")[1]);
+            } else if (argument.equals("--udp")) {
+                udp = true;
+            } else if (argument.equals("--keep")) {
+                keep = true;
+            } else if (argument.equals("--debug")) {
+                level = Level.INFO;
+            } else {
+                throw new IllegalArgumentException("unknown option " + argument);
+            }
+        }
+    }
+}
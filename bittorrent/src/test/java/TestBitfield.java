@@ -0,0 +1,21 @@
+import pieces.Bitfield;
+
+import java.util.Arrays;
+
+public class TestBitfield {
+    public static void main(String[] args) {
+        //payload of a BITFIELD MESSAGE for 70 pieces : pieces 0, 7, 8, 63, 64 and 69, spare bit 71 set
+        byte[] wire = {(byte) 0x81, (byte) 0x80, 0, 0, 0, 0, 0, 1, (byte) 0x85};
+        Bitfield bitfield = Bitfield.fromBytes(wire, 70);
+        System.out.println("pieces : " + bitfield + " (" + bitfield.cardinality() + ")");
+        //spare bit dropped : 0x84 on the last byte
+        System.out.println("payload : " + Arrays.toString(bitfield.toBytes()));
+
+        Bitfield ours = new Bitfield(70);
+        ours.set(0);
+        ours.set(64);
+        System.out.println("pieces we lack : " + bitfield.andNotCardinality(ours) + ", interested : " + bitfield.hasPieceNotIn(ours));
+        ours.or(bitfield);
+        System.out.println("interested after or : " + bitfield.hasPieceNotIn(ours) + ", equals : " + ours.equals(bitfield));
+    }
+}
@@ -0,0 +1,20 @@
+import metrics.Histogram;
+import metrics.Metrics;
+
+public class TestHistogram {
+    public static void main(String[] args) {
+        //latencies of 1 to 1000 µs, in ns
+        Histogram histogram = Metrics.histogram("test.latency");
+        for (long us = 1; us <= 1000; us++) {
+            histogram.record(us * 1000);
+        }
+        //percentiles are bucket upper bounds, within 25 % of 500000, 990000 and 1000000 ns
+        System.out.println("count : " + histogram.getCount() + ", mean : " + histogram.getMean());
+        System.out.println("p50 : " + histogram.getPercentile(0.5) + ", p99 : " + histogram.getPercentile(0.99)
+                + ", max : " + histogram.getMax());
+        Metrics.counter("test.bytes").add(16384);
+        System.out.print(Metrics.toJson(0));
+        Metrics.remove("test.");
+        System.out.print(Metrics.toCsv(0).isEmpty() ? "removed\n" : Metrics.toCsv(0));
+    }
+}
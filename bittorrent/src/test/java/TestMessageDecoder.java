@@ -0,0 +1,53 @@
+import message.Message;
+import message.MessageDecoder;
+import message.PieceMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class TestMessageDecoder {
+    public static void main(String[] args) throws IOException {
+        //byte[] corresponding to a UNCHOKE MESSAGE
+        byte[] m1 = {0,0,0,1,1};
+        //byte[] corresponding to a BITFIELD MESSAGE
+        byte[] m2 = {0,0,0,9,5,1,2,3,4,5,6,7,8};
+        //byte[] corresponding to a KEEP-ALIVE MESSAGE
+        byte[] m3 = {0,0,0,0};
+        //byte[] corresponding to a PIECE MESSAGE with a 4 bytes block
+        byte[] m4 = {0,0,0,13,7, 0,0,0,1, 0,0,64,0, 10,11,12,13};
+        // m = m1 + m2 + m3 + m4, sent in chunks of 3 bytes to split every frame
+        ByteBuffer m = ByteBuffer.allocate(m1.length + m2.length + m3.length + m4.length);
+        m.put(m1).put(m2).put(m3).put(m4);
+        m.flip();
+
+        MessageDecoder decoder = new MessageDecoder(8);
+        while (m.hasRemaining()) {
+            ByteBuffer chunk = m.slice();
+            chunk.limit(Math.min(3, chunk.remaining()));
+            m.position(m.position() + chunk.remaining());
+            decoder.getReadBuffer().put(chunk);
+            for (Message message : decoder.decode()) {
+                System.out.println(message.getTypeMessage());
+                if (message instanceof PieceMessage) {
+                    PieceMessage piece = (PieceMessage) message;
+                    ByteBuffer block = piece.getBlockBuffer();
+                    System.out.println("index " + piece.getIndex() + " begin " + piece.getBegin() + " block " + block.get(0) + "..." + block.get(3));
+                }
+            }
+        }
+        System.out.println("pending bytes : " + decoder.getPendingBytes());
+
+        // frames too short for their message id : PIECE, HAVE and REQUEST, followed by a CHOKE
+        byte[][] invalid = {{0,0,0,5,7,0,0,0,1, 0,0,0,1,0}, {0,0,0,1,4, 0,0,0,1,0}, {0,0,0,1,6, 0,0,0,1,0}};
+        for (byte[] frame : invalid) {
+            MessageDecoder invalidDecoder = new MessageDecoder(16);
+            invalidDecoder.getReadBuffer().put(frame);
+            try {
+                invalidDecoder.decode();
+                System.out.println("accepted");
+            } catch (IOException e) {
+                System.out.println("rejected : " + e.getMessage());
+            }
+        }
+    }
+}
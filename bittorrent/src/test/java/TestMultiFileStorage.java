@@ -0,0 +1,41 @@
+import pieces.FileLayout;
+import pieces.MultiFileStorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestMultiFileStorage {
+    public static void main(String[] args) throws IOException {
+        Path root = Files.createTempDirectory("multifile");
+        // 3 files of odd sizes and an empty one : blocks of 16384 bytes span the file boundaries
+        FileLayout layout = new FileLayout(
+                Arrays.asList(root.resolve("a.bin"), root.resolve("empty"), root.resolve("dir/b.bin"), root.resolve("dir/c.bin")),
+                Arrays.asList(10000L, 0L, 30000L, 5000L));
+        byte[] data = new byte[45000];
+        new Random(1).nextBytes(data);
+        try (MultiFileStorage storage = new MultiFileStorage(layout)) {
+            for (int offset = 0; offset < data.length; offset += 16384) {
+                storage.write(offset, ByteBuffer.wrap(data, offset, Math.min(16384, data.length - offset)));
+            }
+            for (FileLayout.Span span : layout.spans(9000, 16384)) {
+                System.out.println("span : file " + span.getFile() + " offset " + span.getFileOffset() + " length " + span.getLength());
+            }
+            byte[] read = new byte[data.length];
+            storage.read(0, ByteBuffer.wrap(read));
+            Path sent = root.resolve("sent.bin");
+            try (FileChannel target = FileChannel.open(sent, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                storage.transferTo(9000, 36000, target);
+            }
+            System.out.println("read identical : " + Arrays.equals(read, data));
+            System.out.println("transferred identical : " + Arrays.equals(Files.readAllBytes(sent), Arrays.copyOfRange(data, 9000, 45000)));
+        }
+        System.out.println("b.bin identical : " + Arrays.equals(Files.readAllBytes(root.resolve("dir/b.bin")), Arrays.copyOfRange(data, 10000, 40000))
+                + ", empty file created : " + Files.exists(root.resolve("empty")));
+    }
+}
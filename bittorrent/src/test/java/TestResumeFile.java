@@ -0,0 +1,56 @@
+import pieces.Bitfield;
+import pieces.ResumeFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+/**
+ * resume file saved and loaded back : a null state means every piece is checked again, a state
+ * not up to date means its pieces are checked again
+ */
+public class TestResumeFile {
+    public static void main(String[] args) throws IOException {
+        Path root = Files.createTempDirectory("resume");
+        Path data = root.resolve("data.bin");
+        Files.write(data, new byte[100000]);
+        byte[] infoHash = new byte[20];
+        new Random(1).nextBytes(infoHash);
+        ResumeFile resumeFile = new ResumeFile(data, infoHash, 70);
+        Path saved = root.resolve("data.bin.resume");
+
+        System.out.println("no resume file, full recheck : " + (resumeFile.load() == null));
+
+        Bitfield pieces = new Bitfield(70);
+        for (int i : new int[]{0, 7, 8, 63, 64, 69}) {
+            pieces.set(i);
+        }
+        resumeFile.save(pieces);
+        ResumeFile.State state = resumeFile.load();
+        System.out.println("same pieces : " + pieces.equals(state.getPieces()) + ", up to date : " + state.isUpToDate());
+        System.out.println("other torrent : " + (new ResumeFile(data, new byte[20], 70).load() == null));
+
+        // a flipped bit in the pieces fails the CRC32
+        byte[] content = Files.readAllBytes(saved);
+        content[content.length - 6] ^= 0x01;
+        Files.write(saved, content);
+        System.out.println("corrupted, full recheck : " + (resumeFile.load() == null));
+
+        resumeFile.save(pieces);
+        Files.setLastModifiedTime(data, FileTime.fromMillis(Files.getLastModifiedTime(data).toMillis() - 60000));
+        state = resumeFile.load();
+        System.out.println("data file touched, recheck : " + !state.isUpToDate() + ", same pieces : " + pieces.equals(state.getPieces()));
+
+        resumeFile.save(pieces);
+        FileTime modified = Files.getLastModifiedTime(data);
+        Files.write(data, new byte[1], StandardOpenOption.APPEND);
+        Files.setLastModifiedTime(data, modified);
+        System.out.println("data file resized, recheck : " + !resumeFile.load().isUpToDate());
+
+        Files.delete(saved);
+        System.out.println("resume file deleted, full recheck : " + (resumeFile.load() == null));
+    }
+}
@@ -1,20 +1,57 @@
+import pieces.MappedStorage;
 import pieces.Piece;
 import pieces.PieceManager;
 import pieces.Torrent;
 
 import java.io.File;
-import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.logging.Level;
 
+/**
+ * pieces of a file found by a recheck, then restored from the resume file, and copied to another file
+ * from the storage : the verified pieces are released and only read back from the file
+ */
 public class TestRetrievePiecesFromFile {
-    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
-        Torrent torrentObject = new Torrent(new File("testFiles/original.torrent"), new File("testFiles/"), Level.INFO);
+    private static final int PIECE_LENGTH = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Path root = Files.createTempDirectory("retrieve");
+        byte[] data = new byte[10 * PIECE_LENGTH + 1000];
+        new Random(1).nextBytes(data);
+        // piece 3 damaged
+        byte[] onDisk = data.clone();
+        onDisk[3 * PIECE_LENGTH + 10] ^= 0x01;
+        Files.write(root.resolve("original"), onDisk);
+        File torrentFile = root.resolve("original.torrent").toFile();
+        TorrentWriter.write(torrentFile, "original", data, PIECE_LENGTH, "http://127.0.0.1/announce");
+
+        Torrent torrentObject = new Torrent(torrentFile, root.toFile(), Level.INFO);
+        torrentObject.setOutputPath(root.resolve("original").toString());
         PieceManager manager = new PieceManager(torrentObject, Level.INFO, null);
         manager.retrieveAllPieces();
-        torrentObject.setOutputPath("testFiles/original2");
-        for (Piece p : manager.getPieces()) {
-            manager.writePiece(p);
+        System.out.println("rechecked : " + manager.getPiecesBitfield() + " piece 3 missing : " + !manager.getPiecesBitfield().get(3));
+
+        PieceManager resumed = new PieceManager(torrentObject, Level.INFO, null);
+        resumed.retrieveAllPieces();
+        System.out.println("resumed : " + resumed.getPiecesBitfield().equals(manager.getPiecesBitfield()));
+
+        Path copy = root.resolve("original2");
+        try (MappedStorage storage = new MappedStorage(copy, data.length)) {
+            for (Piece p : resumed.getPieces()) {
+                byte[] piece = resumed.readBlock(p.getIndex(), 0, (int) p.getSize());
+                if (piece != null) {
+                    storage.write((long) p.getIndex() * PIECE_LENGTH, ByteBuffer.wrap(piece));
+                }
+            }
         }
+        byte[] copied = Files.readAllBytes(copy);
+        Arrays.fill(data, 3 * PIECE_LENGTH, 4 * PIECE_LENGTH, (byte) 0);
+        System.out.println("copied identical but piece 3 : " + Arrays.equals(copied, data));
+        manager.getStorage().close();
+        resumed.getStorage().close();
     }
 }
@@ -0,0 +1,60 @@
+import org.apache.commons.codec.binary.Hex;
+import tracker.ScrapeCache;
+import tracker.ScrapeResult;
+import tracker.Tracker;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+
+/**
+ * scrapes of several torrents in one request to a LocalTracker, kept by a ScrapeCache and turned
+ * into the weights of the torrents
+ */
+public class TestScrape {
+    public static void main(String[] args) throws Exception {
+        LocalTracker localTracker = new LocalTracker();
+        byte[] crowded = new byte[20];
+        byte[] lonely = new byte[20];
+        new Random(2).nextBytes(crowded);
+        new Random(3).nextBytes(lonely);
+        byte[] unknown = new byte[20];
+
+        // three seeders and two leechers on the first torrent, a leecher on the second one
+        for (int port = 6001; port <= 6005; port++) {
+            announce(localTracker, crowded, port, port <= 6003 ? 0 : 1000, port <= 6003 ? "completed" : "started");
+        }
+        announce(localTracker, lonely, 6006, 1000, "started");
+
+        Tracker tracker = Tracker.forURL(localTracker.getAnnounceURL(), Level.SEVERE);
+        System.out.println("scrape URL : " + tracker.getScrapeURL().endsWith("/scrape")
+                + ", without announce : " + Tracker.forURL("http://127.0.0.1/tracker.php", Level.SEVERE).getScrapeURL());
+        Map<String, ScrapeResult> scrape = tracker.scrape(Arrays.asList(crowded, lonely, unknown));
+        System.out.println("crowded : " + scrape.get(Hex.encodeHexString(crowded)) + ", lonely : " + scrape.get(Hex.encodeHexString(lonely))
+                + ", unknown : " + scrape.get(Hex.encodeHexString(unknown)) + ", scrapes : " + localTracker.getScrapes());
+
+        // scraped once until the results are too old
+        ScrapeCache cache = new ScrapeCache(Level.SEVERE);
+        System.out.println("refreshed : " + cache.refresh(tracker, Arrays.asList(crowded, lonely, unknown))
+                + ", again : " + cache.refresh(tracker, Arrays.asList(crowded, lonely)) + ", scrapes : " + localTracker.getScrapes());
+        System.out.printf("weights downloading : %.2f %.2f %.2f, seeding : %.2f %.2f %.2f%n",
+                cache.weight(crowded, false), cache.weight(lonely, false), cache.weight(unknown, false),
+                cache.weight(crowded, true), cache.weight(lonely, true), cache.weight(unknown, true));
+        localTracker.stop();
+    }
+
+    private static void announce(LocalTracker localTracker, byte[] infoHash, int port, long left, String event) throws Exception {
+        StringBuilder hash = new StringBuilder();
+        for (byte b : infoHash) {
+            hash.append(String.format("%%%02X", b & 0xFF));
+        }
+        URL url = new URL(localTracker.getAnnounceURL() + "?info_hash=" + hash + "&peer_id=-TEST-" + port + "-000000000"
+                + "&port=" + port + "&uploaded=0&downloaded=0&left=" + left + "&event=" + event + "&compact=1");
+        try (InputStream in = url.openStream()) {
+            while (in.read() >= 0) ;
+        }
+    }
+}
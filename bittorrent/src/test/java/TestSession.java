@@ -0,0 +1,104 @@
+import peers.PeerManager;
+import peers.Server;
+import peers.Session;
+import pieces.PieceManager;
+import pieces.Torrent;
+import tracker.HttpRequestType;
+import tracker.Tracker;
+
+import java.io.File;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * two torrents seeded by a session and downloaded by another one, each session listening on a
+ * single port for both torrents, a connection which never sends its handshake being closed
+ */
+public class TestSession {
+    private static final int PIECE_LENGTH = 64 * 1024;
+    private static final Level LEVEL = Level.SEVERE;
+
+    public static void main(String[] args) throws Exception {
+        LocalTracker localTracker = new LocalTracker();
+        Path root = Files.createTempDirectory("session");
+        Path seedDirectory = Files.createDirectories(root.resolve("seeder"));
+        Path leechDirectory = Files.createDirectories(root.resolve("leecher"));
+        String[] names = {"first.bin", "second.bin"};
+        byte[][] data = new byte[names.length][];
+        File[] torrentFiles = new File[names.length];
+        for (int i = 0; i < names.length; i++) {
+            data[i] = new byte[(3 + i) * 1024 * 1024 + 1000 * i];
+            new Random(i).nextBytes(data[i]);
+            Files.write(seedDirectory.resolve(names[i]), data[i]);
+            torrentFiles[i] = root.resolve(names[i] + ".torrent").toFile();
+            TorrentWriter.write(torrentFiles[i], names[i], data[i], PIECE_LENGTH, localTracker.getAnnounceURL());
+        }
+
+        Session seeder = new Session("127.0.0.1", 17100, 1, 1, LEVEL);
+        seeder.setDaemon(true);
+        Session leecher = new Session("127.0.0.1", 17101, 1, 2, LEVEL);
+        leecher.setDaemon(true);
+        for (File torrentFile : torrentFiles) {
+            Torrent torrent = new Torrent(torrentFile, seedDirectory.toFile(), LEVEL);
+            torrent.setOutputPath(seedDirectory.resolve(torrent.getFileName()).toString());
+            PieceManager pieceManager = seeder.newPieceManager(torrent, null);
+            pieceManager.retrieveAllPieces();
+            Server server = seeder.host(torrent, pieceManager);
+            new Tracker(torrent.getAnnounce(), LEVEL).sendGet(HttpRequestType.COMPLETED, server, torrent, new PeerManager(LEVEL), pieceManager);
+        }
+        seeder.start();
+        leecher.start();
+        // connection never sending its handshake
+        Socket silent = new Socket("127.0.0.1", 17100);
+
+        Thread[] downloads = new Thread[names.length];
+        boolean[] completed = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Torrent torrent = new Torrent(torrentFiles[i], leechDirectory.toFile(), LEVEL);
+            torrent.setOutputPath(leechDirectory.resolve(names[i]).toString());
+            BlockingQueue<Boolean> isFileDownloaded = new LinkedBlockingQueue<>();
+            PieceManager pieceManager = leecher.newPieceManager(torrent, isFileDownloaded);
+            PeerManager peerManager = leecher.newPeerManager();
+            Server server = leecher.host(torrent, pieceManager);
+            server.setDownloadPeers(peerManager);
+            Tracker tracker = new Tracker(torrent.getAnnounce(), LEVEL);
+            int index = i;
+            downloads[i] = new Thread(() -> {
+                try {
+                    tracker.sendGet(HttpRequestType.STARTED, server, torrent, peerManager, pieceManager);
+                    for (int round = 0; round < 10 && !completed[index]; round++) {
+                        pieceManager.getSelectionPieces().setUnDone();
+                        tracker.sendGet(HttpRequestType.OTHER, server, torrent, peerManager, pieceManager);
+                        while (!pieceManager.getSelectionPieces().allPeersAskedForTheirBitfield()) {
+                            Thread.sleep(1);
+                        }
+                        pieceManager.getSelectionPieces().selectPiecesToAsk(pieceManager.getLeftPieces());
+                        pieceManager.getSelectionPieces().setDone();
+                        completed[index] = isFileDownloaded.poll(5, TimeUnit.SECONDS) != null;
+                    }
+                } catch (Exception e) {
+                    System.err.println(e.getMessage());
+                }
+            });
+            downloads[i].start();
+        }
+        for (int i = 0; i < names.length; i++) {
+            downloads[i].join();
+            System.out.println(names[i] + " completed : " + completed[i] + ", identical : "
+                    + Arrays.equals(data[i], Files.readAllBytes(leechDirectory.resolve(names[i]))));
+        }
+        silent.setSoTimeout(15000);
+        System.out.println("connection without handshake closed : " + (silent.getInputStream().read() == -1));
+        silent.close();
+        seeder.shutdown();
+        leecher.shutdown();
+        localTracker.stop();
+    }
+}
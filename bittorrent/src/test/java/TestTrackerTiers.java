@@ -0,0 +1,97 @@
+import peers.PeerManager;
+import peers.Server;
+import peers.Session;
+import pieces.PieceManager;
+import pieces.Torrent;
+import tracker.AnnounceResponse;
+import tracker.HttpRequestType;
+import tracker.Tracker;
+import tracker.TrackerTiers;
+import tracker.UdpTracker;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+
+/**
+ * announces to the tiers of an announce-list : a tracker never answering and two answering in the
+ * first tier, a last one in the second tier used once those of the first tier are gone
+ */
+public class TestTrackerTiers {
+    private static final int PIECE_LENGTH = 64 * 1024;
+    private static final Level LEVEL = Level.SEVERE;
+
+    public static void main(String[] args) throws Exception {
+        LocalTracker first = new LocalTracker();
+        LocalTracker second = new LocalTracker();
+        LocalTracker backup = new LocalTracker();
+        LocalUdpTracker silent = new LocalUdpTracker(1800);
+        silent.drop(Integer.MAX_VALUE);
+        Path root = Files.createTempDirectory("tiers");
+        byte[] data = new byte[1024 * 1024];
+        new Random(0).nextBytes(data);
+        Files.write(root.resolve("tiers.bin"), data);
+        File torrentFile = root.resolve("tiers.torrent").toFile();
+        TorrentWriter.write(torrentFile, "tiers.bin", data, PIECE_LENGTH, Arrays.asList(
+                Arrays.asList(silent.getAnnounceURL(), first.getAnnounceURL(), second.getAnnounceURL()),
+                Arrays.asList(backup.getAnnounceURL())));
+
+        Torrent torrent = new Torrent(torrentFile, root.toFile(), LEVEL);
+        torrent.setOutputPath(root.resolve("tiers.bin").toString());
+        System.out.println("tiers : " + torrent.getAnnounceList().size() + ", trackers of the first one : "
+                + torrent.getAnnounceList().get(0).size());
+
+        // another peer, known by the second tracker only
+        Session other = new Session("127.0.0.1", 17111, 1, 1, LEVEL);
+        PieceManager otherPieces = other.newPieceManager(torrent, null);
+        Server otherServer = other.host(torrent, otherPieces);
+        Tracker.forURL(second.getAnnounceURL(), LEVEL).sendGet(HttpRequestType.STARTED, otherServer, torrent, new PeerManager(LEVEL), otherPieces);
+
+        Session session = new Session("127.0.0.1", 17110, 1, 1, LEVEL);
+        PieceManager pieceManager = session.newPieceManager(torrent, null);
+        Server server = session.host(torrent, pieceManager);
+        TrackerTiers tiers = (TrackerTiers) Tracker.forTorrent(torrent, LEVEL);
+        for (TrackerTiers.Member member : tiers.getTiers().get(0)) {
+            if (member.getTracker() instanceof UdpTracker) {
+                ((UdpTracker) member.getTracker()).setTimeout(100, 0);
+            }
+        }
+
+        // us from both trackers answering, the other peer from the second one
+        AnnounceResponse response = tiers.announce(HttpRequestType.STARTED, server, torrent, pieceManager, 50);
+        System.out.println("peers : " + response.getPeers().size() + ", announces : " + first.getAnnounces() + " "
+                + second.getAnnounces() + " " + backup.getAnnounces());
+        List<TrackerTiers.Member> firstTier = tiers.getTiers().get(0);
+        System.out.println("silent tracker last : " + (firstTier.get(2).getTracker() instanceof UdpTracker)
+                + ", failures : " + firstTier.get(2).getFailures());
+
+        // first tier gone, the second one answers
+        first.stop();
+        second.stop();
+        response = tiers.announce(HttpRequestType.OTHER, server, torrent, pieceManager, 50);
+        System.out.println("peers : " + response.getPeers().size() + ", backup announces : " + backup.getAnnounces());
+        for (List<TrackerTiers.Member> tier : tiers.getTiers()) {
+            for (TrackerTiers.Member member : tier) {
+                System.out.println("  answers : " + member.getAnswers() + ", failures : " + member.getFailures()
+                        + ", latency known : " + (member.getLatency() >= 0));
+            }
+        }
+
+        // a silent tracker with a long timeout does not hold back the answer of the other one
+        TrackerTiers slow = new TrackerTiers(Arrays.asList(Arrays.asList(silent.getAnnounceURL(), backup.getAnnounceURL())), LEVEL);
+        ((UdpTracker) slow.getTiers().get(0).get(0).getTracker()).setTimeout(5000, 0);
+        long start = System.currentTimeMillis();
+        response = slow.announce(HttpRequestType.OTHER, server, torrent, pieceManager, 50);
+        System.out.println("answered without the silent tracker : " + (System.currentTimeMillis() - start < 2000)
+                + ", peers : " + response.getPeers().size());
+
+        session.shutdown();
+        other.shutdown();
+        silent.shutdown();
+        backup.stop();
+    }
+}
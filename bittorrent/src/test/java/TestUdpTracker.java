@@ -0,0 +1,60 @@
+import org.apache.commons.codec.binary.Hex;
+import tracker.AnnounceResponse;
+import tracker.HttpRequestType;
+import tracker.ScrapeResult;
+import tracker.Tracker;
+import tracker.UdpTracker;
+
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+
+/**
+ * announces and scrapes to a LocalUdpTracker : connection id kept, datagrams lost, connection id
+ * refused and tracker gone
+ */
+public class TestUdpTracker {
+    public static void main(String[] args) throws Exception {
+        LocalUdpTracker localTracker = new LocalUdpTracker(60);
+        UdpTracker tracker = (UdpTracker) Tracker.forURL(localTracker.getAnnounceURL(), Level.SEVERE);
+        tracker.setTimeout(100, 3);
+        byte[] infoHash = new byte[20];
+        new Random(1).nextBytes(infoHash);
+        byte[] unknown = new byte[20];
+
+        // a leecher then a seeder, the second announce with the same connection id
+        tracker.announce(infoHash, "-TEST-leecher-000001", 6001, 0, 1000, 0, HttpRequestType.STARTED, 50);
+        AnnounceResponse response = tracker.announce(infoHash, "-TEST-seeder-0000001", 6002, 0, 0, 0, HttpRequestType.STARTED, 50);
+        System.out.println("peers : " + response.getPeers() + ", seeders : " + response.getComplete()
+                + ", leechers : " + response.getIncomplete() + ", interval : " + response.getInterval());
+        System.out.println("connects : " + localTracker.getConnects() + ", announces : " + localTracker.getAnnounces());
+
+        // two datagrams lost, answered on the third attempt
+        localTracker.drop(2);
+        response = tracker.announce(infoHash, "-TEST-leecher-000001", 6001, 500, 500, 0, HttpRequestType.OTHER, 50);
+        System.out.println("after retransmits, peers : " + response.getPeers().size() + ", announces : " + localTracker.getAnnounces());
+
+        // connection id refused, a new one is asked for
+        localTracker.forgetConnections();
+        tracker.announce(infoHash, "-TEST-leecher-000001", 6001, 1000, 0, 0, HttpRequestType.COMPLETED, 50);
+        System.out.println("after refused connection id, connects : " + localTracker.getConnects());
+
+        Map<String, ScrapeResult> scrape = tracker.scrape(Arrays.asList(infoHash, unknown));
+        System.out.println("scrape : " + scrape.get(Hex.encodeHexString(infoHash)) + " / " + scrape.get(Hex.encodeHexString(unknown))
+                + ", scrapes : " + localTracker.getScrapes());
+
+        // no answer at all
+        localTracker.drop(Integer.MAX_VALUE);
+        tracker.setTimeout(50, 1);
+        try {
+            tracker.announce(infoHash, "-TEST-leecher-000001", 6001, 1000, 0, 0, HttpRequestType.STOPPED, 50);
+            System.out.println("timeout : false");
+        } catch (SocketTimeoutException e) {
+            System.out.println("timeout : true, " + e.getMessage());
+        }
+        tracker.close();
+        localTracker.shutdown();
+    }
+}
@@ -0,0 +1,108 @@
+import bencode.BEncodedValue;
+import bencode.BEncoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * TorrentWriter class
+ * metainfo files of the tests, for data held in memory or an info dictionary built by the caller
+ * <p>
+ * The announce-list is only written when there is more than one tracker.
+ */
+public class TorrentWriter {
+
+    private TorrentWriter() {
+    }
+
+    /**
+     * single file torrent of one tracker
+     *
+     * @param torrentFile file to write
+     * @param name        name of the file in the torrent
+     * @param data        content of the file
+     * @param pieceLength length of the pieces
+     * @param announce    URL of the tracker
+     * @throws IOException              exception
+     * @throws NoSuchAlgorithmException exception
+     */
+    public static void write(File torrentFile, String name, byte[] data, int pieceLength, String announce)
+            throws IOException, NoSuchAlgorithmException {
+        write(torrentFile, name, data, pieceLength, Collections.singletonList(Collections.singletonList(announce)));
+    }
+
+    /**
+     * single file torrent of tiers of trackers
+     *
+     * @param torrentFile  file to write
+     * @param name         name of the file in the torrent
+     * @param data         content of the file
+     * @param pieceLength  length of the pieces
+     * @param announceList tiers of tracker URLs, the first one being the announce
+     * @throws IOException              exception
+     * @throws NoSuchAlgorithmException exception
+     */
+    public static void write(File torrentFile, String name, byte[] data, int pieceLength, List<List<String>> announceList)
+            throws IOException, NoSuchAlgorithmException {
+        Map<String, Object> info = new TreeMap<>();
+        info.put("length", (long) data.length);
+        info.put("name", name);
+        info.put("piece length", pieceLength);
+        info.put("pieces", pieceHashes(data, pieceLength));
+        write(torrentFile, info, announceList);
+    }
+
+    /**
+     * torrent of an info dictionary
+     *
+     * @param torrentFile  file to write
+     * @param info         info dictionary
+     * @param announceList tiers of tracker URLs, the first one being the announce
+     * @throws IOException exception
+     */
+    public static void write(File torrentFile, Map<String, Object> info, List<List<String>> announceList) throws IOException {
+        Map<String, Object> metainfo = new TreeMap<>();
+        metainfo.put("announce", announceList.get(0).get(0));
+        if (announceList.size() > 1 || announceList.get(0).size() > 1) {
+            List<BEncodedValue> tiers = new ArrayList<>();
+            for (List<String> urls : announceList) {
+                List<BEncodedValue> tier = new ArrayList<>();
+                for (String url : urls) {
+                    tier.add(new BEncodedValue(url));
+                }
+                tiers.add(new BEncodedValue(tier));
+            }
+            metainfo.put("announce-list", tiers);
+        }
+        metainfo.put("info", info);
+        try (OutputStream out = new FileOutputStream(torrentFile)) {
+            BEncoder.encode(metainfo, out);
+        }
+    }
+
+    /**
+     * @param data        content of the torrent
+     * @param pieceLength length of the pieces
+     * @return SHA-1 of the pieces laid end to end
+     * @throws NoSuchAlgorithmException exception
+     */
+    public static byte[] pieceHashes(byte[] data, int pieceLength) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        int nbPieces = (data.length + pieceLength - 1) / pieceLength;
+        byte[] hashes = new byte[nbPieces * 20];
+        for (int i = 0; i < nbPieces; i++) {
+            digest.update(data, i * pieceLength, Math.min(pieceLength, data.length - i * pieceLength));
+            System.arraycopy(digest.digest(), 0, hashes, i * 20, 20);
+        }
+        return hashes;
+    }
+}
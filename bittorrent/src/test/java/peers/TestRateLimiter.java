@@ -0,0 +1,52 @@
+package peers;
+
+/**
+ * token buckets driven with explicit times, and a global -> torrent -> peer chain of limiters
+ */
+public class TestRateLimiter {
+    private static final long MS = 1000000L;    // ns
+
+    public static void main(String[] args) {
+        // burst : 200 ms of traffic, at least two blocks
+        TokenBucket fast = new TokenBucket();
+        fast.setRate(1000000);
+        long t0 = System.nanoTime();
+        System.out.println("burst capped at 200 ms : " + (fast.available(t0 + 10000 * MS) == 200000));
+        TokenBucket slow = new TokenBucket();
+        slow.setRate(10000);
+        System.out.println("burst of two blocks at least : " + (slow.available(System.nanoTime() + 10000 * MS) == 2 * 16384));
+
+        // refill : empty bucket, 50 ms later 50 000 bytes at 1 MB/s
+        long t1 = t0 + 20000 * MS;
+        fast.consume(fast.available(t1), t1);
+        System.out.println("empty : " + fast.available(t1) + ", after 50 ms : " + fast.available(t1 + 50 * MS)
+                + ", after 1 s : " + fast.available(t1 + 1000 * MS));
+
+        // chain : the smallest allowance along the chain, consumed in every bucket
+        RateLimiter global = new RateLimiter(null);
+        global.setRate(RateLimiter.Direction.UPLOAD, 1000000);
+        RateLimiter torrent = new RateLimiter(global);
+        torrent.setRate(RateLimiter.Direction.UPLOAD, 100000);
+        torrent.setPeerRate(RateLimiter.Direction.UPLOAD, 500000);
+        RateLimiter peer = torrent.newPeerLimiter();
+        System.out.println("peer limit : " + peer.getRate(RateLimiter.Direction.UPLOAD)
+                + ", chain allows the torrent burst : " + (peer.available(RateLimiter.Direction.UPLOAD) == 2 * 16384));
+        peer.consume(RateLimiter.Direction.UPLOAD, 30000);
+        long left = peer.available(RateLimiter.Direction.UPLOAD);
+        System.out.println("after 30000 bytes, chain allows about 2768 : " + (left >= 2768 && left < 2768 + 1000)
+                + ", allowance held for a block : " + (peer.allowance(RateLimiter.Direction.UPLOAD, 16384) == 0)
+                + ", global consumed : " + (global.available(RateLimiter.Direction.UPLOAD) <= 200000 - 30000 + 1000));
+        RateLimiter unlimited = new RateLimiter(new RateLimiter(null));
+        System.out.println("unlimited chain : " + (unlimited.available(RateLimiter.Direction.DOWNLOAD) == Long.MAX_VALUE));
+
+        // measured rate : 1 MB over a sampling period, 0 once idle for 2 s
+        TokenBucket measured = new TokenBucket();
+        long t2 = System.nanoTime();
+        measured.consume(500000, t2 + 500 * MS);
+        measured.consume(500000, t2 + 1000 * MS);
+        double rate = measured.getMeasuredRate(t2 + 1000 * MS);
+        System.out.println("measured about 1 MB/s : " + (rate > 900000 && rate <= 1000000)
+                + ", after 1 s idle : " + (measured.getMeasuredRate(t2 + 2000 * MS) == rate)
+                + ", after 2 s idle : " + measured.getMeasuredRate(t2 + 3100 * MS));
+    }
+}
@@ -0,0 +1,65 @@
+package pieces;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * blocks which are not exactly one empty slot of the piece are rejected without touching it :
+ * no buffer taken, no block state changed, no byte written in the piece buffer ; a piece failing
+ * its hash check has its blocks emptied in the same list
+ */
+public class TestPiece {
+    public static void main(String[] args) throws Exception {
+        // 2.5 blocks : 16384, 16384 and 8192 bytes
+        byte[] data = new byte[2 * Piece.BLOCK_SIZE + Piece.BLOCK_SIZE / 2];
+        new Random(1).nextBytes(data);
+        BufferPool pool = new BufferPool(data.length, 1);
+        Piece piece = new Piece(0, data.length, MessageDigest.getInstance("SHA1").digest(data), pool);
+        byte[] garbage = new byte[Piece.BLOCK_SIZE];
+        Arrays.fill(garbage, (byte) 0x55);
+
+        System.out.println("not aligned rejected : " + !piece.addBlockToPiece(100, ByteBuffer.wrap(garbage)));
+        System.out.println("after the last block rejected : " + !piece.addBlockToPiece(3 * Piece.BLOCK_SIZE, ByteBuffer.wrap(garbage)));
+        System.out.println("before the first block rejected : " + !piece.addBlockToPiece(-Piece.BLOCK_SIZE, ByteBuffer.wrap(garbage)));
+        System.out.println("too long for the last block rejected : " + !piece.addBlockToPiece(2 * Piece.BLOCK_SIZE, ByteBuffer.wrap(garbage)));
+        System.out.println("too short rejected : " + !piece.addBlockToPiece(0, ByteBuffer.wrap(garbage, 0, 100)));
+        System.out.println("no buffer taken : " + (pool.getInUse() == 0) + ", no block received : " + states(piece));
+
+        System.out.println("first block accepted : " + piece.addBlockToPiece(0, ByteBuffer.wrap(data, 0, Piece.BLOCK_SIZE)));
+        System.out.println("slot already full rejected : " + !piece.addBlockToPiece(0, ByteBuffer.wrap(garbage)));
+        System.out.println("not aligned over the first block rejected : " + !piece.addBlockToPiece(Piece.BLOCK_SIZE - 100, ByteBuffer.wrap(garbage)));
+        System.out.println("blocks : " + states(piece));
+
+        piece.addBlockToPiece(Piece.BLOCK_SIZE, ByteBuffer.wrap(data, Piece.BLOCK_SIZE, Piece.BLOCK_SIZE));
+        piece.addBlockToPiece(2 * Piece.BLOCK_SIZE, ByteBuffer.wrap(data, 2 * Piece.BLOCK_SIZE, Piece.BLOCK_SIZE / 2));
+        System.out.println("completed : " + piece.checkCompleted() + ", hash ok : " + piece.verifyIntegrity()
+                + ", completed piece rejects blocks : " + !piece.addBlockToPiece(Piece.BLOCK_SIZE, ByteBuffer.wrap(garbage)));
+        byte[] written = new byte[data.length];
+        piece.getData().get(written);
+        System.out.println("data identical : " + Arrays.equals(written, data));
+        piece.release();
+
+        // hash check failed : same block list, every block to download again, buffer released
+        Piece corrupted = new Piece(1, data.length, MessageDigest.getInstance("SHA1").digest(data), pool);
+        List<Block> blocks = corrupted.getBlocks();
+        for (int begin = 0; begin < data.length; begin += Piece.BLOCK_SIZE) {
+            corrupted.addBlockToPiece(begin, Arrays.copyOfRange(garbage, 0, Math.min(Piece.BLOCK_SIZE, data.length - begin)));
+        }
+        System.out.println("corrupted completed : " + corrupted.checkCompleted() + ", rejected : " + !corrupted.verifyIntegrity()
+                + ", same block list : " + (corrupted.getBlocks() == blocks) + ", blocks : " + states(corrupted)
+                + ", buffer released : " + (pool.getInUse() == 0));
+        System.out.println("block accepted again : " + corrupted.addBlockToPiece(0, Arrays.copyOf(data, Piece.BLOCK_SIZE)));
+        corrupted.release();
+    }
+
+    private static String states(Piece piece) {
+        StringBuilder sb = new StringBuilder();
+        for (Block b : piece.getBlocks()) {
+            sb.append(b.getBlockState()).append(' ');
+        }
+        return sb.toString().trim();
+    }
+}